@@ -0,0 +1,146 @@
+package com.soprasteria.notificationemail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares single-pass EventOutParser with previous substring/split parsing
+ * of eventout message. Run with allocation profiler to see garbage per
+ * record:
+ *
+ * mvn -Pjmh compile exec:exec -Djmh.args="EventOutParserBenchmark -prof gc"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class EventOutParserBenchmark {
+
+    @Param({"2000", "50000"})
+    private int bodySize;
+
+    private String fields;
+
+    @Setup
+    public void setUp() {
+        StringBuilder body = new StringBuilder("<html><body><p>Incident IM000123456 has been assigned to your group.</p>");
+
+        while (body.length() < bodySize) {
+            body.append("<p>Update\u00A0from operator: affected service is not available for users of site ").append(body.length()).append(".</p>\n");
+        }
+
+        body.append("</body></html>");
+
+        fields = "john.doe@example.com; jane.roe@example.com;\u00A0ops@example.com^falcon^email^"
+                + "Incident IM000123456 assigned (related SD000654321-001)^"
+                + "ACME|cc1@example.com, cc2@example.com|audit@example.com\n"
+                + body;
+
+        Configuration.separator = "^";
+    }
+
+    @Benchmark
+    public void singlePass(Blackhole bh) {
+        EventOutParser parser = new EventOutParser(fields, Configuration.separator);
+        String body = parser.getMessageText();
+
+        bh.consume(parser.getRecipientList());
+        bh.consume(parser.getOperator());
+        bh.consume(parser.getCompany());
+        bh.consume(parser.getCcList());
+        bh.consume(parser.getBccList());
+        bh.consume(EventOutParser.getTicketNumbers(parser.getSubject()));
+        bh.consume(parser.getSubjectText());
+        bh.consume(body.regionMatches(true, 0, "<html", 0, 5) && body.regionMatches(true, body.length() - 7, "</html>", 0, 7));
+        bh.consume(body);
+    }
+
+    @Benchmark
+    public void substringSplit(Blackhole bh) {
+        String temp = fields;
+        String targetRecipients = "";
+        String targetSubject = "";
+        String eventOperator = "";
+        int currPos = 0;
+        int oldPos = 0;
+
+        for (int i = 0; i < 4; i++) {
+            currPos = temp.indexOf(Configuration.separator, currPos);
+
+            if (i == 0) {
+                targetRecipients = temp.substring(0, currPos);
+            } else if (i == 1) {
+                eventOperator = temp.substring(oldPos, currPos);
+            } else if (i == 3) {
+                targetSubject = temp.substring(oldPos, currPos);
+            }
+
+            currPos += 1;
+            oldPos = currPos;
+        }
+
+        String targetBody = temp.substring(oldPos, temp.length());
+        bh.consume(targetSubject.equals(targetBody));
+
+        int firstLine = targetBody.indexOf("\n");
+        if (firstLine < 0) {
+            firstLine = targetBody.length();
+        }
+
+        String[] companyArray = targetBody.substring(0, firstLine).split("\\|");
+        bh.consume(companyArray[0].trim().replace(Configuration.NBSP, ""));
+
+        String[] recipientsArray = targetRecipients.split(";");
+        for (int i = 0; i < recipientsArray.length; i++) {
+            recipientsArray[i] = recipientsArray[i].trim().replace(Configuration.NBSP, "");
+        }
+
+        bh.consume(recipientsArray);
+        bh.consume(eventOperator);
+        bh.consume(splitEmailArray(companyArray[1], ","));
+        bh.consume(splitEmailArray(companyArray[2], ","));
+
+        Matcher matcher = Pattern.compile("(SD|IM|RQ|OM|CM|CT|KM|KE|PM|DT)\\d{9}(-\\d{3})?").matcher(targetSubject);
+        StringBuilder numbers = new StringBuilder();
+        while (matcher.find()) {
+            numbers.append(matcher.group()).append(",");
+        }
+
+        bh.consume(numbers.length() > 0 ? numbers.substring(0, numbers.length() - 1) : null);
+        bh.consume(targetSubject.trim().replace(Configuration.NBSP, " "));
+
+        String body = targetBody.substring(firstLine + 1, targetBody.length()).trim().replace(Configuration.NBSP, " ");
+        bh.consume(body.toLowerCase().startsWith("<html") && body.toLowerCase().endsWith("</html>"));
+        bh.consume(body);
+    }
+
+    private static String[] splitEmailArray(String emails, String separator) {
+        String[] emailArray = emails.trim().split(separator);
+
+        for (int i = 0; i < emailArray.length; i++) {
+            emailArray[i] = emailArray[i].trim().replace(Configuration.NBSP, "");
+        }
+
+        ArrayList<String> emailList = new ArrayList<String>(Arrays.asList(emailArray));
+        emailList.removeAll(Arrays.asList("", null));
+
+        return emailList.toArray(new String[emailList.size()]);
+    }
+}
@@ -0,0 +1,119 @@
+package com.soprasteria.notificationemail;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares fixed platform thread pool with virtual thread per record on
+ * burst of eventout records. Record work is simulated by blocking database
+ * read limited by connection pool and blocking SMTP send limited by
+ * smtp_concurrency, like EventOutRecord. With pinned work blocking happens
+ * inside synchronized block, like in JavaMail and Oracle driver, and virtual
+ * thread keeps its carrier thread while it waits.
+ *
+ * mvn -Pjmh compile exec:exec -Djmh.args=WorkerPoolBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+public class WorkerPoolBenchmark {
+
+    @Param({"pool", "virtual"})
+    private String mode;
+
+    @Param({"100", "1000"})
+    private int threads;
+
+    @Param({"5000"})
+    private int records;
+
+    // connection pool (db_pool_max) and SMTP limit
+    @Param({"10"})
+    private int dbLimit;
+
+    @Param({"200"})
+    private int smtpLimit;
+
+    // blocking time of CLOB read and SMTP send
+    @Param({"2"})
+    private int dbMillis;
+
+    @Param({"20"})
+    private int smtpMillis;
+
+    @Param({"false", "true"})
+    private boolean pinned;
+
+    private Semaphore database;
+    private ConcurrencyLimit smtp;
+
+    @Setup
+    public void setUp() {
+        database = new Semaphore(dbLimit, true);
+        smtp = new ConcurrencyLimit("SMTP", smtpLimit);
+    }
+
+    @Benchmark
+    public void burst() throws InterruptedException {
+        WorkerPool workers = new WorkerPool(mode, threads, 1000);
+
+        for (int i = 0; i < records; i++) {
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        database.acquire();
+                        try {
+                            block(dbMillis);
+                        } finally {
+                            database.release();
+                        }
+
+                        smtp.acquire();
+                        try {
+                            block(smtpMillis);
+                        } finally {
+                            smtp.release();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+
+        workers.shutdown();
+    }
+
+    /**
+     * Blocks worker like call to external system.
+     *
+     * @param millis Blocking time
+     * @throws InterruptedException
+     */
+    private void block(int millis) throws InterruptedException {
+        if (pinned) {
+            Object connection = new Object();
+
+            synchronized (connection) {
+                Thread.sleep(millis);
+            }
+        } else {
+            Thread.sleep(millis);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.soprasteria.notificationemail;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.log4j.Logger;
+
+/**
+ * Concurrency limit that finds capacity of external system (AIMD). Limit
+ * grows by one per window of limit calls while calls succeed and latency
+ * stays near latency without load, and is cut by backoff ratio on overload
+ * (4xx reply, timeout) or when average latency exceeds minimal latency of
+ * recent calls by tolerance ratio. Calls started before last cut do not cut
+ * limit again. Lock is used instead of monitor, so virtual thread waiting
+ * for limit does not pin its carrier thread on Java 21.
+ */
+public class AdaptiveConcurrencyLimit extends ConcurrencyLimit {
+
+    // latency samples before latency is compared, samples in window of minimal latency
+    private static final int WARMUP = 10;
+    private static final int WINDOW = 1000;
+    private final int minLimit;
+    private final int maxLimit;
+    private final double backoff;
+    private final double tolerance;
+    private double limit;
+    private int inFlight = 0;
+    private long samples = 0;
+    private double averageLatency = 0;
+    // minimal latency of previous and current window
+    private long previousMinLatency = Long.MAX_VALUE;
+    private long minLatency = Long.MAX_VALUE;
+    private long lastDecrease;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private static final Logger logger = Logger.getLogger(AdaptiveConcurrencyLimit.class);
+
+    /**
+     * AdaptiveConcurrencyLimit constructor.
+     *
+     * @param name Name of section for log
+     * @param initial Initial limit
+     * @param maxLimit Maximal limit
+     * @param backoff Ratio limit is multiplied by on overload
+     * @param tolerance Allowed ratio of average and minimal latency
+     */
+    public AdaptiveConcurrencyLimit(String name, int initial, int maxLimit, double backoff, double tolerance) {
+        super(name);
+
+        this.minLimit = 1;
+        this.maxLimit = Math.max(minLimit, maxLimit);
+        this.backoff = backoff;
+        this.tolerance = tolerance;
+        this.limit = Math.max(minLimit, Math.min(initial, this.maxLimit));
+        this.lastDecrease = System.nanoTime();
+
+        logger.info("Adaptive concurrency limit of " + name + ": " + (int) this.limit + " (maximum " + this.maxLimit + ")");
+    }
+
+    /**
+     * Enters section. Waits while current limit is reached.
+     *
+     * @throws InterruptedException
+     */
+    @Override
+    public void acquire() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (inFlight >= (int) limit) {
+                released.await();
+            }
+
+            inFlight++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Leaves section without adapting limit.
+     */
+    @Override
+    public void release() {
+        lock.lock();
+        try {
+            inFlight--;
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Leaves section and adapts limit to result of call.
+     *
+     * @param latency Duration of call in nanoseconds
+     * @param overload TRUE if external system refused call as overloaded
+     */
+    @Override
+    public void release(long latency, boolean overload) {
+        long now = System.nanoTime();
+        boolean slow = false;
+
+        lock.lock();
+        try {
+            int previous = (int) limit;
+
+            inFlight--;
+
+            if (!overload) {
+                samples++;
+                averageLatency = samples == 1 ? latency : averageLatency * 0.8 + latency * 0.2;
+                minLatency = Math.min(minLatency, latency);
+
+                if (samples % WINDOW == 0) {
+                    // latency without load can change, old minimum is forgotten
+                    previousMinLatency = minLatency;
+                    minLatency = Long.MAX_VALUE;
+                }
+
+                slow = samples > WARMUP && averageLatency > Math.min(previousMinLatency, minLatency) * tolerance;
+            }
+
+            if (overload || slow) {
+                if (now - latency >= lastDecrease) {
+                    limit = Math.max(minLimit, limit * backoff);
+                    lastDecrease = now;
+
+                    if ((int) limit != previous) {
+                        logger.info("Concurrency limit of " + getName() + " decreased to " + (int) limit + (overload ? " (overload)" : " (latency " + (long) averageLatency / 1000000 + " ms)"));
+                    }
+                }
+            } else if (inFlight + 1 >= limit / 2) {
+                // limit grows only when it is used
+                limit = Math.min(maxLimit, limit + 1 / limit);
+
+                if ((int) limit != previous) {
+                    logger.debug("Concurrency limit of " + getName() + " increased to " + (int) limit);
+                }
+            }
+
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets current limit.
+     *
+     * @return Current limit
+     */
+    @Override
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets number of workers in section.
+     *
+     * @return Workers in section
+     */
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
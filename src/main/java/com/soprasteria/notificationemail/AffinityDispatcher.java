@@ -0,0 +1,347 @@
+package com.soprasteria.notificationemail;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.PriorityQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import org.apache.log4j.Logger;
+
+/**
+ * Dispatches records of one ticket one after another (key affinity). Record
+ * whose ticket has record in progress waits until that record is released,
+ * also when it is finished later by coalescer, digester, send stage or retry
+ * scheduler; records of other tickets run in parallel. Waiting records are
+ * ordered by event time and evsysseq. Run ends when every ticket is released
+ * or held by record waiting for retry, records waiting behind it are left in
+ * eventout for next run. Order is kept only within one instance, with claims
+ * other instance can take later record of the same ticket.
+ */
+public class AffinityDispatcher implements Runnable {
+
+    // records waiting behind record in progress by ticket, kept between runs
+    // so record waiting for retry still holds its ticket
+    private static final HashMap<String, PriorityQueue<EventOutRecord>> chains = new HashMap<String, PriorityQueue<EventOutRecord>>();
+    private static final Object lock = new Object();
+    private static final Comparator<EventOutRecord> ORDER = new Comparator<EventOutRecord>() {
+        @Override
+        public int compare(EventOutRecord a, EventOutRecord b) {
+            int result = Long.compare(a.getEvTime(), b.getEvTime());
+
+            return result != 0 ? result : a.getEvSysSeq().compareTo(b.getEvSysSeq());
+        }
+    };
+    private static AffinityDispatcher current;
+    private final WorkerPool workers;
+    // successors whose predecessor was released, started by dispatcher thread
+    private final LinkedBlockingQueue<EventOutRecord> ready = new LinkedBlockingQueue<EventOutRecord>();
+    private final Thread thread;
+    // records started or ready to start and not finished by worker yet
+    private int running = 0;
+    // records of this run holding their ticket, not released nor waiting for retry
+    private final HashSet<EventOutRecord> holders = new HashSet<EventOutRecord>();
+    private boolean closed = false;
+    private static final Logger logger = Logger.getLogger(AffinityDispatcher.class);
+
+    /**
+     * AffinityDispatcher constructor.
+     *
+     * @param workers Workers of run
+     */
+    private AffinityDispatcher(WorkerPool workers) {
+        this.workers = workers;
+        this.thread = new Thread(this, "affinity-dispatch");
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Starts dispatching by ticket for one eventout run.
+     *
+     * @param workers Workers of run
+     * @return AffinityDispatcher or null if ticket affinity is disabled
+     */
+    public static AffinityDispatcher start(WorkerPool workers) {
+        if (!isEnabled()) {
+            return null;
+        }
+
+        AffinityDispatcher dispatcher = new AffinityDispatcher(workers);
+
+        synchronized (lock) {
+            current = dispatcher;
+        }
+
+        dispatcher.thread.start();
+
+        return dispatcher;
+    }
+
+    /**
+     * Checks if ticket affinity is configured.
+     *
+     * @return TRUE if records of one ticket are dispatched one after another
+     */
+    public static boolean isEnabled() {
+        return Configuration.ticket_affinity;
+    }
+
+    /**
+     * Gets ticket of record from beginning of its message.
+     *
+     * @param header Beginning of message or null if it was not fetched
+     * @return First ticket number of subject or null if record has no ticket
+     */
+    public static String getKey(String header) {
+        if (header == null) {
+            return null;
+        }
+
+        String tickets;
+        try {
+            tickets = EventOutParser.getTicketNumbers(new EventOutParser(header, Configuration.separator).getSubject());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+
+        if (tickets == null) {
+            return null;
+        }
+
+        int comma = tickets.indexOf(',');
+
+        return comma < 0 ? tickets : tickets.substring(0, comma);
+    }
+
+    /**
+     * Starts record or lets it wait for record of the same ticket in
+     * progress. Waits when all workers are busy.
+     *
+     * @param record Eventout record
+     * @throws InterruptedException
+     */
+    public void dispatch(EventOutRecord record) throws InterruptedException {
+        String key = getKey(record.getHeader());
+
+        synchronized (lock) {
+            if (key != null) {
+                PriorityQueue<EventOutRecord> chain = chains.get(key);
+
+                if (chain != null) {
+                    chain.add(record);
+
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("<" + record.getEvSysSeq() + "> -> Waiting for previous record of ticket " + key);
+                    }
+
+                    return;
+                }
+
+                chains.put(key, new PriorityQueue<EventOutRecord>(11, ORDER));
+                record.setAffinityKey(key);
+                holders.add(record);
+            }
+
+            running++;
+        }
+
+        execute(record);
+    }
+
+    /**
+     * Starts record on worker.
+     *
+     * @param record Eventout record counted as running
+     * @throws InterruptedException
+     */
+    private void execute(final EventOutRecord record) throws InterruptedException {
+        try {
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        record.run();
+                    } finally {
+                        finished();
+                    }
+                }
+            });
+        } catch (InterruptedException | RejectedExecutionException e) {
+            finished();
+            record.release();
+
+            throw e;
+        }
+    }
+
+    /**
+     * Worker finished record or record was not started.
+     */
+    private void finished() {
+        synchronized (lock) {
+            running--;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Lets next record of ticket of released record run. Called when record
+     * is finished.
+     *
+     * @param record Released record
+     */
+    public static void done(EventOutRecord record) {
+        String key = record.getAffinityKey();
+        EventOutRecord next;
+
+        if (key == null) {
+            return;
+        }
+
+        record.setAffinityKey(null);
+
+        synchronized (lock) {
+            PriorityQueue<EventOutRecord> chain = chains.get(key);
+            next = chain != null ? chain.poll() : null;
+
+            if (current != null && current.holders.remove(record)) {
+                lock.notifyAll();
+            }
+
+            if (next == null) {
+                chains.remove(key);
+
+                return;
+            }
+
+            next.setAffinityKey(key);
+
+            if (current != null && !current.closed) {
+                current.running++;
+                current.holders.add(next);
+                current.ready.add(next);
+
+                return;
+            }
+        }
+
+        // no run is dispatching, next record and its successors stay in eventout
+        next.release();
+    }
+
+    /**
+     * Record holding its ticket waits for retry, possibly longer than this
+     * run. Run does not wait for it.
+     *
+     * @param record Record scheduled for retry
+     */
+    public static void retrying(EventOutRecord record) {
+        synchronized (lock) {
+            if (current != null && current.holders.remove(record)) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Dispatcher loop. Starts records whose predecessor was released.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            EventOutRecord record;
+
+            try {
+                record = ready.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            try {
+                execute(record);
+            } catch (InterruptedException e) {
+                break;
+            } catch (RejectedExecutionException e) {
+                logger.error("<" + record.getEvSysSeq() + "> -> Unable to start eventout record", e);
+            }
+        }
+    }
+
+    /**
+     * Waits until started records and their successors are finished, also
+     * those finished later by coalescer, digester or send stage. Records
+     * still waiting behind records scheduled for retry are left in eventout
+     * for next run. Must be called after all records of run were dispatched
+     * and before workers, coalescer and digester are shut down.
+     *
+     * @throws InterruptedException
+     */
+    public void shutdown() throws InterruptedException {
+        ArrayList<EventOutRecord> left = new ArrayList<EventOutRecord>();
+
+        while (true) {
+            synchronized (lock) {
+                while (running > 0) {
+                    lock.wait();
+                }
+
+                if (holders.isEmpty()) {
+                    break;
+                }
+            }
+
+            // workers are idle, tickets are held by coalescer, digester or send stage
+            flushStages();
+
+            synchronized (lock) {
+                while (running == 0 && !holders.isEmpty()) {
+                    lock.wait();
+                }
+            }
+        }
+
+        synchronized (lock) {
+            closed = true;
+
+            if (current == this) {
+                current = null;
+            }
+
+            // ticket stays held by its deferred record
+            for (PriorityQueue<EventOutRecord> chain : chains.values()) {
+                left.addAll(chain);
+                chain.clear();
+            }
+        }
+
+        thread.interrupt();
+        thread.join();
+
+        for (int i = 0; i < left.size(); i++) {
+            left.get(i).release();
+        }
+
+        if (!left.isEmpty()) {
+            logger.info("Records left in eventout behind earlier record of the same ticket: " + left.size());
+        }
+    }
+
+    /**
+     * Sends records collected by coalescer and digester without waiting for
+     * their windows, so their successors can run.
+     *
+     * @throws InterruptedException
+     */
+    private static void flushStages() throws InterruptedException {
+        Coalescer coalescer = Coalescer.getCurrent();
+        if (coalescer != null) {
+            coalescer.flush();
+        }
+
+        Digester digester = Digester.getCurrent();
+        if (digester != null) {
+            digester.flush();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.soprasteria.notificationemail;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Circuit breaker of SMTP relay. After smtp_breaker_threshold consecutive
+ * connection or authentication failures circuit opens: dispatching of
+ * eventout records is paused and messages are not sent. Every
+ * smtp_breaker_probe_interval seconds one record is dispatched as probe
+ * (half-open), circuit closes when probe reaches relay. One-shot run is
+ * ended when circuit opens, daemon keeps probing.
+ */
+public class CircuitBreaker {
+
+    private static volatile CircuitBreaker smtp;
+    private final String name;
+    private final int threshold;
+    private final long probeInterval;
+    private State state = State.CLOSED;
+    private int failures = 0;
+    // OPEN: time of next probe, HALF_OPEN: time when probe is given up
+    private long probeTime;
+    private boolean probeAvailable = false;
+    private static final Logger logger = Logger.getLogger(CircuitBreaker.class);
+
+    /**
+     * CircuitBreaker constructor.
+     *
+     * @param name Name of relay for log
+     * @param threshold Consecutive failures that open circuit, 0 = disabled
+     * @param probeInterval Seconds between probes of open circuit
+     */
+    public CircuitBreaker(String name, int threshold, int probeInterval) {
+        this.name = name;
+        this.threshold = threshold;
+        this.probeInterval = probeInterval * 1000L;
+    }
+
+    /**
+     * Gets circuit breaker of SMTP relay.
+     *
+     * @return SMTP circuit breaker
+     */
+    public static CircuitBreaker smtp() {
+        if (smtp == null) {
+            synchronized (CircuitBreaker.class) {
+                if (smtp == null) {
+                    smtp = new CircuitBreaker("SMTP relay " + Configuration.smtp_host + ":" + Configuration.smtp_port, Configuration.smtp_breaker_threshold, Configuration.smtp_breaker_probe_interval);
+                }
+            }
+        }
+
+        return smtp;
+    }
+
+    /**
+     * Checks if sending status means that relay is not available.
+     *
+     * @param smtpStatus Sending status
+     * @return TRUE for connection and authentication failures
+     */
+    public static boolean isRelayFailure(String smtpStatus) {
+        return smtpStatus.equals("CONNECTION_REFUSED") || smtpStatus.equals("UNKNOWN_HOST") || smtpStatus.equals("SMTP_AUTHENTICATION_FAILED");
+    }
+
+    /**
+     * Checks if relay is considered down.
+     *
+     * @return TRUE if circuit is open or half-open
+     */
+    public synchronized boolean isOpen() {
+        return threshold > 0 && state != State.CLOSED;
+    }
+
+    /**
+     * Waits until next record may be dispatched. Returns at once while
+     * circuit is closed, when circuit is open returns when probe is due.
+     *
+     * @param maxWait Maximal waiting time in milliseconds
+     * @return FALSE if record may not be dispatched yet
+     * @throws InterruptedException
+     */
+    public synchronized boolean awaitDispatch(long maxWait) throws InterruptedException {
+        long end = System.currentTimeMillis() + maxWait;
+
+        while (threshold > 0 && state != State.CLOSED) {
+            long now = System.currentTimeMillis();
+
+            if (now >= probeTime) {
+                // probe is due or previous probe did not reach relay
+                state = State.HALF_OPEN;
+                probeAvailable = true;
+                probeTime = now + probeInterval;
+
+                logger.info("Circuit of " + name + " is half-open, dispatching probe");
+
+                return true;
+            }
+
+            if (now >= end) {
+                return false;
+            }
+
+            wait(Math.min(probeTime, end) - now);
+        }
+
+        return true;
+    }
+
+    /**
+     * Checks if message may be sent. While circuit is open only probe is
+     * sent.
+     *
+     * @return FALSE if message must not be sent
+     */
+    public synchronized boolean allowRequest() {
+        if (threshold <= 0 || state == State.CLOSED) {
+            return true;
+        }
+
+        if (state == State.HALF_OPEN && probeAvailable) {
+            probeAvailable = false;
+
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Records result of sent message.
+     *
+     * @param smtpStatus Sending status
+     */
+    public synchronized void record(String smtpStatus) {
+        if (threshold <= 0) {
+            return;
+        }
+
+        if (isRelayFailure(smtpStatus)) {
+            failures++;
+
+            if (state == State.HALF_OPEN || state == State.CLOSED && failures >= threshold) {
+                if (state == State.CLOSED) {
+                    logger.warn("Circuit of " + name + " opened after " + failures + " consecutive failures, dispatching is paused");
+                } else {
+                    logger.warn("Probe of " + name + " failed with " + smtpStatus);
+                }
+
+                state = State.OPEN;
+                probeAvailable = false;
+                probeTime = System.currentTimeMillis() + probeInterval;
+            }
+        } else {
+            if (state != State.CLOSED) {
+                logger.info("Circuit of " + name + " closed, dispatching is resumed");
+
+                state = State.CLOSED;
+                probeAvailable = false;
+                notifyAll();
+            }
+
+            failures = 0;
+        }
+    }
+
+    /**
+     * State of circuit.
+     */
+    private enum State {
+
+        CLOSED, OPEN, HALF_OPEN
+    }
+}
@@ -0,0 +1,175 @@
+package com.soprasteria.notificationemail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.mail.Address;
+import org.apache.log4j.Logger;
+
+/**
+ * Sends eventout records of one company with the same sender, subject, body,
+ * cc and bcc as one message to recipients of all records. Recipients are
+ * hidden in bcc, so they do not see each other. Record waits at most
+ * coalesce_window seconds for other records, group is sent earlier when it
+ * has coalesce_max_recipients recipients and at the end of run. Every record
+ * still gets its own status and SMTP log line.
+ */
+public class Coalescer extends WindowedBatcher<Coalescer.Group> {
+
+    private static volatile Coalescer current;
+    private final AtomicInteger coalescedRecords = new AtomicInteger();
+    private final AtomicInteger coalescedMessages = new AtomicInteger();
+    private static final Logger logger = Logger.getLogger(Coalescer.class);
+
+    /**
+     * Coalescer constructor.
+     */
+    private Coalescer() {
+        super("coalesce", Configuration.coalesce_window);
+    }
+
+    /**
+     * Starts coalescing for one eventout run.
+     *
+     * @return Coalescer or null if coalescing is disabled
+     */
+    public static Coalescer start() {
+        if (Configuration.coalesce_window <= 0) {
+            return null;
+        }
+
+        current = new Coalescer();
+
+        return current;
+    }
+
+    /**
+     * Gets coalescer of current run.
+     *
+     * @return Coalescer or null if coalescing is disabled
+     */
+    public static Coalescer getCurrent() {
+        return current;
+    }
+
+    /**
+     * Adds parsed record to group of records with the same content. Full
+     * group is sent by calling thread.
+     *
+     * @param record Record with prepared e-mail
+     * @return FALSE if coalescer is closed and record has to be sent alone
+     */
+    public boolean add(EventOutRecord record) {
+        // recipients of different companies are never merged
+        String key = record.getEmail().getCompany() + "\n" + record.getContentHash(false);
+
+        return add(record, Collections.singletonList(new Group(key)));
+    }
+
+    /**
+     * Sends all waiting groups and waits until they are sent. Must be called
+     * after all records of run were parsed.
+     *
+     * @throws InterruptedException
+     */
+    @Override
+    public void shutdown() throws InterruptedException {
+        super.shutdown();
+
+        if (current == this) {
+            current = null;
+        }
+
+        logger.info("Coalesced records: " + coalescedRecords.get() + " sent in " + coalescedMessages.get() + " messages");
+    }
+
+    /**
+     * Sends group as one message. When message was not delivered to all
+     * recipients, records are sent separately, so rejected address affects
+     * only its own record.
+     *
+     * @param group Group of records
+     */
+    @Override
+    protected void send(Group group) {
+        ArrayList<EventOutRecord> members = group.records;
+
+        if (members.size() == 1) {
+            members.get(0).finish(null);
+
+            return;
+        }
+
+        Email[] emails = new Email[members.size()];
+        StringBuilder eventIDs = new StringBuilder();
+
+        for (int i = 0; i < members.size(); i++) {
+            emails[i] = members.get(i).getEmail();
+
+            if (i > 0) {
+                eventIDs.append(",");
+            }
+            eventIDs.append(members.get(i).getEvSysSeq());
+        }
+
+        EventOutRecord first = members.get(0);
+        Address[] recipients = group.recipients.values().toArray(new Address[group.recipients.size()]);
+        String smtpStatus = null;
+
+        try {
+            Smtp smtp = first.createSmtp();
+
+            // failed records are logged when they are sent separately
+            smtp.setResendOnFailure(true);
+            smtpStatus = smtp.sendEmail(first.createCoalescedEmail(recipients, eventIDs.toString()), emails);
+        } catch (Throwable e) {
+            logger.error("<" + eventIDs + "> -> Unable to send coalesced e-mail", e);
+        }
+
+        if (smtpStatus == null || smtpStatus.equals("FAILURE") || smtpStatus.equals("PARTIAL_SUCCESS")) {
+            logger.warn("<" + eventIDs + "> -> Coalesced e-mail was not delivered to all recipients, records will be sent separately");
+
+            smtpStatus = null;
+        } else if (smtpStatus.equals("SUCCESS")) {
+            coalescedRecords.addAndGet(members.size());
+            coalescedMessages.incrementAndGet();
+        }
+
+        for (int i = 0; i < members.size(); i++) {
+            members.get(i).finish(smtpStatus);
+        }
+    }
+
+    /**
+     * Records with the same content.
+     */
+    static class Group extends WindowedBatcher.Batch {
+
+        // recipients by lower case address, first occurrence is kept
+        private final LinkedHashMap<String, Address> recipients = new LinkedHashMap<String, Address>();
+
+        private Group(String key) {
+            super(key);
+        }
+
+        @Override
+        void add(EventOutRecord record) {
+            super.add(record);
+
+            Address[] addresses = record.getRecipients();
+            for (int i = 0; addresses != null && i < addresses.length; i++) {
+                String address = EventOutRecord.getAddress(addresses[i]);
+
+                if (!recipients.containsKey(address)) {
+                    recipients.put(address, addresses[i]);
+                }
+            }
+        }
+
+        @Override
+        boolean isFull() {
+            return recipients.size() >= Configuration.coalesce_max_recipients;
+        }
+    }
+}
@@ -1,21 +1,23 @@
 package com.soprasteria.notificationemail;
 
-import java.util.ArrayList;
+import org.apache.log4j.Logger;
+
 /**
  *
  * @author sgacka
  */
 public class Company {
 
-    private ArrayList<CompanyRecord> company;
+    private volatile CompanyDirectory company;
     private final Database db;
+    private static final Logger logger = Logger.getLogger(Company.class);
 
     /**
      * Company constructor.
      * @param db Database object
      */
     public Company(Database db) {
-        this.company = new ArrayList<CompanyRecord>();
+        this.company = null;
         this.db = db;
     }
 
@@ -24,7 +26,20 @@ public class Company {
      * @throws Exception
      */
     public void getCompanies() throws Exception {
-        company = db.getCompanies();
+        company = new CompanyDirectory(db.getCompanies());
+    }
+
+    /**
+     * Reloads company table when loaded directory is older than configured
+     * time to live. Workers keep using previous directory while it is loaded.
+     * @throws Exception
+     */
+    public void refreshCompanies() throws Exception {
+        if (company == null || company.isExpired()) {
+            logger.info("Reloading company records");
+
+            getCompanies();
+        }
     }
 
     /**
@@ -36,21 +51,11 @@ public class Company {
     }
 
     /**
-     * Gets company record from list.
+     * Gets company record from directory.
      * @param name Name of company
      * @return Company record
      */
     public CompanyRecord getCompanyRecord(String name) {
-        for (int i=0; i < company.size(); i++)
-        {
-            CompanyRecord record = company.get(i);
-            
-            if (record.getCompany().equals(name))
-            {
-                return company.get(i);
-            }
-        }
-        
-        return null;
+        return company.get(name);
     }
-}
\ No newline at end of file
+}
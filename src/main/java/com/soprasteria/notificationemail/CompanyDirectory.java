@@ -0,0 +1,61 @@
+package com.soprasteria.notificationemail;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable company index built from companym1 records. Lookup by name is
+ * constant time, include/exclude flags and sender addresses are resolved
+ * when directory is built.
+ */
+public class CompanyDirectory {
+
+    private final Map<String, CompanyRecord> companies;
+    private final long loadTime;
+
+    /**
+     * CompanyDirectory constructor.
+     *
+     * @param records Company records
+     */
+    public CompanyDirectory(List<CompanyRecord> records) {
+        HashMap<String, CompanyRecord> index = new HashMap<String, CompanyRecord>(records.size() * 2);
+
+        for (CompanyRecord record : records) {
+            index.put(record.getCompany(), record);
+        }
+
+        this.companies = Collections.unmodifiableMap(index);
+        this.loadTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Gets company record.
+     *
+     * @param name Name of company
+     * @return Company record or null if company is unknown
+     */
+    public CompanyRecord get(String name) {
+        return companies.get(name);
+    }
+
+    /**
+     * Gets number of companies.
+     *
+     * @return Number of companies
+     */
+    public int size() {
+        return companies.size();
+    }
+
+    /**
+     * Checks if directory is older than configured time to live.
+     *
+     * @return TRUE if directory should be reloaded
+     */
+    public boolean isExpired() {
+        return System.currentTimeMillis() - loadTime > Configuration.company_ttl * 1000L;
+    }
+}
@@ -1,5 +1,9 @@
 package com.soprasteria.notificationemail;
 
+import javax.mail.Address;
+import javax.mail.internet.InternetAddress;
+import org.apache.log4j.Logger;
+
 /**
  * Class that represents CompanyRecord queue in HPSM.
  *
@@ -10,6 +14,10 @@ public class CompanyRecord {
     private final String company;
     private String senderEmail = null;
     private String senderName = null;
+    private Address sender = null;
+    private final boolean treated;
+    private final boolean digest;
+    private static final Logger logger = Logger.getLogger(CompanyRecord.class);
 
     /**
      *
@@ -26,6 +34,22 @@ public class CompanyRecord {
         if (senderEmail != null) {
             this.senderEmail = senderEmail.trim().replace(Configuration.NBSP, "");
         }
+
+        if (this.senderEmail != null) {
+            try {
+                if (this.senderName != null) {
+                    sender = new InternetAddress(this.senderEmail, this.senderName, Configuration.encoding);
+                } else {
+                    sender = new InternetAddress(this.senderEmail, this.senderEmail, Configuration.encoding);
+                }
+            } catch (Exception e) {
+                logger.error("Unable to create sender address of company " + company, e);
+            }
+        }
+
+        treated = (Configuration.include_companies == null || Configuration.include_companies.contains(company))
+                && (Configuration.exclude_companies == null || !Configuration.exclude_companies.contains(company));
+        digest = Configuration.digest_companies != null && Configuration.digest_companies.contains(company);
     }
 
     public String getCompany() {
@@ -39,4 +63,33 @@ public class CompanyRecord {
     public String getSenderName() {
         return senderName;
     }
+
+    /**
+     * Gets sender address built from sender e-mail and name.
+     *
+     * @return Sender address or null if company has no sender e-mail
+     */
+    public Address getSender() {
+        return sender;
+    }
+
+    /**
+     * Checks if records of company are treated according to
+     * include_companies and exclude_companies.
+     *
+     * @return TRUE if records are processed
+     */
+    public boolean isTreated() {
+        return treated;
+    }
+
+    /**
+     * Checks if records of company are sent as digest according to
+     * digest_companies.
+     *
+     * @return TRUE if records are collected to digests
+     */
+    public boolean isDigest() {
+        return digest;
+    }
 }
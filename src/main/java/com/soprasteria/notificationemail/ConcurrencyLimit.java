@@ -0,0 +1,116 @@
+package com.soprasteria.notificationemail;
+
+import java.util.concurrent.Semaphore;
+import org.apache.log4j.Logger;
+
+/**
+ * Limit of workers that are inside one section at the same time. With
+ * virtual threads number of workers is not limited by thread pool any more,
+ * so sections talking to external systems are limited here.
+ */
+public class ConcurrencyLimit {
+
+    private static volatile ConcurrencyLimit smtp;
+    private final String name;
+    private final int limit;
+    private final Semaphore permits;
+    private static final Logger logger = Logger.getLogger(ConcurrencyLimit.class);
+
+    /**
+     * ConcurrencyLimit constructor.
+     *
+     * @param name Name of section for log
+     * @param limit Maximal number of workers in section, 0 = unlimited
+     */
+    public ConcurrencyLimit(String name, int limit) {
+        this.name = name;
+        this.limit = limit;
+        this.permits = limit > 0 ? new Semaphore(limit, true) : null;
+
+        logger.info("Concurrency limit of " + name + ": " + (limit > 0 ? String.valueOf(limit) : "unlimited"));
+    }
+
+    /**
+     * Constructor of limit that manages its permits itself.
+     *
+     * @param name Name of section for log
+     */
+    protected ConcurrencyLimit(String name) {
+        this.name = name;
+        this.limit = 0;
+        this.permits = null;
+    }
+
+    /**
+     * Gets limit of SMTP section (smtp_concurrency, adaptive when
+     * smtp_concurrency_mode is aimd).
+     *
+     * @return SMTP limit
+     */
+    public static ConcurrencyLimit smtp() {
+        if (smtp == null) {
+            synchronized (ConcurrencyLimit.class) {
+                if (smtp == null) {
+                    if (Configuration.smtp_concurrency_mode.equals("aimd")) {
+                        smtp = new AdaptiveConcurrencyLimit("SMTP", Configuration.smtp_aimd_initial,
+                                Configuration.smtp_concurrency > 0 ? Configuration.smtp_concurrency : Configuration.worker_threads,
+                                Configuration.smtp_aimd_backoff, Configuration.smtp_aimd_latency_tolerance);
+                    } else {
+                        smtp = new ConcurrencyLimit("SMTP", Configuration.smtp_concurrency);
+                    }
+                }
+            }
+        }
+
+        return smtp;
+    }
+
+    /**
+     * Enters section. Waits while section is full.
+     *
+     * @throws InterruptedException
+     */
+    public void acquire() throws InterruptedException {
+        if (permits != null) {
+            permits.acquire();
+        }
+    }
+
+    /**
+     * Leaves section.
+     */
+    public void release() {
+        if (permits != null) {
+            permits.release();
+        }
+    }
+
+    /**
+     * Leaves section after call to external system. Fixed limit ignores
+     * result of call.
+     *
+     * @param latency Duration of call in nanoseconds
+     * @param overload TRUE if external system refused call as overloaded
+     */
+    public void release(long latency, boolean overload) {
+        release();
+    }
+
+    /**
+     * Gets name of section.
+     *
+     * @return Name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets maximal number of workers in section.
+     *
+     * @return Current limit, 0 = unlimited
+     */
+    public int getLimit() {
+        return limit;
+    }
+}
@@ -4,11 +4,14 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Date;
-import java.util.List;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.mail.Address;
@@ -28,9 +31,11 @@ public class Configuration {
     // Customer tool for which ticket should be extracted
     public static String customer_tool = null;
     // Included companies list
-    public static List<String> include_companies = null;
+    public static Set<String> include_companies = null;
     // Excluded companies list
-    public static List<String> exclude_companies = null;
+    public static Set<String> exclude_companies = null;
+    // Time to live of loaded company records (seconds)
+    public static int company_ttl = 3600;
     // Overrides notification e-mail settings
     public static Address new_sender = null;
     public static Address[] new_recipients = null;
@@ -46,6 +51,39 @@ public class Configuration {
     public static String db_host = null;
     public static int db_port = 0;
     public static String db_sid = null;
+    // JDBC URL used instead of Oracle host, port and SID (e.g. H2 stand-in)
+    public static String db_url = null;
+    // Database connection pool - min/max size (max is carrier threads in virtual mode if not configured), validation interval and timeout in seconds, statement cache size
+    public static int db_pool_min = 2;
+    public static int db_pool_max = 10;
+    public static int db_pool_validate_interval = 30;
+    public static int db_pool_validation_timeout = 5;
+    public static int db_statement_cache_size = 50;
+    // Eventout streaming - JDBC fetch size and number of fetched records waiting for dispatch
+    public static int eventout_fetch_size = 500;
+    public static int eventout_prefetch = 1000;
+    // Eventout CLOB reading - LOB prefetch and stream threshold in characters, two-phase read with header size
+    public static int lob_prefetch_size = 32768;
+    public static int lob_stream_threshold = 32768;
+    public static Boolean eventout_two_phase = Boolean.FALSE;
+    public static int eventout_header_size = 1000;
+    // Company include/exclude filter evaluated by database in eventout query (Oracle only)
+    public static Boolean eventout_company_pushdown = Boolean.TRUE;
+    // Multi-instance processing - records are claimed in chunks with lease (seconds) owned by instance_id
+    public static Boolean claim_enabled = Boolean.FALSE;
+    public static String instance_id = null;
+    public static int claim_chunk_size = 200;
+    public static int claim_lease_seconds = 300;
+    // Sent ledger - enabled flag, file path, initial size in bytes, sync to disk after every entry
+    public static Boolean ledger_enabled = Boolean.FALSE;
+    public static String ledger_path = null;
+    public static int ledger_size = 1048576;
+    public static Boolean ledger_sync = Boolean.FALSE;
+    // Eventout status writer - batch size, flush interval in ms, commit every N records or seconds
+    public static int db_batch_size = 100;
+    public static int db_batch_flush_interval = 500;
+    public static int db_commit_size = 1000;
+    public static int db_commit_interval = 10;
     // SMTP configuration
     public static String smtp_user = null;
     public static String smtp_password = null;
@@ -53,10 +91,73 @@ public class Configuration {
     public static int smtp_port = 0;
     public static Boolean smtp_req_auth = null;
     public static Boolean smtp_ssl = Boolean.FALSE;
+    // SMTP connection pool - size (0 = new connection per message), idle timeout and validation interval in seconds
+    public static int smtp_pool_size = 10;
+    public static int smtp_pool_idle_timeout = 60;
+    public static int smtp_pool_validate_interval = 5;
+    // SMTP pacing - messages per second and burst size, global and per relay (0 = unlimited), jitter in ms
+    public static double smtp_rate = 0;
+    public static int smtp_rate_burst = 1;
+    public static double smtp_relay_rate = 0;
+    public static int smtp_relay_rate_burst = 1;
+    public static int smtp_rate_jitter = 0;
+    // SMTP engine (javamail = JavaMail transport, nio = non-blocking client), selector threads, reply timeout in seconds, STARTTLS
+    public static String smtp_engine = "javamail";
+    public static int smtp_nio_threads = 2;
+    public static int smtp_timeout = 60;
+    public static Boolean smtp_starttls = Boolean.FALSE;
+    // SMTP circuit breaker - consecutive connection or authentication failures that pause dispatching (0 = disabled), probe interval in seconds
+    public static int smtp_breaker_threshold = 0;
+    public static int smtp_breaker_probe_interval = 30;
     // Log path
     private static String logPath = null;
     // Records are not removed TRUE
     public static Boolean isReadOnly = Boolean.FALSE;
+    // Eventout is polled until application is stopped when TRUE
+    public static Boolean isDaemon = Boolean.FALSE;
+    // Daemon mode - poll interval, max poll interval when eventout is empty, shutdown timeout (seconds)
+    public static int daemon_poll_interval = 60;
+    public static int daemon_max_poll_interval = 600;
+    public static int daemon_shutdown_timeout = 120;
+    // Workers - dispatch mode (pool = platform thread pool, virtual = virtual thread per record, staged = read, parse and send pools), number of workers
+    public static String dispatch_mode = WorkerPool.POOL;
+    public static int worker_threads = 100;
+    // Staged pipeline - parse threads (0 = number of processors), interval of queue depth log (seconds, 0 = end of run only)
+    public static int pipeline_parse_threads = 0;
+    public static int pipeline_metrics_interval = 60;
+    // Maximal number of workers sending through SMTP at the same time, 0 = unlimited (carrier threads in virtual mode with JavaMail engine)
+    public static int smtp_concurrency = 0;
+    // SMTP concurrency mode (fixed = smtp_concurrency, aimd = adaptive up to smtp_concurrency or worker_threads), initial limit, backoff ratio, latency tolerance ratio
+    public static String smtp_concurrency_mode = "fixed";
+    public static int smtp_aimd_initial = 10;
+    public static double smtp_aimd_backoff = 0.7;
+    public static double smtp_aimd_latency_tolerance = 2.0;
+    // Coalescing of records with the same content - window in seconds (0 = disabled), maximal number of recipients
+    public static int coalesce_window = 0;
+    public static int coalesce_max_recipients = 50;
+    // Duplicate suppression - window in seconds (0 = disabled), maximal number of remembered e-mails, cache file path
+    public static int duplicate_window = 0;
+    public static int duplicate_max_entries = 100000;
+    public static String duplicate_path = null;
+    // Digest mode - companies whose records are sent to every recipient as digest, window in seconds, maximal number of records
+    public static Set<String> digest_companies = null;
+    public static int digest_window = 300;
+    public static int digest_max_records = 50;
+    // Retries of transient failures - delay of first retry and maximal delay, age after which record is marked as error (seconds, 0 = disabled)
+    public static int retry_initial_delay = 30;
+    public static int retry_max_delay = 600;
+    public static int retry_max_age = 0;
+    // Priority lanes - lanes of ticket prefixes and companies (PREFIX:lane, 1 = most urgent), lane of other records, waiting time promoting record by one lane (seconds)
+    public static Map<String, Integer> priority_tickets = null;
+    public static Map<String, Integer> priority_companies = null;
+    public static int priority_default = 3;
+    public static int priority_max_age = 600;
+    // Fair queuing by company - enabled, weights of companies (COMPANY:weight, default 1), rate quotas of companies (COMPANY:records per minute)
+    public static Boolean fair_queuing = Boolean.FALSE;
+    public static Map<String, Integer> company_weights = null;
+    public static Map<String, Integer> company_rate_limits = null;
+    // Records of one ticket are sent one after another in order of events
+    public static Boolean ticket_affinity = Boolean.FALSE;
     // E-mail encoding
     public static String encoding = null;
     // Execution time variable - start time
@@ -138,23 +239,28 @@ public class Configuration {
         String temp;
         temp = properities.getProperty("include_companies");
         if (temp != null && temp.isEmpty() == false) {
-            include_companies = Arrays.asList(temp.toUpperCase().split(","));
+            include_companies = new LinkedHashSet<String>();
 
-            for (int i = 0; i < include_companies.size(); i++) {
-                include_companies.set(i, include_companies.get(i).trim());
+            for (String name : temp.toUpperCase().split(",")) {
+                include_companies.add(name.trim());
             }
         }
 
         // validate notification Time Zone
         temp = properities.getProperty("exclude_companies");
         if (temp != null && temp.isEmpty() == false) {
-            exclude_companies = Arrays.asList(temp.toUpperCase().split(","));
+            exclude_companies = new LinkedHashSet<String>();
 
-            for (int i = 0; i < exclude_companies.size(); i++) {
-                exclude_companies.set(i, exclude_companies.get(i).trim());
+            for (String name : temp.toUpperCase().split(",")) {
+                exclude_companies.add(name.trim());
             }
         }
 
+        // validate company records time to live
+        if (getNumber(properities.getProperty("company_ttl")) > 0) {
+            company_ttl = getNumber(properities.getProperty("company_ttl"));
+        }
+
         // validate e-mail encoding
         encoding = properities.getProperty("email_encoding");
         if (encoding == null || encoding.isEmpty()) {
@@ -167,6 +273,141 @@ public class Configuration {
             separator = "^";
         }
 
+        // validate daemon mode
+        if (getNumber(properities.getProperty("daemon_poll_interval")) > 0) {
+            daemon_poll_interval = getNumber(properities.getProperty("daemon_poll_interval"));
+        }
+
+        if (getNumber(properities.getProperty("daemon_max_poll_interval")) > 0) {
+            daemon_max_poll_interval = getNumber(properities.getProperty("daemon_max_poll_interval"));
+        }
+
+        if (daemon_max_poll_interval < daemon_poll_interval) {
+            daemon_max_poll_interval = daemon_poll_interval;
+        }
+
+        if (getNumber(properities.getProperty("daemon_shutdown_timeout")) > 0) {
+            daemon_shutdown_timeout = getNumber(properities.getProperty("daemon_shutdown_timeout"));
+        }
+
+        // validate workers
+        temp = properities.getProperty("dispatch_mode");
+        if (temp != null && !temp.trim().isEmpty()) {
+            dispatch_mode = temp.trim().toLowerCase();
+
+            if (!dispatch_mode.equals(WorkerPool.POOL) && !dispatch_mode.equals(WorkerPool.VIRTUAL) && !dispatch_mode.equals(WorkerPool.STAGED)) {
+                System.out.println("Dispatch mode " + temp + " is not valid, use " + WorkerPool.POOL + ", " + WorkerPool.VIRTUAL + " or " + WorkerPool.STAGED + "!");
+                System.exit(1);
+            }
+        }
+
+        if (getNumber(properities.getProperty("worker_threads")) > 0) {
+            worker_threads = getNumber(properities.getProperty("worker_threads"));
+        }
+
+        pipeline_parse_threads = getNumber(properities.getProperty("pipeline_parse_threads"));
+        if (pipeline_parse_threads <= 0) {
+            pipeline_parse_threads = Runtime.getRuntime().availableProcessors();
+        }
+
+        if (properities.getProperty("pipeline_metrics_interval") != null) {
+            pipeline_metrics_interval = getNumber(properities.getProperty("pipeline_metrics_interval"));
+        }
+
+        if (getNumber(properities.getProperty("smtp_concurrency")) > 0) {
+            smtp_concurrency = getNumber(properities.getProperty("smtp_concurrency"));
+        }
+
+        temp = properities.getProperty("smtp_concurrency_mode");
+        if (temp != null && !temp.trim().isEmpty()) {
+            smtp_concurrency_mode = temp.trim().toLowerCase();
+
+            if (!smtp_concurrency_mode.equals("fixed") && !smtp_concurrency_mode.equals("aimd")) {
+                System.out.println("SMTP concurrency mode " + temp + " is not valid, use fixed or aimd!");
+                System.exit(1);
+            }
+        }
+
+        if (getNumber(properities.getProperty("smtp_aimd_initial")) > 0) {
+            smtp_aimd_initial = getNumber(properities.getProperty("smtp_aimd_initial"));
+        }
+
+        if (getDecimal(properities.getProperty("smtp_aimd_backoff")) > 0 && getDecimal(properities.getProperty("smtp_aimd_backoff")) < 1) {
+            smtp_aimd_backoff = getDecimal(properities.getProperty("smtp_aimd_backoff"));
+        }
+
+        if (getDecimal(properities.getProperty("smtp_aimd_latency_tolerance")) > 1) {
+            smtp_aimd_latency_tolerance = getDecimal(properities.getProperty("smtp_aimd_latency_tolerance"));
+        }
+
+        // validate coalescing
+        coalesce_window = getNumber(properities.getProperty("coalesce_window"));
+
+        if (getNumber(properities.getProperty("coalesce_max_recipients")) > 0) {
+            coalesce_max_recipients = getNumber(properities.getProperty("coalesce_max_recipients"));
+        }
+
+        // validate duplicate suppression
+        duplicate_window = getNumber(properities.getProperty("duplicate_window"));
+        duplicate_path = properities.getProperty("duplicate_path");
+
+        if (getNumber(properities.getProperty("duplicate_max_entries")) > 0) {
+            duplicate_max_entries = getNumber(properities.getProperty("duplicate_max_entries"));
+        }
+
+        // validate digest mode
+        temp = properities.getProperty("digest_companies");
+        if (temp != null && temp.isEmpty() == false) {
+            digest_companies = new LinkedHashSet<String>();
+
+            for (String name : temp.toUpperCase().split(",")) {
+                digest_companies.add(name.trim());
+            }
+        }
+
+        if (getNumber(properities.getProperty("digest_window")) > 0) {
+            digest_window = getNumber(properities.getProperty("digest_window"));
+        }
+
+        if (getNumber(properities.getProperty("digest_max_records")) > 0) {
+            digest_max_records = getNumber(properities.getProperty("digest_max_records"));
+        }
+
+        // validate retries
+        retry_max_age = getNumber(properities.getProperty("retry_max_age"));
+
+        if (getNumber(properities.getProperty("retry_initial_delay")) > 0) {
+            retry_initial_delay = getNumber(properities.getProperty("retry_initial_delay"));
+        }
+
+        if (getNumber(properities.getProperty("retry_max_delay")) > 0) {
+            retry_max_delay = getNumber(properities.getProperty("retry_max_delay"));
+        }
+
+        if (retry_max_delay < retry_initial_delay) {
+            retry_max_delay = retry_initial_delay;
+        }
+
+        // validate priority lanes
+        priority_tickets = getRules("priority_tickets", properities.getProperty("priority_tickets"));
+        priority_companies = getRules("priority_companies", properities.getProperty("priority_companies"));
+
+        if (getNumber(properities.getProperty("priority_default")) > 0) {
+            priority_default = getNumber(properities.getProperty("priority_default"));
+        }
+
+        if (getNumber(properities.getProperty("priority_max_age")) > 0) {
+            priority_max_age = getNumber(properities.getProperty("priority_max_age"));
+        }
+
+        // validate fair queuing
+        fair_queuing = Boolean.parseBoolean(properities.getProperty("fair_queuing"));
+        company_weights = getRules("company_weights", properities.getProperty("company_weights"));
+        company_rate_limits = getRules("company_rate_limits", properities.getProperty("company_rate_limits"));
+
+        // validate ticket affinity
+        ticket_affinity = Boolean.parseBoolean(properities.getProperty("ticket_affinity"));
+
         // validate e-mail address validation flag
         Boolean email_val = Boolean.parseBoolean(properities.getProperty("validate_email"));
         if (email_val) {
@@ -195,6 +436,11 @@ public class Configuration {
         db_host = properities.getProperty("db_host");
         db_port = getNumber(properities.getProperty("db_port"));
         db_sid = properities.getProperty("db_sid");
+        db_url = properities.getProperty("db_url");
+
+        if (db_url != null && db_url.trim().isEmpty()) {
+            db_url = null;
+        }
 
         if (db_user == null || db_user.isEmpty()) {
             System.out.println("NotificationEmail - Database user was not provided!");
@@ -205,19 +451,125 @@ public class Configuration {
             System.out.println("NotificationEmail - Warning! - Database password was not provided");
         }
 
-        if (db_host == null || db_host.isEmpty()) {
-            System.out.println("NotificationEmail - Database host was not provided!");
-            System.exit(1);
+        if (db_url == null) {
+            if (db_host == null || db_host.isEmpty()) {
+                System.out.println("NotificationEmail - Database host was not provided!");
+                System.exit(1);
+            }
+
+            if (db_port < 1 || db_port > 65535) {
+                System.out.println("NotificationEmail - Database port is out of range!");
+                System.exit(1);
+            }
+
+            if (db_sid == null || db_sid.isEmpty()) {
+                System.out.println("NotificationEmail - Database user was not provided!");
+                System.exit(1);
+            }
         }
 
-        if (db_port < 1 || db_port > 65535) {
-            System.out.println("NotificationEmail - Database port is out of range!");
-            System.exit(1);
+        // validate connection pool
+        String temp = properities.getProperty("db_pool_min");
+        if (temp != null && temp.isEmpty() == false) {
+            db_pool_min = getNumber(temp.trim());
         }
 
-        if (db_sid == null || db_sid.isEmpty()) {
-            System.out.println("NotificationEmail - Database user was not provided!");
-            System.exit(1);
+        if (getNumber(properities.getProperty("db_pool_max")) > 0) {
+            db_pool_max = getNumber(properities.getProperty("db_pool_max"));
+        }
+
+        if (db_pool_min > db_pool_max) {
+            db_pool_min = db_pool_max;
+        }
+
+        if (getNumber(properities.getProperty("db_pool_validate_interval")) > 0) {
+            db_pool_validate_interval = getNumber(properities.getProperty("db_pool_validate_interval"));
+        }
+
+        if (getNumber(properities.getProperty("db_pool_validation_timeout")) > 0) {
+            db_pool_validation_timeout = getNumber(properities.getProperty("db_pool_validation_timeout"));
+        }
+
+        temp = properities.getProperty("db_statement_cache_size");
+        if (temp != null && temp.isEmpty() == false) {
+            db_statement_cache_size = getNumber(temp.trim());
+        }
+
+        // validate eventout streaming
+        if (getNumber(properities.getProperty("eventout_fetch_size")) > 0) {
+            eventout_fetch_size = getNumber(properities.getProperty("eventout_fetch_size"));
+        }
+
+        if (getNumber(properities.getProperty("eventout_prefetch")) > 0) {
+            eventout_prefetch = getNumber(properities.getProperty("eventout_prefetch"));
+        }
+
+        // validate eventout CLOB reading
+        String lobPrefetchSize = properities.getProperty("lob_prefetch_size");
+        if (lobPrefetchSize != null && !lobPrefetchSize.trim().isEmpty()) {
+            // 0 disables prefetch
+            lob_prefetch_size = getNumber(lobPrefetchSize.trim());
+        }
+
+        if (getNumber(properities.getProperty("lob_stream_threshold")) > 0) {
+            lob_stream_threshold = getNumber(properities.getProperty("lob_stream_threshold"));
+        }
+
+        eventout_two_phase = Boolean.parseBoolean(properities.getProperty("eventout_two_phase"));
+
+        if (getNumber(properities.getProperty("eventout_header_size")) > 0) {
+            // DBMS_LOB.SUBSTR in SQL returns VARCHAR2 limited to 4000 bytes, Database limits it by character set
+            eventout_header_size = Math.min(getNumber(properities.getProperty("eventout_header_size")), 4000);
+        }
+
+        temp = properities.getProperty("eventout_company_pushdown");
+        if (temp != null && !temp.trim().isEmpty()) {
+            eventout_company_pushdown = Boolean.parseBoolean(temp.trim());
+        }
+
+        // validate multi-instance claiming
+        claim_enabled = Boolean.parseBoolean(properities.getProperty("claim_enabled"));
+
+        instance_id = properities.getProperty("instance_id");
+        if (instance_id == null || instance_id.trim().isEmpty()) {
+            // pid@host
+            instance_id = ManagementFactory.getRuntimeMXBean().getName();
+        } else {
+            instance_id = instance_id.trim();
+        }
+
+        if (getNumber(properities.getProperty("claim_chunk_size")) > 0) {
+            claim_chunk_size = getNumber(properities.getProperty("claim_chunk_size"));
+        }
+
+        if (getNumber(properities.getProperty("claim_lease_seconds")) > 0) {
+            claim_lease_seconds = getNumber(properities.getProperty("claim_lease_seconds"));
+        }
+
+        // validate sent ledger
+        ledger_enabled = Boolean.parseBoolean(properities.getProperty("ledger_enabled"));
+        ledger_sync = Boolean.parseBoolean(properities.getProperty("ledger_sync"));
+        ledger_path = properities.getProperty("ledger_path");
+
+        if (getNumber(properities.getProperty("ledger_size")) > 0) {
+            ledger_size = getNumber(properities.getProperty("ledger_size"));
+        }
+
+        // validate eventout status writer
+        if (getNumber(properities.getProperty("db_batch_size")) > 0) {
+            db_batch_size = getNumber(properities.getProperty("db_batch_size"));
+        }
+
+        if (getNumber(properities.getProperty("db_batch_flush_interval")) > 0) {
+            db_batch_flush_interval = getNumber(properities.getProperty("db_batch_flush_interval"));
+        }
+
+        if (getNumber(properities.getProperty("db_commit_size")) > 0) {
+            db_commit_size = getNumber(properities.getProperty("db_commit_size"));
+        }
+
+        if (getNumber(properities.getProperty("db_commit_interval")) > 0) {
+            db_commit_interval = getNumber(properities.getProperty("db_commit_interval"));
         }
     }
 
@@ -266,6 +618,77 @@ public class Configuration {
             System.out.println("NotificationEmail - SMTP port is out of range!");
             System.exit(1);
         }
+
+        // validate SMTP connection pool
+        String temp = properities.getProperty("smtp_pool_size");
+        if (temp != null && temp.isEmpty() == false) {
+            smtp_pool_size = getNumber(temp.trim());
+        }
+
+        temp = properities.getProperty("smtp_pool_idle_timeout");
+        if (getNumber(temp) > 0) {
+            smtp_pool_idle_timeout = getNumber(temp);
+        }
+
+        temp = properities.getProperty("smtp_pool_validate_interval");
+        if (temp != null && temp.isEmpty() == false) {
+            smtp_pool_validate_interval = getNumber(temp.trim());
+        }
+
+        // validate SMTP pacing
+        smtp_rate = getDecimal(properities.getProperty("smtp_rate"));
+        smtp_relay_rate = getDecimal(properities.getProperty("smtp_relay_rate"));
+        smtp_rate_jitter = getNumber(properities.getProperty("smtp_rate_jitter"));
+
+        if (getNumber(properities.getProperty("smtp_rate_burst")) > 0) {
+            smtp_rate_burst = getNumber(properities.getProperty("smtp_rate_burst"));
+        }
+
+        if (getNumber(properities.getProperty("smtp_relay_rate_burst")) > 0) {
+            smtp_relay_rate_burst = getNumber(properities.getProperty("smtp_relay_rate_burst"));
+        }
+
+        // validate SMTP engine
+        temp = properities.getProperty("smtp_engine");
+        if (temp != null && !temp.trim().isEmpty()) {
+            smtp_engine = temp.trim().toLowerCase();
+
+            if (!smtp_engine.equals("javamail") && !smtp_engine.equals("nio")) {
+                System.out.println("SMTP engine " + temp + " is not valid, use javamail or nio!");
+                System.exit(1);
+            }
+        }
+
+        if (getNumber(properities.getProperty("smtp_nio_threads")) > 0) {
+            smtp_nio_threads = getNumber(properities.getProperty("smtp_nio_threads"));
+        }
+
+        if (getNumber(properities.getProperty("smtp_timeout")) > 0) {
+            smtp_timeout = getNumber(properities.getProperty("smtp_timeout"));
+        }
+
+        smtp_starttls = Boolean.parseBoolean(properities.getProperty("smtp_starttls"));
+
+        // validate SMTP circuit breaker
+        smtp_breaker_threshold = getNumber(properities.getProperty("smtp_breaker_threshold"));
+
+        if (getNumber(properities.getProperty("smtp_breaker_probe_interval")) > 0) {
+            smtp_breaker_probe_interval = getNumber(properities.getProperty("smtp_breaker_probe_interval"));
+        }
+
+        // JavaMail and Oracle driver block inside synchronized methods, virtual thread there pins its carrier thread
+        if (dispatch_mode.equals(WorkerPool.VIRTUAL)) {
+            int carriers = WorkerPool.getCarrierThreads();
+
+            if (smtp_concurrency == 0 && smtp_engine.equals("javamail")) {
+                smtp_concurrency = carriers;
+            }
+
+            if (getNumber(properities.getProperty("db_pool_max")) <= 0) {
+                db_pool_max = Math.min(db_pool_max, carriers);
+                db_pool_min = Math.min(db_pool_min, db_pool_max);
+            }
+        }
     }
 
     /**
@@ -283,6 +706,14 @@ public class Configuration {
             System.exit(1);
         }
 
+        if (ledger_path == null || ledger_path.isEmpty()) {
+            ledger_path = new File(logPath, customer_tool + "_SENT.ledger").getPath();
+        }
+
+        if (duplicate_path == null || duplicate_path.isEmpty()) {
+            duplicate_path = new File(logPath, customer_tool + "_DUPLICATE.cache").getPath();
+        }
+
         properities.setProperty("log.dir", logPath);
         properities.setProperty("log4j.appender.A2.file", "${log.dir}/" + customer_tool + "_NOTIFICATION_EMAIL.log");
     }
@@ -294,6 +725,13 @@ public class Configuration {
         matchingNotificationsCount++;
     }
 
+    /**
+     * Resets matching notification counter before next eventout poll.
+     */
+    public synchronized static void resetNotificationsCount() {
+        matchingNotificationsCount = 0;
+    }
+
     /**
      * Gets matching notification counter.
      *
@@ -303,6 +741,36 @@ public class Configuration {
         return "Total notifications found: " + matchingNotificationsCount;
     }
 
+    /**
+     * Converts list of rules (NAME:number, ...) to map. Exits when number is
+     * not valid.
+     *
+     * @param key Name of property
+     * @param val List of rules
+     * @return Numbers by upper case name or null if list is empty
+     */
+    private static Map<String, Integer> getRules(String key, String val) {
+        if (val == null || val.trim().isEmpty()) {
+            return null;
+        }
+
+        Map<String, Integer> lanes = new HashMap<String, Integer>();
+
+        for (String rule : val.toUpperCase().split(",")) {
+            int colon = rule.lastIndexOf(':');
+            int lane = colon > 0 ? getNumber(rule.substring(colon + 1).trim()) : 0;
+
+            if (lane <= 0) {
+                System.out.println("Rule " + rule.trim() + " of " + key + " is not valid, use NAME:number with number 1 or higher!");
+                System.exit(1);
+            }
+
+            lanes.put(rule.substring(0, colon).trim(), lane);
+        }
+
+        return lanes;
+    }
+
     /**
      * Converts safely string to number.
      *
@@ -325,6 +793,24 @@ public class Configuration {
         return Integer.parseInt(val);
     }
 
+    /**
+     * Converts safely string to decimal number.
+     *
+     * @param val String with number
+     * @return Double value of string or 0 if it is not a positive number
+     */
+    public static double getDecimal(String val) {
+        if (val == null || val.trim().isEmpty()) {
+            return 0;
+        }
+
+        try {
+            return Math.max(0, Double.parseDouble(val.trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
     /**
      *
      *
@@ -0,0 +1,164 @@
+package com.soprasteria.notificationemail;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Semaphore;
+import org.apache.log4j.Logger;
+
+/**
+ * Pool of database connections used by eventout workers, so reads and writes
+ * of different workers do not wait for one shared connection.
+ */
+public class ConnectionPool {
+
+    private final ConnectionFactory factory;
+    private final Semaphore permits;
+    private final ArrayDeque<PooledConnection> idle = new ArrayDeque<PooledConnection>();
+    private boolean closed = false;
+    private static final Logger logger = Logger.getLogger(ConnectionPool.class);
+
+    /**
+     * ConnectionPool constructor. Opens minimal number of connections.
+     *
+     * @param factory Factory of new connections
+     * @throws SQLException
+     */
+    public ConnectionPool(ConnectionFactory factory) throws SQLException {
+        this.factory = factory;
+        this.permits = new Semaphore(Configuration.db_pool_max, true);
+
+        for (int i = 0; i < Configuration.db_pool_min; i++) {
+            idle.push(new PooledConnection(factory.create()));
+        }
+
+        logger.info("Database connection pool created (min: " + Configuration.db_pool_min + ", max: " + Configuration.db_pool_max + ")");
+    }
+
+    /**
+     * Borrows connection from pool. Waits when all connections are in use.
+     * Connection that was idle longer than validation interval is checked
+     * before it is returned.
+     *
+     * @return Open connection
+     * @throws SQLException
+     */
+    public Connection borrow() throws SQLException {
+        permits.acquireUninterruptibly();
+
+        try {
+            long now = System.currentTimeMillis();
+            PooledConnection pooled;
+
+            while ((pooled = pollIdle()) != null) {
+                if (now - pooled.lastUsed > Configuration.db_pool_validate_interval * 1000L
+                        && !pooled.connection.isValid(Configuration.db_pool_validation_timeout)) {
+                    logger.warn("Discarding invalid database connection");
+                    closeQuietly(pooled.connection);
+                } else {
+                    return pooled.connection;
+                }
+            }
+
+            return factory.create();
+        } catch (SQLException e) {
+            permits.release();
+
+            throw e;
+        } catch (RuntimeException e) {
+            permits.release();
+
+            throw e;
+        }
+    }
+
+    /**
+     * Returns connection to pool.
+     *
+     * @param connection Borrowed connection
+     */
+    public void release(Connection connection) {
+        boolean reusable;
+
+        try {
+            reusable = !connection.isClosed();
+        } catch (SQLException e) {
+            reusable = false;
+        }
+
+        synchronized (idle) {
+            if (reusable && !closed) {
+                idle.push(new PooledConnection(connection));
+            } else {
+                closeQuietly(connection);
+            }
+        }
+
+        permits.release();
+    }
+
+    /**
+     * Closes pool and all idle connections.
+     */
+    public void close() {
+        synchronized (idle) {
+            closed = true;
+
+            while (!idle.isEmpty()) {
+                closeQuietly(idle.poll().connection);
+            }
+        }
+    }
+
+    /**
+     * Gets most recently used idle connection.
+     *
+     * @return Idle connection or null
+     */
+    private PooledConnection pollIdle() {
+        synchronized (idle) {
+            return idle.poll();
+        }
+    }
+
+    /**
+     * Closes connection and ignores errors.
+     *
+     * @param connection Connection
+     */
+    private static void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (Throwable e) {
+            // nothing
+        }
+    }
+
+    /**
+     * Factory of new database connections.
+     */
+    public interface ConnectionFactory {
+
+        /**
+         * Opens new connection.
+         *
+         * @return Open connection
+         * @throws SQLException
+         */
+        Connection create() throws SQLException;
+    }
+
+    /**
+     * Connection kept in pool.
+     */
+    private static class PooledConnection {
+
+        private final Connection connection;
+        private final long lastUsed;
+
+        private PooledConnection(Connection connection) {
+            this.connection = connection;
+            this.lastUsed = System.currentTimeMillis();
+        }
+    }
+}
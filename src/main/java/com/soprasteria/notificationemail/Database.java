@@ -1,11 +1,28 @@
 package com.soprasteria.notificationemail;
 
+import java.io.Reader;
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import oracle.jdbc.OracleConnection;
+import oracle.jdbc.OracleStatement;
 import oracle.jdbc.pool.OracleDataSource;
 import org.apache.log4j.Logger;
 
@@ -21,7 +38,19 @@ public class Database {
     private final String host;
     private final int port;
     private final String sid;
-    private OracleConnection connection;
+    private Connection connection;
+    private ConnectionPool pool;
+    private ConnectionPool.ConnectionFactory connectionFactory;
+    private Connection writerConnection;
+    private volatile StatusWriter statusWriter;
+    private SentLedger ledger;
+    private boolean isOracle;
+    // characters of message read as header, VARCHAR2 of DBMS_LOB.SUBSTR is limited to 4000 bytes
+    private int headerSize = Configuration.eventout_header_size;
+    // Records claimed by this instance and still in progress
+    private final Set<String> claimed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private ScheduledExecutorService leaseRenewal;
+    private static final String EVENTOUT_CONDITION = "evtype = 'email' and (evstatus is null or evstatus not in ('error', 'warning', 'duplicate')) and evtime IS NOT NULL and evsysseq IS NOT NULL";
     private static final Logger logger = Logger.getLogger(Database.class);
 
     /**
@@ -42,23 +71,89 @@ public class Database {
     }
 
     /**
-     * Opens connection to database.
+     * Opens connection to database. Eventout fetch and status writer get
+     * their own connections, workers use connection pool.
      */
     public void connect() {
         try {
-            OracleDataSource ods = new OracleDataSource();
+            ConnectionPool.ConnectionFactory factory;
 
-            ods.setDriverType("thin");
-            ods.setUser(user);
-            ods.setPassword(password);
-            ods.setServerName(host);
-            ods.setPortNumber(port);
-            ods.setDatabaseName(sid); // sid
+            if (Configuration.db_url == null) {
+                final OracleDataSource ods = new OracleDataSource();
 
-            logger.info("Connecting to database... (User: " + Configuration.db_user + ", Host: " + Configuration.db_host + ", Port: " + Configuration.db_port + ")");
+                ods.setDriverType("thin");
+                ods.setUser(user);
+                ods.setPassword(password);
+                ods.setServerName(host);
+                ods.setPortNumber(port);
+                ods.setDatabaseName(sid); // sid
 
-            connection = (OracleConnection) (ods.getConnection());
-            connection.setDefaultExecuteBatch(100);
+                logger.info("Connecting to database... (User: " + Configuration.db_user + ", Host: " + Configuration.db_host + ", Port: " + Configuration.db_port + ")");
+
+                factory = new ConnectionPool.ConnectionFactory() {
+                    @Override
+                    public Connection create() throws SQLException {
+                        return prepareConnection(ods.getConnection());
+                    }
+                };
+            } else {
+                logger.info("Connecting to database... (User: " + Configuration.db_user + ", URL: " + Configuration.db_url + ")");
+
+                factory = new ConnectionPool.ConnectionFactory() {
+                    @Override
+                    public Connection create() throws SQLException {
+                        return prepareConnection(DriverManager.getConnection(Configuration.db_url, user, password));
+                    }
+                };
+            }
+
+            connectionFactory = factory;
+            connection = factory.create();
+            isOracle = connection.getMetaData().getDatabaseProductName().toUpperCase().contains("ORACLE");
+
+            if (isOracle) {
+                headerSize = Math.min(Configuration.eventout_header_size, getHeaderLimit());
+
+                if (headerSize < Configuration.eventout_header_size) {
+                    logger.info("Header size limited to " + headerSize + " characters by database character set");
+                }
+            }
+
+            pool = new ConnectionPool(factory);
+
+            if (Configuration.ledger_enabled) {
+                ledger = new SentLedger(Configuration.ledger_path);
+            }
+
+            writerConnection = factory.create();
+            statusWriter = new StatusWriter(writerConnection, ledger);
+            statusWriter.start();
+
+            if (ledger != null) {
+                ledger.replay(this);
+            }
+
+            if (Configuration.claim_enabled) {
+                logger.info("Eventout records are claimed by instance " + Configuration.instance_id + " (lease: " + Configuration.claim_lease_seconds + " seconds)");
+
+                leaseRenewal = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "eventout-lease");
+                        thread.setDaemon(true);
+
+                        return thread;
+                    }
+                });
+
+                long period = Math.max(1, Configuration.claim_lease_seconds / 3);
+                leaseRenewal.scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        renewClaims();
+                    }
+                }, period, period, TimeUnit.SECONDS);
+            }
         } catch (Throwable e) {
             logger.fatal("Unable to connect to database", e);
 
@@ -72,14 +167,47 @@ public class Database {
         }
     }
 
+    /**
+     * Enables implicit statement cache on Oracle connections.
+     *
+     * @param conn New connection
+     * @return Prepared connection
+     * @throws SQLException
+     */
+    private Connection prepareConnection(Connection conn) throws SQLException {
+        if (Configuration.db_statement_cache_size > 0 && conn.isWrapperFor(OracleConnection.class)) {
+            OracleConnection oracleConnection = conn.unwrap(OracleConnection.class);
+
+            oracleConnection.setImplicitCachingEnabled(true);
+            oracleConnection.setStatementCacheSize(Configuration.db_statement_cache_size);
+        }
+
+        return conn;
+    }
+
     /**
      * Closes connection to database.
      */
     public void disconnect() {
         try {
+            if (leaseRenewal != null) {
+                leaseRenewal.shutdownNow();
+            }
+
+            statusWriter.stop();
+            pool.close();
+
+            if (ledger != null) {
+                ledger.close();
+            }
+
             if (!connection.isClosed()) {
                 connection.close();
             }
+
+            if (!writerConnection.isClosed()) {
+                writerConnection.close();
+            }
         } catch (Throwable e) {
             logger.error("Unable to close connection to database", e);
         } finally {
@@ -88,39 +216,730 @@ public class Database {
     }
 
     /**
-     * Commits changes to database.
+     * Opens again connections of eventout fetch and status writer that were
+     * lost. Pooled connections are validated by pool. Called by daemon
+     * between polls.
+     *
+     * @throws Exception
+     */
+    public void reconnect() throws Exception {
+        validateConnection();
+
+        if (!writerConnection.isValid(Configuration.db_pool_validation_timeout)) {
+            logger.warn("Connection of status writer has been lost, reconnecting...");
+
+            // old writer keeps running until new connection is opened
+            Connection replacement = connectionFactory.create();
+
+            // changes that cannot be written stay in eventout, claims expire
+            statusWriter.stop();
+
+            try {
+                writerConnection.close();
+            } catch (Throwable e) {
+                // nothing
+            }
+
+            writerConnection = replacement;
+
+            StatusWriter writer = new StatusWriter(writerConnection, ledger);
+            writer.start();
+            statusWriter = writer;
+        }
+    }
+
+    /**
+     * Opens again connection of eventout fetch if it was lost.
+     *
+     * @throws SQLException
+     */
+    private void validateConnection() throws SQLException {
+        if (!connection.isValid(Configuration.db_pool_validation_timeout)) {
+            logger.warn("Connection to database has been lost, reconnecting...");
+
+            try {
+                connection.close();
+            } catch (Throwable e) {
+                // nothing
+            }
+
+            connection = connectionFactory.create();
+        }
+    }
+
+    /**
+     * Gets number of status changes waiting for writer thread.
+     *
+     * @return Queue depth
+     */
+    public int getStatusQueueDepth() {
+        return statusWriter != null ? statusWriter.getQueueDepth() : 0;
+    }
+
+    /**
+     * Writes queued status changes and commits them to database.
      */
     public void commit() {
         try {
-            connection.commit();
+            statusWriter.checkpoint();
         } catch (Throwable e) {
             logger.error("Unable to commit changes to database", e);
         }
     }
 
     /**
-     * Gets list of eventout records.
+     * Fetches eventout records and passes them to eventout queue as they
+     * arrive.
      *
-     * @return List of eventout records
+     * @param eventOut Eventout queue
+     * @param companyReocrds Company object
      * @throws Exception
      */
-    public ArrayList<EventOutRecord> getEventOutRecords() throws Exception {
-        Company companyReocrds = new Company(this);
-        companyReocrds.getCompanies();
+    public void getEventOutRecords(EventOut eventOut, Company companyReocrds) throws Exception {
+        validateConnection();
 
-        ArrayList<EventOutRecord> records = new ArrayList<EventOutRecord>();
+        if (Configuration.claim_enabled) {
+            claimEventOutRecords(eventOut, companyReocrds);
+        } else {
+            String query = "SELECT " + getEventTimeColumn() + ", evsysseq" + getHeaderColumn("evfields") + " FROM eventoutm1 WHERE " + EVENTOUT_CONDITION + getCompanyCondition("evfields") + getOrderBy("");
+            Statement statement = connection.createStatement();
 
-        String query = "SELECT evfields, CAST(FROM_TZ(CAST(evtime AS TIMESTAMP), 'utc') AT TIME ZONE sessiontimezone AS DATE), evsysseq FROM eventoutm1 WHERE evtype = 'email' and (evstatus is null or evstatus not in ('error', 'warning')) and evtime IS NOT NULL and evsysseq IS NOT NULL";
-        Statement statement = connection.createStatement();
-        ResultSet resultSet = statement.executeQuery(query);
+            try {
+                statement.setFetchSize(Configuration.eventout_fetch_size);
+                ResultSet resultSet = statement.executeQuery(query);
 
-        while (resultSet.next()) {
-            records.add(new EventOutRecord(resultSet.getClob(1), resultSet.getTimestamp(2).getTime(), resultSet.getString(3), companyReocrds, this));
+                while (resultSet.next()) {
+                    if (!eventOut.addEventOutRecord(createRecord(resultSet, companyReocrds))) {
+                        break;
+                    }
+                }
+
+                resultSet.close();
+            } finally {
+                statement.close();
+            }
         }
 
-        logger.info("Total eventout records found: " + records.size());
+        logger.info("Total eventout records found: " + eventOut.getRecordsCount());
+    }
 
-        return records;
+    /**
+     * Creates eventout record from fetched row.
+     *
+     * @param resultSet Row with event time, evsysseq and optional header
+     * @param companyReocrds Company object
+     * @return Eventout record
+     * @throws SQLException
+     */
+    private EventOutRecord createRecord(ResultSet resultSet, Company companyReocrds) throws SQLException {
+        EventOutRecord record = new EventOutRecord(resultSet.getTimestamp(1).getTime(), resultSet.getString(2), companyReocrds, this);
+
+        if (EventOut.isHeaderFetched()) {
+            record.setHeader(resultSet.getString(3));
+        }
+
+        return record;
+    }
+
+    /**
+     * Claims eventout records in chunks and passes them to eventout queue.
+     * Rows are locked with SKIP LOCKED while lease is written. Lease is
+     * inserted only when row has no live lease, so row whose lease was
+     * committed by other instance after query started is skipped. Rows with
+     * expired lease (instance died) are claimed again.
+     *
+     * @param eventOut Eventout queue
+     * @param companyReocrds Company object
+     * @throws Exception
+     */
+    private void claimEventOutRecords(EventOut eventOut, Company companyReocrds) throws Exception {
+        String query = "SELECT " + getEventTimeColumn() + ", e.evsysseq" + getHeaderColumn("e.evfields") + " FROM eventoutm1 e WHERE " + EVENTOUT_CONDITION + getCompanyCondition("e.evfields")
+                + " AND NOT EXISTS (SELECT 1 FROM eventoutm1_claim c WHERE c.evsysseq = e.evsysseq AND c.lease_until > SYSDATE)"
+                + getOrderBy("e.") + " FOR UPDATE OF e.evsysseq SKIP LOCKED";
+        ArrayList<EventOutRecord> fetched = new ArrayList<EventOutRecord>();
+        ArrayList<EventOutRecord> chunk = new ArrayList<EventOutRecord>();
+
+        connection.setAutoCommit(false);
+
+        try {
+            do {
+                fetched.clear();
+                chunk.clear();
+
+                PreparedStatement pStatement = connection.prepareStatement(query);
+                PreparedStatement deleteStatement = connection.prepareStatement("DELETE FROM eventoutm1_claim WHERE evsysseq = ? AND lease_until <= SYSDATE");
+                PreparedStatement insertStatement = connection.prepareStatement("INSERT INTO eventoutm1_claim (evsysseq, owner, lease_until) SELECT ?, ?, ? FROM dual"
+                        + " WHERE NOT EXISTS (SELECT 1 FROM eventoutm1_claim WHERE evsysseq = ?)");
+
+                try {
+                    pStatement.setFetchSize(Configuration.claim_chunk_size);
+                    ResultSet resultSet = pStatement.executeQuery();
+                    Timestamp leaseUntil = getLeaseUntil();
+
+                    // with SKIP LOCKED rows are locked while fetched, so only the chunk is locked
+                    while (fetched.size() < Configuration.claim_chunk_size && resultSet.next()) {
+                        String evSysSeq = resultSet.getString(2);
+
+                        fetched.add(createRecord(resultSet, companyReocrds));
+
+                        // only expired lease is replaced
+                        deleteStatement.setString(1, evSysSeq);
+                        deleteStatement.addBatch();
+                    }
+
+                    resultSet.close();
+
+                    if (!fetched.isEmpty()) {
+                        deleteStatement.executeBatch();
+                    }
+
+                    // row count of batch is not reported by driver, so every lease is inserted alone
+                    for (int i = 0; i < fetched.size(); i++) {
+                        String evSysSeq = fetched.get(i).getEvSysSeq();
+
+                        insertStatement.setString(1, evSysSeq);
+                        insertStatement.setString(2, Configuration.instance_id);
+                        insertStatement.setTimestamp(3, leaseUntil);
+                        insertStatement.setString(4, evSysSeq);
+
+                        if (insertStatement.executeUpdate() == 1) {
+                            chunk.add(fetched.get(i));
+                        } else {
+                            logger.debug("Eventout record " + evSysSeq + " is claimed by other instance");
+                        }
+                    }
+
+                    connection.commit();
+                } catch (SQLException e) {
+                    connection.rollback();
+
+                    throw e;
+                } finally {
+                    pStatement.close();
+                    deleteStatement.close();
+                    insertStatement.close();
+                }
+
+                logger.debug("Eventout records claimed by " + Configuration.instance_id + ": " + chunk.size());
+
+                for (int i = 0; i < chunk.size(); i++) {
+                    claimed.add(chunk.get(i).getEvSysSeq());
+                }
+
+                for (int i = 0; i < chunk.size(); i++) {
+                    if (!eventOut.addEventOutRecord(chunk.get(i))) {
+                        for (int j = i; j < chunk.size(); j++) {
+                            releaseRecord(chunk.get(j).getEvSysSeq());
+                        }
+
+                        return;
+                    }
+                }
+            } while (fetched.size() == Configuration.claim_chunk_size);
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * Extends leases of records claimed by this instance that are still in
+     * progress.
+     */
+    private void renewClaims() {
+        if (claimed.isEmpty()) {
+            return;
+        }
+
+        try {
+            Connection conn = pool.borrow();
+
+            try {
+                Timestamp leaseUntil = getLeaseUntil();
+                PreparedStatement pStatement = conn.prepareStatement("UPDATE eventoutm1_claim SET lease_until = ? WHERE evsysseq = ? AND owner = ?");
+
+                try {
+                    for (String evSysSeq : claimed) {
+                        pStatement.setTimestamp(1, leaseUntil);
+                        pStatement.setString(2, evSysSeq);
+                        pStatement.setString(3, Configuration.instance_id);
+                        pStatement.addBatch();
+                    }
+
+                    pStatement.executeBatch();
+                } finally {
+                    pStatement.close();
+                }
+
+                if (!conn.getAutoCommit()) {
+                    conn.commit();
+                }
+
+                logger.debug("Eventout leases renewed: " + claimed.size());
+            } finally {
+                pool.release(conn);
+            }
+        } catch (Throwable e) {
+            logger.error("Unable to renew eventout leases", e);
+        }
+    }
+
+    /**
+     * Gets end of new lease based on database time, so instances with
+     * different clocks agree on lease expiry.
+     *
+     * @return Lease expiry time
+     * @throws SQLException
+     */
+    private Timestamp getLeaseUntil() throws SQLException {
+        Connection conn = pool.borrow();
+
+        try {
+            Statement statement = conn.createStatement();
+
+            try {
+                ResultSet resultSet = statement.executeQuery("SELECT SYSDATE FROM dual");
+                resultSet.next();
+
+                return new Timestamp(resultSet.getTimestamp(1).getTime() + Configuration.claim_lease_seconds * 1000L);
+            } finally {
+                statement.close();
+            }
+        } finally {
+            pool.release(conn);
+        }
+    }
+
+    /**
+     * Gets message of eventout record. Uses pooled connection, so messages of
+     * different records are read in parallel. Small CLOB is returned together
+     * with row by LOB prefetch, large one is read as character stream.
+     *
+     * @param evSysSeq evsysseq key value
+     * @return Message from notification or null if record is empty
+     * @throws Exception
+     */
+    public String getEventOutFields(String evSysSeq) throws Exception {
+        Connection conn = pool.borrow();
+
+        try {
+            PreparedStatement pStatement = conn.prepareStatement("SELECT evfields FROM eventoutm1 WHERE evsysseq = ? AND evtype = 'email'");
+
+            try {
+                if (isOracle && Configuration.lob_prefetch_size > 0 && pStatement.isWrapperFor(OracleStatement.class)) {
+                    pStatement.unwrap(OracleStatement.class).setLobPrefetchSize(Configuration.lob_prefetch_size);
+                }
+
+                pStatement.setString(1, evSysSeq);
+                ResultSet resultSet = pStatement.executeQuery();
+                String fields = null;
+
+                if (resultSet.next()) {
+                    Clob evFields = resultSet.getClob(1);
+
+                    if (evFields != null) {
+                        try {
+                            fields = readClob(evFields);
+                        } finally {
+                            evFields.free();
+                        }
+                    }
+                }
+
+                resultSet.close();
+
+                return fields;
+            } finally {
+                pStatement.close();
+            }
+        } finally {
+            pool.release(conn);
+        }
+    }
+
+    /**
+     * Gets beginning of message of eventout record as plain string, without
+     * reading CLOB. It is used to decide about routing before whole message
+     * is fetched.
+     *
+     * @param evSysSeq evsysseq key value
+     * @return First getHeaderSize() characters of message or null if record
+     * is missing or empty
+     * @throws Exception
+     */
+    public String getEventOutHeader(String evSysSeq) throws Exception {
+        Connection conn = pool.borrow();
+
+        try {
+            PreparedStatement pStatement = conn.prepareStatement("SELECT " + getHeaderExpression("evfields") + " FROM eventoutm1 WHERE evsysseq = ? AND evtype = 'email'");
+
+            try {
+                pStatement.setString(1, evSysSeq);
+                ResultSet resultSet = pStatement.executeQuery();
+                String fields = null;
+
+                if (resultSet.next()) {
+                    fields = resultSet.getString(1);
+                }
+
+                resultSet.close();
+
+                return fields;
+            } finally {
+                pStatement.close();
+            }
+        } finally {
+            pool.release(conn);
+        }
+    }
+
+    /**
+     * Reads content of CLOB. Content up to lob_stream_threshold characters is
+     * read at once (from prefetched data when available), larger content is
+     * read through character stream.
+     *
+     * @param clob CLOB
+     * @return Content or null if CLOB is empty
+     * @throws Exception
+     */
+    private static String readClob(Clob clob) throws Exception {
+        long length = clob.length();
+
+        if (length == 0) {
+            return null;
+        } else if (length <= Configuration.lob_stream_threshold) {
+            return clob.getSubString(1, (int) length);
+        }
+
+        StringBuilder content = new StringBuilder((int) length);
+        Reader reader = clob.getCharacterStream();
+
+        try {
+            char[] buffer = new char[8192];
+            int read;
+
+            while ((read = reader.read(buffer)) != -1) {
+                content.append(buffer, 0, read);
+            }
+        } finally {
+            reader.close();
+        }
+
+        return content.toString();
+    }
+
+    /**
+     * Gets eventout query condition that skips records of companies which are
+     * not treated, so their messages are not fetched. Company name is taken
+     * from first line of message on database side. Records with company that
+     * cannot be found or is unknown are still fetched, so they are marked as
+     * error like before.
+     *
+     * @param column evfields column reference
+     * @return Condition starting with AND or empty string
+     */
+    private String getCompanyCondition(String column) {
+        if (!isOracle || !Configuration.eventout_company_pushdown
+                || Configuration.include_companies == null && Configuration.exclude_companies == null) {
+            return "";
+        }
+
+        String company = getCompanyExpression(column);
+        StringBuilder ignored = new StringBuilder();
+
+        if (Configuration.include_companies != null) {
+            ignored.append("company NOT IN ").append(toLiteralList(Configuration.include_companies));
+        }
+
+        if (Configuration.exclude_companies != null) {
+            if (ignored.length() > 0) {
+                ignored.append(" OR ");
+            }
+
+            ignored.append("company IN ").append(toLiteralList(Configuration.exclude_companies));
+        }
+
+        return " AND NVL(" + company + ", CHR(0)) NOT IN (SELECT company FROM companym1 WHERE company IS NOT NULL AND (" + ignored + "))";
+    }
+
+    /**
+     * Gets SQL expression of company of record. Company is the same as in
+     * EventOutRecord: first line of body up to "|", trimmed and without NBSP.
+     *
+     * @param column evfields column reference
+     * @return Company expression, null if message has no body
+     */
+    private String getCompanyExpression(String column) {
+        // separator four times (dot matches newline with 'n'), then first line up to "|"
+        String pattern = "^(.*?" + getSeparatorPattern() + "){4}([^|\n]*)";
+
+        return "TRIM(REPLACE(REPLACE(REGEXP_SUBSTR(" + getHeaderExpression(column) + ", "
+                + toLiteral(pattern) + ", 1, 1, 'n', 2), CHR(13)), UNISTR('\\00A0')))";
+    }
+
+    /**
+     * Gets SQL expression of subject of record.
+     *
+     * @param column evfields column reference
+     * @return Subject expression, null if message has no subject
+     */
+    private String getSubjectExpression(String column) {
+        // separator three times, then subject up to fourth separator
+        String pattern = "^(.*?" + getSeparatorPattern() + "){3}(.*?)" + getSeparatorPattern();
+
+        return "REGEXP_SUBSTR(" + getHeaderExpression(column) + ", "
+                + toLiteral(pattern) + ", 1, 1, 'n', 2)";
+    }
+
+    /**
+     * Gets regular expression matching eventout separator.
+     *
+     * @return Escaped separator
+     */
+    private static String getSeparatorPattern() {
+        StringBuilder pattern = new StringBuilder();
+
+        for (char c : Configuration.separator.toCharArray()) {
+            if (!Character.isLetterOrDigit(c)) {
+                pattern.append('\\');
+            }
+            pattern.append(c);
+        }
+
+        return pattern.toString();
+    }
+
+    /**
+     * Gets SQL expression of priority lane of record, the same as
+     * PriorityLanes.getLane(): the most urgent lane of ticket prefixes in
+     * subject and company, default lane when no rule matches.
+     *
+     * @param column evfields column reference
+     * @return Lane expression or null if priority lanes are not configured
+     */
+    private String getLaneExpression(String column) {
+        if (!isOracle || !PriorityLanes.isEnabled()) {
+            return null;
+        }
+
+        // conditions by lane, the first matching WHEN is the most urgent lane
+        TreeMap<Integer, StringBuilder> lanes = new TreeMap<Integer, StringBuilder>();
+
+        if (Configuration.priority_tickets != null) {
+            TreeMap<Integer, StringBuilder> prefixes = new TreeMap<Integer, StringBuilder>();
+
+            for (Map.Entry<String, Integer> rule : Configuration.priority_tickets.entrySet()) {
+                StringBuilder list = prefixes.get(rule.getValue());
+
+                if (list == null) {
+                    prefixes.put(rule.getValue(), new StringBuilder(rule.getKey()));
+                } else {
+                    list.append('|').append(rule.getKey());
+                }
+            }
+
+            for (Map.Entry<Integer, StringBuilder> lane : prefixes.entrySet()) {
+                addCondition(lanes, lane.getKey(), "REGEXP_LIKE(" + getSubjectExpression(column) + ", " + toLiteral("(" + lane.getValue() + ")[0-9]{9}") + ")");
+            }
+        }
+
+        if (Configuration.priority_companies != null) {
+            TreeMap<Integer, Set<String>> companies = new TreeMap<Integer, Set<String>>();
+
+            for (Map.Entry<String, Integer> rule : Configuration.priority_companies.entrySet()) {
+                if (!companies.containsKey(rule.getValue())) {
+                    companies.put(rule.getValue(), new TreeSet<String>());
+                }
+
+                companies.get(rule.getValue()).add(rule.getKey());
+            }
+
+            for (Map.Entry<Integer, Set<String>> lane : companies.entrySet()) {
+                addCondition(lanes, lane.getKey(), "UPPER(" + getCompanyExpression(column) + ") IN " + toLiteralList(lane.getValue()));
+            }
+        }
+
+        StringBuilder lane = new StringBuilder("CASE");
+
+        for (Map.Entry<Integer, StringBuilder> condition : lanes.entrySet()) {
+            lane.append(" WHEN ").append(condition.getValue()).append(" THEN ").append(condition.getKey());
+        }
+
+        return lane.append(" ELSE ").append(Configuration.priority_default).append(" END").toString();
+    }
+
+    /**
+     * Adds condition of lane.
+     *
+     * @param lanes Conditions by lane
+     * @param lane Lane
+     * @param condition SQL condition
+     */
+    private static void addCondition(TreeMap<Integer, StringBuilder> lanes, int lane, String condition) {
+        StringBuilder conditions = lanes.get(lane);
+
+        if (conditions == null) {
+            lanes.put(lane, new StringBuilder(condition));
+        } else {
+            conditions.append(" OR ").append(condition);
+        }
+    }
+
+    /**
+     * Creates SQL string literal.
+     *
+     * @param value Value
+     * @return Quoted value
+     */
+    private static String toLiteral(String value) {
+        return "'" + value.replace("'", "''") + "'";
+    }
+
+    /**
+     * Creates SQL list of string literals.
+     *
+     * @param values Values
+     * @return List in parentheses
+     */
+    private static String toLiteralList(Set<String> values) {
+        StringBuilder list = new StringBuilder("(");
+
+        for (String value : values) {
+            if (list.length() > 1) {
+                list.append(", ");
+            }
+
+            list.append(toLiteral(value));
+        }
+
+        return list.append(")").toString();
+    }
+
+    /**
+     * Gets select expression of beginning of message. It is fetched with
+     * records only when priority lanes, fair queuing or ticket affinity need
+     * subject and company before dispatching.
+     *
+     * @param column evfields column reference
+     * @return Column expression starting with comma or empty string
+     */
+    private String getHeaderColumn(String column) {
+        return EventOut.isHeaderFetched() ? ", " + getHeaderExpression(column) : "";
+    }
+
+    /**
+     * Gets SQL expression of beginning of message.
+     *
+     * @param column evfields column reference
+     * @return First getHeaderSize() characters of message
+     */
+    private String getHeaderExpression(String column) {
+        if (isOracle) {
+            return "DBMS_LOB.SUBSTR(" + column + ", " + headerSize + ", 1)";
+        } else {
+            return "SUBSTRING(" + column + ", 1, " + headerSize + ")";
+        }
+    }
+
+    /**
+     * Gets number of characters that always fit into 4000 bytes of VARCHAR2
+     * in database character set, e.g. 1000 for AL32UTF8.
+     *
+     * @return Maximal header size
+     */
+    private int getHeaderLimit() {
+        try {
+            Statement statement = connection.createStatement();
+
+            try {
+                ResultSet resultSet = statement.executeQuery("SELECT NLS_CHARSET_DECL_LEN(4000, NLS_CHARSET_ID('CHAR_CS')) FROM dual");
+
+                if (resultSet.next() && resultSet.getInt(1) > 0) {
+                    return resultSet.getInt(1);
+                }
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            logger.warn("Unable to read maximal character size of database character set", e);
+        }
+
+        // AL32UTF8 character has at most 4 bytes
+        return 1000;
+    }
+
+    /**
+     * Gets number of characters of message read as header. It is
+     * eventout_header_size limited by database character set.
+     *
+     * @return Header size
+     */
+    public int getHeaderSize() {
+        return headerSize;
+    }
+
+    /**
+     * Gets order of fetched records. With priority lanes records are fetched
+     * by deadline of their lane like PriorityLanes dispatches them, so urgent
+     * records are not stuck behind eventout_prefetch older records. With fair
+     * queuing companies are interleaved by their weights like FairQueue
+     * dispatches them, so company with mass update does not fill whole
+     * eventout_prefetch buffer. With ticket affinity records are fetched in
+     * order of events, which keeps that order within ticket.
+     *
+     * @param alias Table alias with dot or empty string
+     * @return ORDER BY clause or empty string
+     */
+    private String getOrderBy(String alias) {
+        String lane = getLaneExpression(alias + "evfields");
+        // DATE arithmetic is in days
+        String order = (lane != null ? alias + "evtime + (" + lane + " - 1) * " + Configuration.priority_max_age + " / 86400, " : "")
+                + alias + "evtime, " + alias + "evsysseq";
+
+        if (isOracle && FairQueue.isEnabled()) {
+            // n-th record of company is fetched at virtual time n / weight
+            String company = "UPPER(" + getCompanyExpression(alias + "evfields") + ")";
+
+            return " ORDER BY ROW_NUMBER() OVER (PARTITION BY " + company + " ORDER BY " + order + ") / " + getWeightExpression(company) + ", " + order;
+        }
+
+        if (lane == null && !AffinityDispatcher.isEnabled()) {
+            return "";
+        }
+
+        return " ORDER BY " + order;
+    }
+
+    /**
+     * Gets SQL expression of fair queuing weight of company.
+     *
+     * @param company Company expression
+     * @return Weight expression
+     */
+    private static String getWeightExpression(String company) {
+        if (Configuration.company_weights == null || Configuration.company_weights.isEmpty()) {
+            return "1";
+        }
+
+        StringBuilder weight = new StringBuilder("CASE ").append(company);
+
+        for (Map.Entry<String, Integer> rule : Configuration.company_weights.entrySet()) {
+            weight.append(" WHEN ").append(toLiteral(rule.getKey())).append(" THEN ").append(rule.getValue());
+        }
+
+        return weight.append(" ELSE 1 END").toString();
+    }
+
+    /**
+     * Gets select expression of event time converted to session time zone.
+     *
+     * @return Column expression
+     */
+    private String getEventTimeColumn() {
+        if (isOracle) {
+            return "CAST(FROM_TZ(CAST(evtime AS TIMESTAMP), 'utc') AT TIME ZONE sessiontimezone AS DATE)";
+        } else {
+            return "evtime";
+        }
     }
 
     public ArrayList<CompanyRecord> getCompanies() throws Exception {
@@ -141,37 +960,70 @@ public class Database {
     }
 
     /**
-     * Removes eventout record based on unique evsysseq value.
+     * Queues removal of eventout record based on unique evsysseq value.
+     *
+     * @param evSysSeq evsysseq key value
+     * @throws Exception
+     */
+    public void removeRecordFromEventOut(String evSysSeq) throws Exception {
+        claimed.remove(evSysSeq);
+        statusWriter.remove(evSysSeq);
+    }
+
+    /**
+     * Records that e-mail of eventout record was sent. Sent ledger entry is
+     * written before record is removed or marked with provided status.
      *
      * @param evSysSeq evsysseq key value
+     * @param status status of processing or null if record is removed
      * @throws Exception
      */
-    public synchronized void removeRecordFromEventOut(String evSysSeq) throws Exception {
-        PreparedStatement pStatement = connection.prepareStatement("DELETE FROM eventoutm1 WHERE evsysseq = ? AND evtype = 'email'");
-        pStatement.setString(1, evSysSeq);
-        pStatement.executeUpdate();
+    public void recordSent(String evSysSeq, String status) throws Exception {
+        if (ledger != null) {
+            ledger.append(evSysSeq, status);
+        }
 
-        pStatement.close();
+        if (status == null) {
+            removeRecordFromEventOut(evSysSeq);
+        } else {
+            markRecord(evSysSeq, status);
+        }
+    }
 
-        logger.info("Record removed: evsysseq = " + evSysSeq);
+    /**
+     * Checks if e-mail of eventout record was already sent and only database
+     * change is not committed yet.
+     *
+     * @param evSysSeq evsysseq key value
+     * @return TRUE if record was sent
+     */
+    public boolean isSent(String evSysSeq) {
+        return ledger != null && ledger.isSent(evSysSeq);
     }
 
     /**
-     * Updates eventout record based on unique evsysseq value to mark it as
-     * invalid.
+     * Queues update of eventout record based on unique evsysseq value to mark
+     * it as invalid.
      *
      * @param evSysSeq evsysseq key value
      * @param status status of processing
      * @throws Exception
      */
-    public synchronized void markRecord(String evSysSeq, String status) throws Exception {
-        PreparedStatement pStatement = connection.prepareStatement("UPDATE eventoutm1 SET evstatus = ? WHERE evsysseq = ? AND evtype = 'email'");
-        pStatement.setString(1, status);
-        pStatement.setString(2, evSysSeq);
-        pStatement.executeUpdate();
-
-        pStatement.close();
+    public void markRecord(String evSysSeq, String status) throws Exception {
+        claimed.remove(evSysSeq);
+        statusWriter.mark(evSysSeq, status);
+    }
 
-        logger.info("Record marked as error: evsysseq = " + evSysSeq);
+    /**
+     * Gives up claim of eventout record that was neither removed nor marked,
+     * so other instance can process it.
+     *
+     * @param evSysSeq evsysseq key value
+     * @throws Exception
+     */
+    public void releaseRecord(String evSysSeq) throws Exception {
+        if (claimed.remove(evSysSeq)) {
+            statusWriter.release(evSysSeq);
+        }
     }
 }
@@ -0,0 +1,181 @@
+package com.soprasteria.notificationemail;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.mail.Address;
+import org.apache.log4j.Logger;
+
+/**
+ * Collects records of digest companies for every recipient and sends them as
+ * one message listing ticket number, subject and body of each record. Digest
+ * is sent digest_window seconds after its first record, earlier when it has
+ * digest_max_records records and at the end of run. Recipients whose digest
+ * has only one record get original message of that record instead. Record is
+ * finished when digests of all its recipients were sent.
+ */
+public class Digester extends WindowedBatcher<Digester.Digest> {
+
+    private static volatile Digester current;
+    private final AtomicInteger digestedRecords = new AtomicInteger();
+    private final AtomicInteger digestMessages = new AtomicInteger();
+    private static final Logger logger = Logger.getLogger(Digester.class);
+
+    /**
+     * Digester constructor.
+     */
+    private Digester() {
+        super("digest", Configuration.digest_window);
+    }
+
+    /**
+     * Starts collecting digests for one eventout run.
+     *
+     * @return Digester or null if digest mode is disabled
+     */
+    public static Digester start() {
+        if (Configuration.digest_companies == null) {
+            return null;
+        }
+
+        current = new Digester();
+
+        return current;
+    }
+
+    /**
+     * Gets digester of current run.
+     *
+     * @return Digester or null if digest mode is disabled
+     */
+    public static Digester getCurrent() {
+        return current;
+    }
+
+    /**
+     * Adds parsed record to digests of all its recipients. Full digests are
+     * sent by calling thread.
+     *
+     * @param record Record with prepared e-mail
+     * @return FALSE if digester is closed or record has no recipients and
+     * has to be sent alone
+     */
+    public boolean add(EventOutRecord record) {
+        Address[] addresses = record.getDigestRecipients();
+        ArrayList<Digest> candidates = new ArrayList<Digest>();
+
+        if (addresses.length == 0) {
+            return false;
+        }
+
+        for (int i = 0; i < addresses.length; i++) {
+            // the same recipient gets separate digests from different senders
+            String key = EventOutRecord.getAddress(addresses[i]) + "\n" + record.getEmail().getSender(Configuration.encoding);
+
+            candidates.add(new Digest(key, addresses[i]));
+        }
+
+        // no digest is sent before record is added to all of them
+        record.startDigest(addresses.length);
+
+        return add(record, candidates);
+    }
+
+    /**
+     * Sends all waiting digests and waits until they are sent. Must be called
+     * after all records of run were parsed.
+     *
+     * @throws InterruptedException
+     */
+    @Override
+    public void shutdown() throws InterruptedException {
+        super.shutdown();
+
+        if (current == this) {
+            current = null;
+        }
+
+        logger.info("Digested records: " + digestedRecords.get() + " sent in " + digestMessages.get() + " digests");
+    }
+
+    /**
+     * Sends digest to its recipient. Recipient of digest with one record gets
+     * original message of that record, together with other such recipients
+     * of the record.
+     *
+     * @param digest Digest
+     */
+    @Override
+    protected void send(Digest digest) {
+        ArrayList<EventOutRecord> records = digest.records;
+
+        if (records.size() == 1) {
+            records.get(0).digestedAlone(digest.recipient);
+
+            return;
+        }
+
+        Address[] to = new Address[]{digest.recipient};
+        Email[] emails = new Email[records.size()];
+        StringBuilder eventIDs = new StringBuilder();
+        StringBuilder tickets = new StringBuilder();
+        StringBuilder text = new StringBuilder();
+        StringBuilder html = new StringBuilder();
+
+        for (int i = 0; i < records.size(); i++) {
+            EventOutRecord record = records.get(i);
+            emails[i] = record.createEmail(to, null, null, record.getEvSysSeq());
+
+            if (i > 0) {
+                eventIDs.append(",");
+                tickets.append(", ");
+            }
+            eventIDs.append(record.getEvSysSeq());
+            tickets.append(emails[i].getTicketNumbers());
+
+            record.appendDigestEntry(text, html);
+        }
+
+        EventOutRecord first = records.get(0);
+        String smtpStatus = null;
+
+        try {
+            Email email = first.createEmail(to, null, null, eventIDs.toString());
+
+            email.setSubject("Notification digest: " + records.size() + " notifications");
+            email.setContentText(records.size() + " notifications: " + tickets + "\r\n\r\n" + text);
+            email.setContentHtml("<html><body>\r\n<p>" + records.size() + " notifications</p>\r\n<hr>\r\n" + html + "</body></html>");
+            email.setTicketNumbers(tickets.toString());
+
+            smtpStatus = EventOutRecord.createSmtp(true).sendEmail(email, emails);
+        } catch (Throwable e) {
+            logger.error("<" + eventIDs + "> -> Unable to send digest to " + EventOutRecord.getAddress(digest.recipient), e);
+        }
+
+        if ("SUCCESS".equals(smtpStatus)) {
+            digestedRecords.addAndGet(records.size());
+            digestMessages.incrementAndGet();
+        }
+
+        for (int i = 0; i < records.size(); i++) {
+            records.get(i).digested(smtpStatus);
+        }
+    }
+
+    /**
+     * Records collected for one recipient.
+     */
+    static class Digest extends WindowedBatcher.Batch {
+
+        private final Address recipient;
+
+        private Digest(String key, Address recipient) {
+            super(key);
+            this.recipient = recipient;
+        }
+
+        @Override
+        boolean isFull() {
+            return records.size() >= Configuration.digest_max_records;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package com.soprasteria.notificationemail;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.log4j.Logger;
+
+/**
+ * Suppresses e-mails with the same recipients and content as e-mail sent
+ * within duplicate_window seconds. Bounded cache of content hashes is kept in
+ * memory between daemon polls and in duplicate_path file between runs.
+ *
+ * Hashes are kept in order of sending, so expired and eldest entries are at
+ * the beginning of cache. Hash of e-mail being sent is remembered only in
+ * memory until e-mail is sent or given up, so copy of e-mail that failed is
+ * not suppressed.
+ */
+public class DuplicateFilter {
+
+    private static volatile DuplicateFilter current;
+    private final File file;
+    private final LinkedHashMap<String, Long> sent = new LinkedHashMap<String, Long>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > Configuration.duplicate_max_entries;
+        }
+    };
+    // hashes of e-mails being sent or waiting for retry
+    private final HashSet<String> sending = new HashSet<String>();
+    // states of e-mail returned by reserve()
+    public static final int NEW = 0;
+    public static final int SENDING = 1;
+    public static final int SENT = 2;
+    private static final Logger logger = Logger.getLogger(DuplicateFilter.class);
+
+    /**
+     * DuplicateFilter constructor.
+     *
+     * @param path Cache file path
+     */
+    private DuplicateFilter(String path) {
+        this.file = new File(path).getAbsoluteFile();
+    }
+
+    /**
+     * Opens filter and reads hashes remembered by previous run.
+     *
+     * @return DuplicateFilter or null if duplicate suppression is disabled
+     */
+    public static DuplicateFilter open() {
+        if (Configuration.duplicate_window <= 0) {
+            return null;
+        }
+
+        DuplicateFilter filter = new DuplicateFilter(Configuration.duplicate_path);
+        filter.read();
+
+        current = filter;
+
+        return current;
+    }
+
+    /**
+     * Gets filter of current process.
+     *
+     * @return DuplicateFilter or null if duplicate suppression is disabled
+     */
+    public static DuplicateFilter getCurrent() {
+        return current;
+    }
+
+    /**
+     * Checks if e-mail with the same hash was sent within window or is being
+     * sent. If it was not, hash is remembered as being sent.
+     *
+     * @param hash Hash of recipients and content
+     * @return SENT if e-mail is duplicate and must not be sent, SENDING if
+     * the same e-mail is being sent, NEW if e-mail may be sent
+     */
+    public synchronized int reserve(String hash) {
+        expire(System.currentTimeMillis());
+
+        if (sent.containsKey(hash)) {
+            return SENT;
+        }
+
+        if (!sending.add(hash)) {
+            return SENDING;
+        }
+
+        return NEW;
+    }
+
+    /**
+     * Remembers hash of e-mail that was sent, so its copies are suppressed
+     * within window.
+     *
+     * @param hash Hash of recipients and content
+     */
+    public synchronized void sent(String hash) {
+        sending.remove(hash);
+        sent.put(hash, System.currentTimeMillis() + Configuration.duplicate_window * 1000L);
+    }
+
+    /**
+     * Forgets hash of e-mail that was not sent, so next copy is sent.
+     *
+     * @param hash Hash of recipients and content
+     */
+    public synchronized void forget(String hash) {
+        sending.remove(hash);
+    }
+
+    /**
+     * Writes remembered hashes to cache file.
+     */
+    public synchronized void close() {
+        expire(System.currentTimeMillis());
+
+        File temp = new File(file.getPath() + ".tmp");
+
+        try {
+            BufferedWriter writer = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8);
+
+            try {
+                for (Map.Entry<String, Long> entry : sent.entrySet()) {
+                    writer.write(entry.getValue() + " " + entry.getKey());
+                    writer.newLine();
+                }
+            } finally {
+                writer.close();
+            }
+
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            logger.debug("Duplicate cache written: " + file + " (entries: " + sent.size() + ")");
+        } catch (IOException e) {
+            logger.error("Unable to write duplicate cache " + file, e);
+        }
+
+        if (current == this) {
+            current = null;
+        }
+    }
+
+    /**
+     * Reads hashes that did not expire yet from cache file.
+     */
+    private void read() {
+        if (!file.isFile()) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+
+        try {
+            BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8);
+
+            try {
+                String line;
+
+                while ((line = reader.readLine()) != null) {
+                    int separator = line.indexOf(' ');
+
+                    if (separator <= 0) {
+                        continue;
+                    }
+
+                    try {
+                        long expires = Long.parseLong(line.substring(0, separator));
+
+                        if (expires > now) {
+                            sent.put(line.substring(separator + 1), expires);
+                        }
+                    } catch (NumberFormatException e) {
+                        // damaged line is skipped
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+
+            logger.info("Duplicate cache opened: " + file + " (entries: " + sent.size() + ")");
+        } catch (IOException e) {
+            logger.error("Unable to read duplicate cache " + file, e);
+        }
+    }
+
+    /**
+     * Removes expired hashes from beginning of cache.
+     *
+     * @param now Current time in milliseconds
+     */
+    private void expire(long now) {
+        Iterator<Long> expires = sent.values().iterator();
+
+        while (expires.hasNext() && expires.next() <= now) {
+            expires.remove();
+        }
+    }
+}
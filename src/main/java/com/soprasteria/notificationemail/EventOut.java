@@ -1,47 +1,192 @@
 package com.soprasteria.notificationemail;
 
 import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Logger;
 
 /**
- * Class that represents Eventout queue in HPSM.
+ * Class that represents Eventout queue in HPSM. Records are fetched by
+ * separate thread and handed over through bounded queue, so processing can
+ * start with first fetched rows.
+ *
  * @author sgacka
  */
 public class EventOut {
 
-    private ArrayList<EventOutRecord> eventout;
+    private final BlockingQueue<EventOutRecord> eventout;
+    private final FairQueue fairQueue;
+    private final AtomicInteger throttled = new AtomicInteger();
+    private final AtomicInteger count = new AtomicInteger();
     private final Database db;
+    private final Company company;
+    private volatile boolean finished = false;
+    private volatile boolean closed = false;
+    // error that stopped fetching, thrown to consumer when queue is drained
+    private volatile Throwable failure;
+    private static final Logger logger = Logger.getLogger(EventOut.class);
 
     /**
      * EventOut constructor.
      * @param db Database object
+     * @param company Company object
      */
-    public EventOut(Database db) {
-        this.eventout = new ArrayList<EventOutRecord>();
+    public EventOut(Database db, Company company) {
+        // with priority lanes urgent records overtake records fetched before them
+        if (FairQueue.isEnabled()) {
+            this.fairQueue = new FairQueue(Configuration.eventout_prefetch, company);
+            this.eventout = fairQueue;
+        } else if (PriorityLanes.isEnabled()) {
+            this.fairQueue = null;
+            this.eventout = new PriorityLanes(Configuration.eventout_prefetch);
+        } else {
+            this.fairQueue = null;
+            this.eventout = new ArrayBlockingQueue<EventOutRecord>(Configuration.eventout_prefetch);
+        }
         this.db = db;
+        this.company = company;
     }
 
     /**
-     * Process records in eventout queue - page event type.
+     * Starts fetching records in eventout queue - page event type.
      * @throws Exception
      */
     public void getEventOut() throws Exception {
-        eventout = db.getEventOutRecords();
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    db.getEventOutRecords(EventOut.this, company);
+                } catch (Throwable e) {
+                    failure = e;
+                } finally {
+                    finished = true;
+                }
+            }
+        }, "eventout-fetch");
+
+        producer.setDaemon(true);
+        producer.start();
+    }
+
+    /**
+     * Adds fetched record to queue. Waits when queue is full, record waiting
+     * for retry is skipped.
+     * @param record Eventout record
+     * @return FALSE if queue was closed and fetching should stop
+     * @throws InterruptedException
+     */
+    public boolean addEventOutRecord(EventOutRecord record) throws InterruptedException {
+        if (RetryScheduler.isWaiting(record.getEvSysSeq())) {
+            // record is still processed by retry scheduler
+            return true;
+        }
+
+        if (fairQueue != null && fairQueue.isThrottled(record)) {
+            // company is over its quota, record stays in eventout for next run
+            throttled.incrementAndGet();
+            try {
+                db.releaseRecord(record.getEvSysSeq());
+            } catch (Throwable e) {
+                logger.error("Unable to release eventout record: evsysseq = " + record.getEvSysSeq(), e);
+            }
+
+            return true;
+        }
+
+        while (!closed) {
+            if (eventout.offer(record, 100, TimeUnit.MILLISECONDS)) {
+                count.incrementAndGet();
+
+                return true;
+            }
+        }
+
+        return false;
     }
 
     /**
-     * Gets number of records in eventout.
+     * Stops fetching and gives up records that were not dispatched yet.
+     */
+    public void close() {
+        closed = true;
+
+        // records held back by company quota are given up as well
+        ArrayList<EventOutRecord> records = new ArrayList<EventOutRecord>();
+        eventout.drainTo(records);
+
+        for (EventOutRecord record : records) {
+            try {
+                db.releaseRecord(record.getEvSysSeq());
+            } catch (Throwable e) {
+                logger.error("Unable to release eventout record: evsysseq = " + record.getEvSysSeq(), e);
+            }
+        }
+    }
+
+    /**
+     * Gets number of records fetched so far.
      * @return Number of records
      */
     public int getRecordsCount() {
+        return count.get();
+    }
+
+    /**
+     * Gets number of records left in eventout because their company was over
+     * its quota.
+     * @return Number of records
+     */
+    public int getThrottledCount() {
+        return throttled.get();
+    }
+
+    /**
+     * Checks if fetched records are reordered before dispatching. Records
+     * then wait in eventout queue instead of worker queue.
+     * @return TRUE if priority lanes or fair queuing are enabled
+     */
+    public static boolean isReordered() {
+        return PriorityLanes.isEnabled() || FairQueue.isEnabled();
+    }
+
+    /**
+     * Checks if beginning of message is fetched with record, so subject and
+     * company are known before dispatching.
+     * @return TRUE if priority lanes, fair queuing or ticket affinity are enabled
+     */
+    public static boolean isHeaderFetched() {
+        return isReordered() || AffinityDispatcher.isEnabled();
+    }
+
+    /**
+     * Gets number of fetched records waiting for dispatching.
+     * @return Queue depth
+     */
+    public int getQueueDepth() {
         return eventout.size();
     }
 
     /**
-     * Gets eventout record from list.
-     * @param position Position on list
-     * @return Eventout record
+     * Gets next eventout record. Waits until record is fetched.
+     * @return Eventout record or null when all records were fetched
+     * @throws Exception when fetching failed, after fetched records were taken
      */
-    public EventOutRecord getEventOutRecord(int position) {
-        return eventout.get(position);
+    public EventOutRecord getEventOutRecord() throws Exception {
+        while (true) {
+            EventOutRecord record = eventout.poll(100, TimeUnit.MILLISECONDS);
+
+            if (record != null) {
+                return record;
+            } else if (finished && eventout.isEmpty()) {
+                if (failure != null) {
+                    throw new Exception("Unable to fetch eventout records", failure);
+                }
+
+                return null;
+            }
+        }
     }
 }
@@ -0,0 +1,395 @@
+package com.soprasteria.notificationemail;
+
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Single-pass parser of eventout message. Message is scanned once, parts are
+ * returned as views of original text and strings are created only for values
+ * that are really used.
+ *
+ * Message layout: recipients^operator^type^subject^company|cc|bcc\nbody
+ */
+public class EventOutParser {
+
+    private static final Pattern TICKET_PATTERN = Pattern.compile("(SD|IM|RQ|OM|CM|CT|KM|KE|PM|DT)\\d{9}(-\\d{3})?");
+    private static final char NBSP = Configuration.NBSP.charAt(0);
+    private final CharSequence fields;
+    private final int[] separators = new int[4];
+    private final int separatorLength;
+    private final int bodyStart;
+    private final int firstLineEnd;
+    private final int[] partStart = new int[3];
+    private final int[] partEnd = new int[3];
+    private final int partsCount;
+
+    /**
+     * EventOutParser constructor. Finds positions of all message parts.
+     *
+     * @param fields Message from notification
+     * @param separator Eventout separator
+     */
+    public EventOutParser(CharSequence fields, String separator) {
+        this.fields = fields;
+        this.separatorLength = separator.length();
+
+        int length = fields.length();
+        int pos = 0;
+        int found = 0;
+
+        while (found < 4 && pos < length) {
+            if (regionMatches(fields, pos, separator)) {
+                separators[found++] = pos;
+                pos += separator.length();
+            } else {
+                pos++;
+            }
+        }
+
+        if (found < 4) {
+            throw new IllegalArgumentException("Eventout separator " + separator + " found " + found + " time(s), 4 expected");
+        }
+
+        bodyStart = pos;
+
+        // first line parts as split("\\|") would return them, trailing empty parts are dropped
+        int part = 0;
+        int start = bodyStart;
+        int lastNonEmpty = 0;
+
+        while (pos < length && fields.charAt(pos) != '\n') {
+            if (fields.charAt(pos) == '|') {
+                if (pos > start) {
+                    lastNonEmpty = part;
+                }
+
+                if (part < 3) {
+                    partStart[part] = start;
+                    partEnd[part] = pos;
+                }
+
+                part++;
+                start = pos + 1;
+            }
+
+            pos++;
+        }
+
+        if (part < 3) {
+            partStart[part] = start;
+            partEnd[part] = pos;
+        }
+
+        if (pos > start) {
+            lastNonEmpty = part;
+        }
+
+        firstLineEnd = pos;
+        partsCount = Math.min(lastNonEmpty + 1, 3);
+    }
+
+    /**
+     * Gets recipients part.
+     *
+     * @return Recipients separated by semicolon
+     */
+    public CharSequence getRecipients() {
+        return view(0, separators[0]);
+    }
+
+    /**
+     * Gets recipient addresses, trimmed and without non-breaking spaces.
+     *
+     * @return Recipient addresses
+     */
+    public String[] getRecipientList() {
+        return split(0, separators[0], ';', false);
+    }
+
+    /**
+     * Gets event operator part.
+     *
+     * @return Event operator
+     */
+    public CharSequence getOperator() {
+        return view(separators[0] + separatorLength, separators[1]);
+    }
+
+    /**
+     * Gets subject part.
+     *
+     * @return Subject
+     */
+    public CharSequence getSubject() {
+        return view(separators[2] + separatorLength, separators[3]);
+    }
+
+    /**
+     * Gets subject trimmed and with non-breaking spaces replaced.
+     *
+     * @return Subject
+     */
+    public String getSubjectText() {
+        return clean(separators[2] + separatorLength, separators[3], " ");
+    }
+
+    /**
+     * Gets body including first line with company.
+     *
+     * @return Body
+     */
+    public CharSequence getBody() {
+        return view(bodyStart, fields.length());
+    }
+
+    /**
+     * Gets first line of body.
+     *
+     * @return First line with company, cc and bcc
+     */
+    public CharSequence getFirstLine() {
+        return view(bodyStart, firstLineEnd);
+    }
+
+    /**
+     * Gets company name from first line of body.
+     *
+     * @return Company name trimmed and without non-breaking spaces
+     */
+    public String getCompany() {
+        return clean(partStart[0], partEnd[0], "");
+    }
+
+    /**
+     * Gets cc part of first line.
+     *
+     * @return Cc addresses separated by comma or null if not present
+     */
+    public CharSequence getCc() {
+        return partsCount > 1 ? view(partStart[1], partEnd[1]) : null;
+    }
+
+    /**
+     * Gets bcc part of first line.
+     *
+     * @return Bcc addresses separated by comma or null if not present
+     */
+    public CharSequence getBcc() {
+        return partsCount > 2 ? view(partStart[2], partEnd[2]) : null;
+    }
+
+    /**
+     * Gets cc addresses from first line.
+     *
+     * @return Cc addresses without empty ones or null if not present
+     */
+    public String[] getCcList() {
+        return partsCount > 1 ? split(partStart[1], partEnd[1], ',', true) : null;
+    }
+
+    /**
+     * Gets bcc addresses from first line.
+     *
+     * @return Bcc addresses without empty ones or null if not present
+     */
+    public String[] getBccList() {
+        return partsCount > 2 ? split(partStart[2], partEnd[2], ',', true) : null;
+    }
+
+    /**
+     * Gets message text that follows first line, trimmed and with
+     * non-breaking spaces replaced.
+     *
+     * @return Message text
+     */
+    public String getMessageText() {
+        return firstLineEnd < fields.length() ? clean(firstLineEnd + 1, fields.length(), " ") : "";
+    }
+
+    /**
+     * Checks if beginning of message contains all parts needed for routing:
+     * recipients, operator, subject and complete first line of body.
+     *
+     * @param header Beginning of message
+     * @param separator Eventout separator
+     * @return TRUE if header can be parsed without rest of message
+     */
+    public static boolean hasFirstLine(CharSequence header, String separator) {
+        try {
+            return new EventOutParser(header, separator).firstLineEnd < header.length();
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Gets ticket numbers found in text.
+     *
+     * @param text Text to search (subject)
+     * @return Comma separated ticket numbers or null if none was found
+     */
+    public static String getTicketNumbers(CharSequence text) {
+        Matcher matcher = TICKET_PATTERN.matcher(text);
+        StringBuilder numbers = null;
+
+        while (matcher.find()) {
+            if (numbers == null) {
+                numbers = new StringBuilder();
+            } else {
+                numbers.append(',');
+            }
+
+            numbers.append(text, matcher.start(), matcher.end());
+        }
+
+        return numbers == null ? null : numbers.toString();
+    }
+
+    /**
+     * Checks if text starts with prefix.
+     *
+     * @param text Text
+     * @param prefix Prefix
+     * @return TRUE if text starts with prefix
+     */
+    public static boolean startsWith(CharSequence text, String prefix) {
+        return regionMatches(text, 0, prefix);
+    }
+
+    /**
+     * Compares characters of two texts.
+     *
+     * @param a First text
+     * @param b Second text
+     * @return TRUE if both texts have the same characters
+     */
+    public static boolean contentEquals(CharSequence a, CharSequence b) {
+        if (a.length() != b.length()) {
+            return false;
+        }
+
+        for (int i = 0; i < a.length(); i++) {
+            if (a.charAt(i) != b.charAt(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Splits region by delimiter, values are trimmed and non-breaking spaces
+     * are removed. Like String.split, trailing empty values are dropped.
+     *
+     * @param start Region start
+     * @param end Region end (exclusive)
+     * @param delimiter Delimiter
+     * @param dropEmpty Drops all values that are empty after trimming
+     * @return Values
+     */
+    private String[] split(int start, int end, char delimiter, boolean dropEmpty) {
+        ArrayList<String> values = new ArrayList<String>();
+        int valueStart = start;
+        int lastNonEmpty = -1;
+
+        for (int pos = start; pos <= end; pos++) {
+            if (pos == end || fields.charAt(pos) == delimiter) {
+                String value = clean(valueStart, pos, "");
+
+                if (!dropEmpty || !value.isEmpty()) {
+                    values.add(value);
+                }
+
+                if (pos > valueStart) {
+                    lastNonEmpty = values.size() - 1;
+                }
+
+                valueStart = pos + 1;
+            }
+        }
+
+        if (!dropEmpty && values.size() > 1) {
+            values.subList(lastNonEmpty + 1, values.size()).clear();
+        }
+
+        return values.toArray(new String[values.size()]);
+    }
+
+    /**
+     * Creates trimmed string of region with non-breaking spaces replaced.
+     * Region without non-breaking spaces is copied only once.
+     *
+     * @param start Region start
+     * @param end Region end (exclusive)
+     * @param replacement Replacement of non-breaking space
+     * @return Cleaned value
+     */
+    private String clean(int start, int end, String replacement) {
+        while (start < end && fields.charAt(start) <= ' ') {
+            start++;
+        }
+
+        while (end > start && fields.charAt(end - 1) <= ' ') {
+            end--;
+        }
+
+        int nbsp = start;
+        while (nbsp < end && fields.charAt(nbsp) != NBSP) {
+            nbsp++;
+        }
+
+        if (nbsp == end) {
+            return fields.subSequence(start, end).toString();
+        }
+
+        StringBuilder value = new StringBuilder(end - start);
+        value.append(fields, start, nbsp);
+
+        for (int pos = nbsp; pos < end; pos++) {
+            char c = fields.charAt(pos);
+
+            if (c == NBSP) {
+                value.append(replacement);
+            } else {
+                value.append(c);
+            }
+        }
+
+        return value.toString();
+    }
+
+    /**
+     * Creates view of region without copying characters.
+     *
+     * @param start Region start
+     * @param end Region end (exclusive)
+     * @return View of region
+     */
+    private CharSequence view(int start, int end) {
+        return CharBuffer.wrap(fields, start, end);
+    }
+
+    /**
+     * Checks if text contains value at position.
+     *
+     * @param text Text
+     * @param offset Position in text
+     * @param value Value
+     * @return TRUE if value is found at position
+     */
+    private static boolean regionMatches(CharSequence text, int offset, String value) {
+        if (offset + value.length() > text.length()) {
+            return false;
+        }
+
+        for (int i = 0; i < value.length(); i++) {
+            if (text.charAt(offset + i) != value.charAt(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
@@ -1,13 +1,15 @@
 package com.soprasteria.notificationemail;
 
-import java.sql.Clob;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.Calendar;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.LinkedHashMap;
 import javax.mail.Address;
-import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
 import org.apache.log4j.Logger;
 import org.jsoup.Jsoup;
@@ -19,12 +21,11 @@ import org.jsoup.Jsoup;
  */
 public class EventOutRecord implements Runnable {
 
-    private final Clob evFields;
     private final Calendar evTime;
     private final String evSysSeq;
     private final Company companyRecords;
     private final Database database;
-    private final Email email;
+    private Email email;
     private String subject;
     private Address sender;
     private Address[] recipients;
@@ -35,80 +36,538 @@ public class EventOutRecord implements Runnable {
     private String company;
     private String ticketNumbers;
     private String eventOperator;
+    // record is finished by coalescer, digester, retry scheduler or send stage
+    private boolean deferred = false;
+    // SMTP object with message built by parse stage
+    private Smtp prepared;
+    // beginning of message fetched with record for priority lanes, fair queuing and ticket affinity
+    private String header;
+    // message read by read stage before parsing
+    private String message;
+    private boolean messageRead = false;
+    // ticket held by record until it is released
+    private volatile String affinityKey;
+    // hash remembered by duplicate filter
+    private String duplicateHash;
+    // record is collected to digests, digests not sent yet and failed digests
+    private boolean digest = false;
+    private int digestParts;
+    private int digestTotal;
+    private int digestFailed;
+    private int digestTransient;
+    private String transientStatus;
+    // recipients whose digest had only this record, they get original message
+    private final ArrayList<Address> digestAlone = new ArrayList<Address>();
     private static final Logger logger = Logger.getLogger(EventOutRecord.class);
 
     /**
      * EventOutRecord constructor.
      *
-     * @param evFields Field with message from notification
      * @param evTime Calendar of the event
      * @param evSysSeq Unique event key
      * @param companyReocrds Company object
      * @param database Database object
      */
-    public EventOutRecord(Clob evFields, long evTime, String evSysSeq, Company companyReocrds, Database database) {
-        this.evFields = evFields;
+    public EventOutRecord(long evTime, String evSysSeq, Company companyReocrds, Database database) {
         this.evTime = Calendar.getInstance();
         this.evTime.setTimeInMillis(evTime);
         this.evSysSeq = evSysSeq;
         this.companyRecords = companyReocrds;
         this.database = database;
-
-        this.email = new Email();
     }
 
     /**
-     * Sends email with provided content.
+     * Sends email with provided content. Duplicate of e-mail sent recently is
+     * not sent. Record of digest company is sent in digests of its recipients,
+     * record with the same content as other records can be sent together with
+     * them by coalescer. In staged mode message is built here and sent by send
+     * stage.
      *
      * @throws Exception
      */
     private void sendEmail() throws Exception {
-        boolean sendHtml = false;
+        DuplicateFilter filter = DuplicateFilter.getCurrent();
+        if (filter != null) {
+            String hash = getContentHash(true);
+            int state = filter.reserve(hash);
+
+            if (state == DuplicateFilter.SENT) {
+                if (!Configuration.isReadOnly) {
+                    database.markRecord(evSysSeq, "duplicate");
+                }
 
-        if (finalHtml != null) {
-            sendHtml = true;
+                logger.info(getRecordNumber() + "The same e-mail was sent within " + Configuration.duplicate_window + " seconds, record will not be sent.");
+
+                return;
+            } else if (state == DuplicateFilter.SENDING) {
+                // it is marked as duplicate by next run only if the other e-mail is sent
+                logger.info(getRecordNumber() + "The same e-mail is being sent, record is left in eventout for next run.");
+
+                return;
+            }
+
+            duplicateHash = hash;
+        }
+
+        email = createEmail(recipients, evSysSeq);
+
+        Digester digester = Digester.getCurrent();
+        if (digest && digester != null && digester.add(this)) {
+            deferred = true;
+
+            return;
+        }
+
+        Coalescer coalescer = Coalescer.getCurrent();
+        if (coalescer != null && coalescer.add(this)) {
+            deferred = true;
+
+            return;
+        }
+
+        Pipeline pipeline = Pipeline.getCurrent();
+        if (pipeline != null) {
+            Smtp smtp = createSmtp();
+            smtp.prepare(email);
+            prepared = smtp;
+
+            pipeline.send(new Runnable() {
+                @Override
+                public void run() {
+                    finish(null);
+                }
+            });
+            deferred = true;
+
+            return;
+        }
+
+        deferred = complete(createSmtp().sendEmail(email));
+    }
+
+    /**
+     * Creates e-mail with content of this record.
+     *
+     * @param to Recipients
+     * @param eventID Event ID used in logs
+     * @return E-mail
+     */
+    Email createEmail(Address[] to, String eventID) {
+        return createEmail(to, cc, bcc, eventID);
+    }
+
+    /**
+     * Creates e-mail with content of this record and provided recipients.
+     *
+     * @param to Recipients
+     * @param cc Cc recipients or null
+     * @param bcc Bcc recipients or null
+     * @param eventID Event ID used in logs
+     * @return E-mail
+     */
+    Email createEmail(Address[] to, Address[] cc, Address[] bcc, String eventID) {
+        Email created = new Email();
+
+        created.setSubject(subject);
+        created.setContentText(finalText);
+        created.setContentHtml(finalHtml);
+        created.setSender(sender);
+        created.setRecipients(to);
+        created.setCC(cc);
+        created.setBCC(bcc);
+        created.setCompany(company);
+        created.setTicketNumbers(ticketNumbers);
+        created.setEventID(eventID);
+        created.setEventOperator(eventOperator);
+        created.setSentDate(evTime);
+
+        return created;
+    }
+
+    /**
+     * Creates e-mail coalesced from records with the same content. Recipients
+     * of all records are sent in bcc, so they do not see each other.
+     *
+     * @param to Recipients of all records
+     * @param eventID Event IDs used in logs
+     * @return E-mail
+     */
+    Email createCoalescedEmail(Address[] to, String eventID) {
+        Address[] hidden = to;
+
+        if (bcc != null && bcc.length > 0) {
+            hidden = Arrays.copyOf(bcc, bcc.length + to.length);
+            System.arraycopy(to, 0, hidden, bcc.length, to.length);
+        }
+
+        return createEmail(null, cc, hidden, eventID);
+    }
+
+    /**
+     * Creates SMTP object for e-mail of this record.
+     *
+     * @return SMTP object
+     */
+    Smtp createSmtp() {
+        return createSmtp(finalHtml != null);
+    }
+
+    /**
+     * Creates SMTP object.
+     *
+     * @param html TRUE if e-mail has HTML body
+     * @return SMTP object
+     */
+    static Smtp createSmtp(boolean html) {
+        return new Smtp(Configuration.smtp_user, Configuration.smtp_password, Configuration.smtp_host, Configuration.smtp_port, Configuration.smtp_req_auth, Configuration.smtp_ssl, html);
+    }
+
+    /**
+     * Updates record with sending status. Record that failed for transient
+     * reason is scheduled for retry, record that was retried for too long is
+     * marked as error.
+     *
+     * @param smtpStatus Sending status
+     * @return TRUE if record was scheduled for retry and must not be released
+     * @throws Exception
+     */
+    private boolean complete(String smtpStatus) throws Exception {
+        if (smtpStatus.equals("SUCCESS") || smtpStatus.equals("PARTIAL_SUCCESS")) {
+            rememberDuplicate();
         }
-        email.setSubject(subject);
-        email.setContentText(finalText);
-        email.setContentHtml(finalHtml);
-        email.setSender(sender);
-        email.setRecipients(recipients);
-        email.setCC(cc);
-        email.setBCC(bcc);
-        email.setCompany(company);
-        email.setTicketNumbers(ticketNumbers);
-        email.setEventID(evSysSeq);
-        email.setEventOperator(eventOperator);
-        email.setSentDate(evTime);
-
-        Smtp smtp = new Smtp(Configuration.smtp_user, Configuration.smtp_password, Configuration.smtp_host, Configuration.smtp_port, Configuration.smtp_req_auth, Configuration.smtp_ssl, sendHtml);
-        String smtpStatus = smtp.sendEmail(email);
 
         if (smtpStatus.equals("SUCCESS")) {
             // remove record from table
             if (!Configuration.isReadOnly) {
-                database.removeRecordFromEventOut(evSysSeq);
+                database.recordSent(evSysSeq, null);
             }
-        } else if (smtpStatus.equals("FAILURE") || smtpStatus.equals("PARTIAL_SUCCESS")) {
-            // update record with status
+
+            return false;
+        } else if (smtpStatus.equals("PARTIAL_SUCCESS")) {
+            if (!Configuration.isReadOnly) {
+                database.recordSent(evSysSeq, "warning");
+            }
+
+            return false;
+        } else if (smtpStatus.equals("FAILURE") || smtpStatus.equals("TEMPORARY_FAILURE") && RetryScheduler.getCurrent() == null) {
             if (!Configuration.isReadOnly) {
-                if (smtpStatus.equals("FAILURE")) {
+                database.markRecord(evSysSeq, "error");
+            }
+        } else if (RetryScheduler.isTransient(smtpStatus) && RetryScheduler.getCurrent() != null) {
+            RetryScheduler retries = RetryScheduler.getCurrent();
+
+            if (retries.isExpired(evSysSeq)) {
+                if (!Configuration.isReadOnly) {
                     database.markRecord(evSysSeq, "error");
-                } else {
-                    database.markRecord(evSysSeq, "warning");
                 }
+
+                logger.error(getRecordNumber() + "E-mail was not sent within " + Configuration.retry_max_age + " seconds and record will be ignored!");
+            } else if (retries.schedule(this, smtpStatus)) {
+                // ticket stays held, run does not wait for retry
+                AffinityDispatcher.retrying(this);
+
+                return true;
             }
         }
+
+        return false;
     }
 
     /**
-     * Run method for ThreadExecutor. Executes event record parsing.
+     * Lets duplicate filter remember e-mail of this record that was sent, so
+     * its copies are suppressed.
+     */
+    private void rememberDuplicate() {
+        DuplicateFilter filter = DuplicateFilter.getCurrent();
+
+        if (filter != null && duplicateHash != null) {
+            filter.sent(duplicateHash);
+            duplicateHash = null;
+        }
+    }
+
+    /**
+     * Lets duplicate filter forget e-mail of this record that was not sent,
+     * so its next copy is sent.
+     */
+    private void forgetDuplicate() {
+        DuplicateFilter filter = DuplicateFilter.getCurrent();
+
+        if (filter != null && duplicateHash != null) {
+            filter.forget(duplicateHash);
+            duplicateHash = null;
+        }
+    }
+
+    /**
+     * Finishes record deferred by coalescer, digester, retry scheduler or
+     * send stage.
+     *
+     * @param smtpStatus Status of coalesced e-mail or null when record is
+     * sent alone
+     */
+    void finish(String smtpStatus) {
+        boolean scheduled = false;
+
+        try {
+            if (smtpStatus == null) {
+                Smtp smtp = prepared != null ? prepared : createSmtp();
+
+                // retry builds message again
+                prepared = null;
+                smtpStatus = smtp.sendEmail(email);
+            }
+
+            scheduled = complete(smtpStatus);
+        } catch (Throwable e) {
+            logger.error(getRecordNumber() + "Unable to send deferred eventout record", e);
+        } finally {
+            if (!scheduled) {
+                release();
+            }
+        }
+    }
+
+    /**
+     * Gives up claim of record that was not removed nor marked, so it can be
+     * processed by other instance.
+     */
+    void release() {
+        // e-mail that was not sent is forgotten whatever the status was, so its next copy is sent
+        forgetDuplicate();
+
+        try {
+            database.releaseRecord(evSysSeq);
+        } catch (Throwable e) {
+            logger.error(getRecordNumber() + "Unable to release eventout record", e);
+        }
+
+        // record is finished, next record of its ticket can run
+        AffinityDispatcher.done(this);
+    }
+
+    /**
+     * Sets number of digests this record is sent in.
+     *
+     * @param parts Number of digests
+     */
+    synchronized void startDigest(int parts) {
+        digestParts = parts;
+        digestTotal = parts;
+        digestFailed = 0;
+        digestTransient = 0;
+        digestAlone.clear();
+    }
+
+    /**
+     * Records result of one digest with this record. Record is finished when
+     * all its digests were sent.
+     *
+     * @param digestStatus Sending status of digest or null if it was not sent
+     */
+    void digested(String digestStatus) {
+        synchronized (this) {
+            countDigests(digestStatus, 1);
+
+            if (--digestParts > 0) {
+                return;
+            }
+        }
+
+        finishDigests();
+    }
+
+    /**
+     * Records recipient whose digest had only this record. Record is sent to
+     * all such recipients as one original message when all its digests were
+     * sent, or as it is when no recipient got digest.
+     *
+     * @param recipient Recipient of digest
+     */
+    void digestedAlone(Address recipient) {
+        synchronized (this) {
+            digestAlone.add(recipient);
+
+            if (--digestParts > 0) {
+                return;
+            }
+        }
+
+        finishDigests();
+    }
+
+    /**
+     * Counts result of digests.
+     *
+     * @param digestStatus Sending status or null if digests were not sent
+     * @param parts Number of digests
+     */
+    private void countDigests(String digestStatus, int parts) {
+        if (!"SUCCESS".equals(digestStatus)) {
+            digestFailed += parts;
+
+            if (digestStatus != null && RetryScheduler.isTransient(digestStatus)) {
+                digestTransient += parts;
+                transientStatus = digestStatus;
+            }
+        }
+    }
+
+    /**
+     * Sends original message to recipients without digest and finishes
+     * record with combined status of all its digests.
+     */
+    private void finishDigests() {
+        String smtpStatus;
+
+        if (digestAlone.size() == digestTotal) {
+            // record is sent as it is, with its own to, cc and bcc
+            finish(null);
+
+            return;
+        }
+
+        if (!digestAlone.isEmpty()) {
+            int alone = digestAlone.size();
+            String aloneStatus = null;
+
+            try {
+                aloneStatus = createSmtp().sendEmail(createEmail(retain(recipients), retain(cc), retain(bcc), evSysSeq));
+            } catch (Throwable e) {
+                logger.error(getRecordNumber() + "Unable to send e-mail to recipients without digest", e);
+            }
+
+            synchronized (this) {
+                countDigests(aloneStatus, alone);
+            }
+        }
+
+        synchronized (this) {
+            if (digestFailed == 0) {
+                smtpStatus = "SUCCESS";
+            } else if (digestFailed == digestTotal) {
+                // record is retried alone when no digest was sent for transient reason
+                smtpStatus = digestTransient == digestFailed ? transientStatus : "FAILURE";
+            } else {
+                smtpStatus = "PARTIAL_SUCCESS";
+            }
+        }
+
+        finish(smtpStatus);
+    }
+
+    /**
+     * Gets addresses of list that are recipients without digest. Every
+     * recipient is taken only once, from first list it is in.
+     *
+     * @param list To, cc or bcc recipients
+     * @return Recipients without digest or null if there are none
+     */
+    private Address[] retain(Address[] list) {
+        ArrayList<Address> retained = new ArrayList<Address>();
+
+        for (int i = 0; list != null && i < list.length; i++) {
+            String address = getAddress(list[i]);
+
+            for (int j = 0; j < digestAlone.size(); j++) {
+                if (getAddress(digestAlone.get(j)).equals(address)) {
+                    digestAlone.remove(j);
+                    retained.add(list[i]);
+
+                    break;
+                }
+            }
+        }
+
+        return retained.isEmpty() ? null : retained.toArray(new Address[retained.size()]);
+    }
+
+    /**
+     * Run method for ThreadExecutor. Executes event record parsing. In staged
+     * mode message is read here and record is parsed by parse stage.
      */
     public void run() {
+        Pipeline pipeline = Pipeline.getCurrent();
+
+        if (pipeline != null) {
+            try {
+                read();
+                pipeline.parse(new Runnable() {
+                    @Override
+                    public void run() {
+                        process();
+                    }
+                });
+
+                return;
+            } catch (Throwable e) {
+                logger.error(getRecordNumber() + "Unable to read eventout record:\r\n", e);
+            }
+
+            release();
+
+            return;
+        }
+
+        process();
+    }
+
+    /**
+     * Parses record and sends e-mail. Record that was not deferred is
+     * released.
+     */
+    private void process() {
         try {
             parse();
         } catch (Throwable e) {
             logger.error(getRecordNumber() + "Unable to parse eventout record:\r\n", e);
+        } finally {
+            // record that was not removed nor marked can be processed by other instance
+            if (!deferred) {
+                release();
+            }
+        }
+    }
+
+    /**
+     * Reads message of record. With two-phase read beginning of message is
+     * read first and whole message only for treated company.
+     *
+     * @throws Exception
+     */
+    void read() throws Exception {
+        String temp;
+
+        if (Configuration.eventout_two_phase) {
+            // routing is decided on beginning of message, whole message is read only if it will be sent
+            temp = header != null ? header : database.getEventOutHeader(evSysSeq);
+
+            if (temp != null && temp.length() >= database.getHeaderSize()
+                    && (!EventOutParser.hasFirstLine(temp, Configuration.separator) || isTreated(temp))) {
+                temp = database.getEventOutFields(evSysSeq);
+            }
+        } else {
+            temp = database.getEventOutFields(evSysSeq);
+        }
+
+        header = null;
+        message = temp;
+        messageRead = true;
+    }
+
+    /**
+     * Checks if company of message is treated.
+     *
+     * @param header Beginning of message with first line of body
+     * @return TRUE if company is treated or it cannot be found in header
+     */
+    private boolean isTreated(String header) {
+        try {
+            CompanyRecord companyRecord = companyRecords.getCompanyRecord(new EventOutParser(header, Configuration.separator).getCompany());
+
+            return companyRecord != null && companyRecord.isTreated();
+        } catch (IllegalArgumentException e) {
+            return true;
         }
     }
 
@@ -118,79 +577,68 @@ public class EventOutRecord implements Runnable {
      * @throws Exception
      */
     public void parse() throws Exception {
-        String targetRecipients = "";
-        String targetSubject = "";
-        String targetBody;
         StringBuilder overriddenEmails = new StringBuilder();
 
-        if (evFields != null && evFields.length() > 0) {
-            String temp = evFields.getSubString(1, (int) evFields.length());
-            int currPos = 0;
-            int oldPos = 0;
+        if (database.isSent(evSysSeq)) {
+            logger.info(getRecordNumber() + "E-mail was already sent, record will not be sent again.");
 
-            for (int i = 0; i < 4; i++) {
-                currPos = temp.indexOf(Configuration.separator, currPos);
+            return;
+        }
 
-                switch (i) {
-                    case 0:
-                        targetRecipients = temp.substring(0, currPos);
-                        logger.trace(getRecordNumber() + "Recipient(s) found: " + targetRecipients);
+        if (!messageRead) {
+            read();
+        }
 
-                        break;
-                    case 1:
-                        eventOperator = temp.substring(oldPos, currPos);
-                        logger.trace(getRecordNumber() + "Event operator found: " + eventOperator);
+        String temp = message;
 
-                        break;
-                    case 3:
-                        targetSubject = temp.substring(oldPos, currPos);
-                        logger.trace(getRecordNumber() + "Subject found: " + targetSubject);
+        message = null;
+        messageRead = false;
 
-                        break;
-                    default:
-                        break;
-                }
+        if (temp != null && temp.length() > 0) {
+            EventOutParser parser = new EventOutParser(temp, Configuration.separator);
+            CharSequence targetSubject = parser.getSubject();
+            CharSequence targetBody = parser.getBody();
 
-                currPos += 1;
-                oldPos = currPos;
+            if (logger.isTraceEnabled()) {
+                logger.trace(getRecordNumber() + "Recipient(s) found: " + parser.getRecipients());
+                logger.trace(getRecordNumber() + "Event operator found: " + parser.getOperator());
+                logger.trace(getRecordNumber() + "Subject found: " + targetSubject);
+                logger.trace(getRecordNumber() + "Body found: " + targetBody);
             }
 
-            targetBody = temp.substring(oldPos, temp.length());
-            logger.trace(getRecordNumber() + "Body found: " + targetBody);
+            eventOperator = parser.getOperator().toString();
+
+            boolean subjectMissing = false;
 
-            if (targetSubject.equals(targetBody)) {
-                targetSubject = "";
+            if (EventOutParser.contentEquals(targetSubject, targetBody)) {
+                subjectMissing = true;
                 logger.warn(getRecordNumber() + "Subject is missing in notification record!");
-            } else if (targetSubject.startsWith("Message - Could not be found:")) {
-                targetSubject = "";
+            } else if (EventOutParser.startsWith(targetSubject, "Message - Could not be found:")) {
+                subjectMissing = true;
                 logger.warn(getRecordNumber() + "Subject message is missing!");
-            } else if (targetSubject.startsWith("This message did not provide enough arguments:")) {
-                targetSubject = "";
+            } else if (EventOutParser.startsWith(targetSubject, "This message did not provide enough arguments:")) {
+                subjectMissing = true;
                 logger.warn(getRecordNumber() + "Subject message did not provide enough arguments!");
             }
 
-            if (targetBody.startsWith("Message - Could not be found:")) {
+            if (EventOutParser.startsWith(targetBody, "Message - Could not be found:")) {
                 database.markRecord(evSysSeq, "error");
 
                 logger.error(getRecordNumber() + "Body message is missing and record will be ignored!");
-            } else if (targetBody.startsWith("This message did not provide enough arguments:")) {
+            } else if (EventOutParser.startsWith(targetBody, "This message did not provide enough arguments:")) {
                 database.markRecord(evSysSeq, "error");
 
                 logger.error(getRecordNumber() + "Body message did not provide enough arguments and record will be ignored!");
             } else {
-                int firstLine = targetBody.indexOf("\n");
-                if (firstLine < 0) {
-                    firstLine = targetBody.length();
+                if (logger.isDebugEnabled()) {
+                    logger.debug(getRecordNumber() + "First line: " + parser.getFirstLine());
                 }
-                logger.debug(getRecordNumber() + "First line: " + targetBody.substring(0, firstLine));
 
-                String[] company_to_array = targetBody.substring(0, firstLine).split("\\|");
-                company = company_to_array[0].trim().replace(Configuration.NBSP, "");
+                company = parser.getCompany();
 
                 CompanyRecord companyRecord = companyRecords.getCompanyRecord(company);
                 if (companyRecord != null) {
-                    if ((Configuration.include_companies == null || Configuration.include_companies.contains(companyRecord.getCompany()))
-                            && (Configuration.exclude_companies == null || !Configuration.exclude_companies.contains(companyRecord.getCompany()))) {
+                    if (companyRecord.isTreated()) {
                         logger.info(getRecordNumber() + "Processing record for company " + companyRecord.getCompany());
 
                         // increase notifications count
@@ -199,13 +647,7 @@ public class EventOutRecord implements Runnable {
                         // setting email addresses
                         // sender
                         if (Configuration.new_sender == null) {
-                            if (companyRecord.getSenderEmail() != null) {
-                                if (companyRecord.getSenderName() != null) {
-                                    sender = new InternetAddress(companyRecord.getSenderEmail(), companyRecord.getSenderName(), Configuration.encoding);
-                                } else {
-                                    sender = new InternetAddress(companyRecord.getSenderEmail(), companyRecord.getSenderEmail(), Configuration.encoding);
-                                }
-                            }
+                            sender = companyRecord.getSender();
                         } else {
                             overriddenEmails.append("Original sender:\t");
                             overriddenEmails.append(companyRecord.getSenderEmail());
@@ -218,15 +660,10 @@ public class EventOutRecord implements Runnable {
                         if (sender != null) {
                             // recipients
                             if (Configuration.new_recipients == null) {
-                                String[] recipientsArray = targetRecipients.split(";");
-                                recipients = new Address[recipientsArray.length];
-
-                                for (int i = 0; i < recipientsArray.length; i++) {
-                                    recipients[i] = new InternetAddress(recipientsArray[i].trim().replace(Configuration.NBSP, ""), recipientsArray[i].trim().replace(Configuration.NBSP, ""), Configuration.encoding);
-                                }
+                                recipients = toAddresses(parser.getRecipientList());
                             } else {
                                 overriddenEmails.append("Original recipient(s):\t");
-                                overriddenEmails.append(targetRecipients);
+                                overriddenEmails.append(parser.getRecipients());
                                 overriddenEmails.append("\r\n");
 
                                 recipients = Configuration.new_recipients;
@@ -234,18 +671,14 @@ public class EventOutRecord implements Runnable {
 
                             // cc
                             if (Configuration.new_cc == null) {
-                                if (company_to_array.length > 1) {
-                                    String[] ccArray = splitEmailArray(company_to_array[1], ",");
-                                    cc = new Address[ccArray.length];
-
-                                    for (int i = 0; i < ccArray.length; i++) {
-                                        cc[i] = new InternetAddress(ccArray[i], ccArray[i], Configuration.encoding);
-                                    }
+                                String[] ccArray = parser.getCcList();
+                                if (ccArray != null) {
+                                    cc = toAddresses(ccArray);
                                 }
                             } else {
-                                if (company_to_array.length > 1) {
+                                if (parser.getCc() != null) {
                                     overriddenEmails.append("Original cc(s):\t\t");
-                                    overriddenEmails.append(company_to_array[1].replace(",", "; "));
+                                    overriddenEmails.append(parser.getCc().toString().replace(",", "; "));
                                     overriddenEmails.append("\r\n");
                                 }
 
@@ -254,40 +687,34 @@ public class EventOutRecord implements Runnable {
 
                             // bcc
                             if (Configuration.new_bcc == null) {
-                                if (company_to_array.length > 2) {
-                                    String[] bccArray = splitEmailArray(company_to_array[2], ",");
-                                    bcc = new Address[bccArray.length];
-
-                                    for (int i = 0; i < bccArray.length; i++) {
-                                        bcc[i] = new InternetAddress(bccArray[i], bccArray[i], Configuration.encoding);
-                                    }
+                                String[] bccArray = parser.getBccList();
+                                if (bccArray != null) {
+                                    bcc = toAddresses(bccArray);
                                 }
                             } else {
-                                if (company_to_array.length > 2) {
+                                if (parser.getBcc() != null) {
                                     overriddenEmails.append("Original bcc(s):\t");
-                                    overriddenEmails.append(company_to_array[2].replace(",", "; "));
+                                    overriddenEmails.append(parser.getBcc().toString().replace(",", "; "));
                                     overriddenEmails.append("\r\n");
                                 }
 
                                 bcc = Configuration.new_bcc;
                             }
 
-                            getTicketNumbers(targetSubject);
-
-                            subject = targetSubject.trim().replace(Configuration.NBSP, " ");
-
-                            if (targetBody.length() > 0 && firstLine != targetBody.length()) {
-                                targetBody = targetBody.substring(firstLine + 1, targetBody.length());
-                            } else {
-                                targetBody = "";
+                            ticketNumbers = EventOutParser.getTicketNumbers(subjectMissing ? "" : targetSubject);
+                            if (ticketNumbers == null) {
+                                ticketNumbers = "Ticket number not found.";
                             }
 
+                            subject = subjectMissing ? "" : parser.getSubjectText();
+
                             // prepare string for overriden e-mails
                             if (overriddenEmails.length() > 0) {
                                 overriddenEmails.insert(0, "\r\n\r\n---------------------------------------------------------------------\r\n");
                             }
 
-                            setBody(targetBody.trim().replace(Configuration.NBSP, " "), overriddenEmails.toString());
+                            setBody(parser.getMessageText(), overriddenEmails.toString());
+                            digest = companyRecord.isDigest();
 
                             sendEmail();
                         } else {
@@ -318,10 +745,9 @@ public class EventOutRecord implements Runnable {
      * @param overriddenEmails
      */
     public void setBody(String body, String overriddenEmails) {
-        if (body.toLowerCase().startsWith("<html") && body.toLowerCase().endsWith("</html>")) {
+        if (body.regionMatches(true, 0, "<html", 0, 5) && body.regionMatches(true, body.length() - 7, "</html>", 0, 7)) {
             if (overriddenEmails.length() > 0) {
-                int lastHtmlClose = body.toLowerCase().lastIndexOf("</html>");
-                body = body.substring(0, lastHtmlClose);
+                body = body.substring(0, body.length() - 7);
                 body = body + "<pre>" + overriddenEmails + "</pre></html>";
             }
             finalText = Jsoup.parse(body).text();
@@ -332,47 +758,193 @@ public class EventOutRecord implements Runnable {
     }
 
     /**
-     * Gets ticket number from subject if present. First number that has been
-     * found will be used in log entry.
+     * Creates addresses with the same personal name as address.
+     *
+     * @param emails E-mail addresses
+     * @return Array of addresses
+     * @throws UnsupportedEncodingException
+     */
+    private Address[] toAddresses(String[] emails) throws UnsupportedEncodingException {
+        Address[] addresses = new Address[emails.length];
+
+        for (int i = 0; i < emails.length; i++) {
+            addresses[i] = new InternetAddress(emails[i], emails[i], Configuration.encoding);
+        }
+
+        return addresses;
+    }
+
+    /**
+     * Gets e-mail of this record.
+     *
+     * @return E-mail or null if record was not parsed yet
+     */
+    Email getEmail() {
+        return email;
+    }
+
+    /**
+     * Gets distinct recipients, cc and bcc recipients of this record.
      *
-     * @param targetSubject
+     * @return Recipients of digests
      */
-    private void getTicketNumbers(String targetSubject) {
-        Pattern pattern = Pattern.compile("(SD|IM|RQ|OM|CM|CT|KM|KE|PM|DT)\\d{9}(-\\d{3})?");
-        Matcher matcher = pattern.matcher(targetSubject);
+    Address[] getDigestRecipients() {
+        LinkedHashMap<String, Address> distinct = new LinkedHashMap<String, Address>();
+        Address[][] lists = {recipients, cc, bcc};
 
-        StringBuilder numbers = new StringBuilder();
+        for (Address[] list : lists) {
+            for (int i = 0; list != null && i < list.length; i++) {
+                String address = getAddress(list[i]);
 
-        while (matcher.find()) {
-            numbers.append(matcher.group()).append(",");
+                if (!distinct.containsKey(address)) {
+                    distinct.put(address, list[i]);
+                }
+            }
         }
 
-        if (numbers.length() > 0) {
-            ticketNumbers = numbers.substring(0, numbers.length() - 1);
+        return distinct.values().toArray(new Address[distinct.size()]);
+    }
+
+    /**
+     * Gets lower case e-mail address.
+     *
+     * @param address Address
+     * @return E-mail address
+     */
+    static String getAddress(Address address) {
+        return (address instanceof InternetAddress ? ((InternetAddress) address).getAddress() : String.valueOf(address)).toLowerCase();
+    }
+
+    /**
+     * Appends ticket number, subject and body of this record to digest.
+     *
+     * @param text Text body of digest
+     * @param html HTML body of digest
+     */
+    void appendDigestEntry(StringBuilder text, StringBuilder html) {
+        text.append(ticketNumbers).append(" - ").append(subject).append("\r\n\r\n");
+        text.append(finalText);
+        text.append("\r\n\r\n---------------------------------------------------------------------\r\n\r\n");
+
+        html.append("<h3>").append(escapeHtml(ticketNumbers)).append(" - ").append(escapeHtml(subject)).append("</h3>\r\n");
+        if (finalHtml != null) {
+            html.append(Jsoup.parse(finalHtml).body().html());
         } else {
-            ticketNumbers = "Ticket number not found.";
+            html.append("<pre>").append(escapeHtml(finalText)).append("</pre>");
         }
+        html.append("\r\n<hr>\r\n");
     }
 
     /**
-     * Splits one string with separated e-mails to string array
+     * Escapes text for HTML body.
      *
-     * @param emails List of e-mails separated by provided separator
-     * @param separator Separator used to separate e-mail addresses
-     * @return Array of e-mails
+     * @param text Text
+     * @return Escaped text
      */
-    private String[] splitEmailArray(String emails, String separator) {
-        String[] emailArray = emails.trim().split(separator);
+    private static String escapeHtml(String text) {
+        return text == null ? "" : text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    /**
+     * Gets recipients of this record.
+     *
+     * @return Recipients
+     */
+    Address[] getRecipients() {
+        return recipients;
+    }
+
+    /**
+     * Gets hash of content that has to be the same in coalesced records and
+     * duplicates: sender, subject, body, cc and bcc.
+     *
+     * @param withRecipients TRUE if recipients are part of content
+     * @return Content hash
+     */
+    String getContentHash(boolean withRecipients) {
+        String[] content = {String.valueOf(sender), subject, finalText, finalHtml, Arrays.toString(cc), Arrays.toString(bcc), null};
+
+        if (withRecipients && recipients != null) {
+            String[] addresses = new String[recipients.length];
+
+            for (int i = 0; i < recipients.length; i++) {
+                addresses[i] = getAddress(recipients[i]);
+            }
 
-        for (int i = 0; i < emailArray.length; i++) {
-            emailArray[i] = emailArray[i].trim().replace(Configuration.NBSP, "");
+            Arrays.sort(addresses);
+            content[6] = Arrays.toString(addresses);
         }
 
-        ArrayList<String> emailList = new ArrayList<String>(Arrays.asList(emailArray));
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+
+            for (int i = 0; i < content.length; i++) {
+                if (content[i] != null) {
+                    digest.update(content[i].getBytes(StandardCharsets.UTF_8));
+                }
+                // separator, null and empty value differ
+                digest.update((byte) 0);
+                digest.update((byte) (content[i] == null ? 0 : 1));
+            }
+
+            return Base64.getEncoder().encodeToString(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Gets time of event.
+     *
+     * @return Time of event in milliseconds
+     */
+    long getEvTime() {
+        return evTime.getTimeInMillis();
+    }
 
-        emailList.removeAll(Arrays.asList("", null));
+    /**
+     * Gets beginning of message fetched with record.
+     *
+     * @return First eventout_header_size characters of message or null
+     */
+    String getHeader() {
+        return header;
+    }
 
-        return emailList.toArray(new String[emailList.size()]);
+    /**
+     * Sets beginning of message fetched with record, so it is not read again.
+     *
+     * @param header First eventout_header_size characters of message
+     */
+    void setHeader(String header) {
+        this.header = header;
+    }
+
+    /**
+     * Gets ticket held by record.
+     *
+     * @return Ticket number or null if record does not hold ticket
+     */
+    String getAffinityKey() {
+        return affinityKey;
+    }
+
+    /**
+     * Sets ticket held by record until it is released.
+     *
+     * @param affinityKey Ticket number or null
+     */
+    void setAffinityKey(String affinityKey) {
+        this.affinityKey = affinityKey;
+    }
+
+    /**
+     * Gets unique event key.
+     *
+     * @return evsysseq key value
+     */
+    public String getEvSysSeq() {
+        return evSysSeq;
     }
 
     /**
@@ -0,0 +1,245 @@
+package com.soprasteria.notificationemail;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.log4j.Logger;
+
+/**
+ * Eventout queue shared fairly by companies (weighted fair queuing). Every
+ * company has its own queue and virtual time that grows by 1 / weight with
+ * every dispatched record, company with the lowest virtual time is served
+ * next, so company with mass update gets only its share of workers. Company
+ * with rate quota is skipped while its quota is exhausted and its records
+ * wait in queue without holding worker; records beyond one minute of quota
+ * are left in eventout for next run. Records of one company are ordered by
+ * priority lanes. On Oracle records are also fetched interleaved by company,
+ * otherwise fairness is limited to records in queue.
+ */
+public class FairQueue extends PriorityLanes {
+
+    // quotas are kept between runs of daemon
+    private static final ConcurrentHashMap<String, RateLimiter> quotas = new ConcurrentHashMap<String, RateLimiter>();
+    private final Company companies;
+    private final HashMap<String, Share> shares = new HashMap<String, Share>();
+    // companies with waiting records ordered by virtual time
+    private final TreeSet<Share> active = new TreeSet<Share>(new Comparator<Share>() {
+        @Override
+        public int compare(Share a, Share b) {
+            int result = Double.compare(a.virtualTime, b.virtualTime);
+
+            return result != 0 ? result : a.name.compareTo(b.name);
+        }
+    });
+    private double virtualTime = 0;
+    private long delay = 0;
+    private static final Logger logger = Logger.getLogger(FairQueue.class);
+
+    /**
+     * FairQueue constructor.
+     *
+     * @param capacity Maximal number of waiting records
+     * @param companies Company object resolving company of record
+     */
+    public FairQueue(int capacity, Company companies) {
+        super(capacity);
+
+        this.companies = companies;
+    }
+
+    /**
+     * Checks if fair queuing is configured.
+     *
+     * @return TRUE if records are dispatched fairly by company
+     */
+    public static boolean isEnabled() {
+        return Configuration.fair_queuing;
+    }
+
+    @Override
+    protected Entry createEntry(EventOutRecord record) {
+        Entry entry = super.createEntry(record);
+
+        return new CompanyEntry(entry, getCompany(record.getHeader()));
+    }
+
+    /**
+     * Gets company of record from beginning of its message.
+     *
+     * @param header Beginning of message or null if it was not fetched
+     * @return Company name or empty string if company is not known
+     */
+    private String getCompany(String header) {
+        if (header == null || companies == null || !EventOutParser.hasFirstLine(header, Configuration.separator)) {
+            return "";
+        }
+
+        CompanyRecord record = companies.getCompanyRecord(new EventOutParser(header, Configuration.separator).getCompany());
+
+        return record != null && record.getCompany() != null ? record.getCompany().toUpperCase() : "";
+    }
+
+    /**
+     * Checks if company of record has one minute of its quota waiting in
+     * queue already. Such record would only take place of other companies.
+     *
+     * @param record Eventout record
+     * @return TRUE if record should be left in eventout for next run
+     */
+    public boolean isThrottled(EventOutRecord record) {
+        if (Configuration.company_rate_limits == null) {
+            return false;
+        }
+
+        String name = getCompany(record.getHeader());
+        Integer perMinute = Configuration.company_rate_limits.get(name);
+
+        if (perMinute == null) {
+            return false;
+        }
+
+        synchronized (this) {
+            Share share = shares.get(name);
+
+            return share != null && share.records.size() >= perMinute;
+        }
+    }
+
+    @Override
+    protected void enqueue(Entry entry) {
+        String name = ((CompanyEntry) entry).company;
+        Share share = shares.get(name);
+
+        if (share == null) {
+            share = new Share(name);
+            shares.put(name, share);
+        }
+
+        if (share.records.isEmpty()) {
+            // idle company does not save up credit, it starts at current virtual time
+            share.virtualTime = Math.max(share.virtualTime, virtualTime);
+            share.records.add(entry);
+            active.add(share);
+        } else {
+            share.records.add(entry);
+        }
+    }
+
+    @Override
+    protected Entry dequeue(boolean all) {
+        Share chosen = null;
+
+        delay = Long.MAX_VALUE;
+
+        for (Share share : active) {
+            long wait = all || share.quota == null ? 0 : share.quota.tryReserve();
+
+            if (wait == 0) {
+                chosen = share;
+                break;
+            }
+
+            delay = Math.min(delay, wait);
+        }
+
+        if (chosen == null) {
+            return null;
+        }
+
+        delay = 0;
+        active.remove(chosen);
+
+        Entry entry = chosen.records.poll();
+        virtualTime = chosen.virtualTime;
+        chosen.virtualTime += 1.0 / chosen.weight;
+
+        if (!chosen.records.isEmpty()) {
+            active.add(chosen);
+        }
+
+        return entry;
+    }
+
+    @Override
+    protected Entry head() {
+        return active.isEmpty() ? null : active.first().records.peek();
+    }
+
+    @Override
+    protected long getDelay() {
+        return delay == Long.MAX_VALUE ? 0 : delay;
+    }
+
+    @Override
+    protected void copyTo(ArrayList<EventOutRecord> records) {
+        for (Share share : active) {
+            for (Entry entry : share.records) {
+                records.add(entry.record);
+            }
+        }
+    }
+
+    /**
+     * Gets rate quota of company, creating it when needed.
+     *
+     * @param name Company name
+     * @param perMinute Records per minute
+     * @return Company quota
+     */
+    private static RateLimiter getQuota(String name, int perMinute) {
+        RateLimiter quota = quotas.get(name);
+
+        if (quota == null) {
+            RateLimiter created = new RateLimiter("company " + name, perMinute / 60.0, 1);
+            quota = quotas.putIfAbsent(name, created);
+
+            if (quota == null) {
+                quota = created;
+            }
+        }
+
+        return quota;
+    }
+
+    /**
+     * Entry with company of record.
+     */
+    private static class CompanyEntry extends Entry {
+
+        private final String company;
+
+        private CompanyEntry(Entry entry, String company) {
+            super(entry.record, entry.deadline);
+
+            this.company = company;
+        }
+    }
+
+    /**
+     * Queue and virtual time of one company.
+     */
+    private static class Share {
+
+        private final String name;
+        private final int weight;
+        private final RateLimiter quota;
+        private final PriorityQueue<Entry> records = new PriorityQueue<Entry>();
+        private double virtualTime = 0;
+
+        private Share(String name) {
+            Integer configuredWeight = Configuration.company_weights != null ? Configuration.company_weights.get(name) : null;
+            Integer perMinute = Configuration.company_rate_limits != null ? Configuration.company_rate_limits.get(name) : null;
+
+            this.name = name;
+            this.weight = configuredWeight != null ? configuredWeight : 1;
+            this.quota = perMinute != null ? getQuota(name, perMinute) : null;
+
+            if (weight != 1 || quota != null) {
+                logger.debug("Fair queue of company " + name + ": weight " + weight + (quota != null ? ", quota " + perMinute + " records per minute" : ""));
+            }
+        }
+    }
+}
@@ -1,11 +1,7 @@
 package com.soprasteria.notificationemail;
 
-import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
 import org.apache.log4j.Logger;
 
 /**
@@ -16,6 +12,9 @@ import org.apache.log4j.Logger;
 public class Main {
 
     static Logger logger = Logger.getLogger(Main.class);
+    // Set by shutdown hook in daemon mode
+    private static volatile boolean shutdownRequested = false;
+    private static final Object pollLock = new Object();
 
     /**
      * @param args the command line arguments
@@ -26,21 +25,21 @@ public class Main {
 
         Configuration.start = Calendar.getInstance().getTime();
 
-        if (args.length > 2 || args.length < 1) {
+        if (args.length > 3 || args.length < 1) {
             printUsage();
 
             System.exit(0);
         } else {
-            if (args.length == 2) {
-                if (args[1].toUpperCase().equals("-R")) {
+            for (int i = 1; i < args.length; i++) {
+                if (args[i].toUpperCase().equals("-R")) {
                     Configuration.isReadOnly = Boolean.TRUE;
+                } else if (args[i].toUpperCase().equals("-D")) {
+                    Configuration.isDaemon = Boolean.TRUE;
                 } else {
                     printUsage();
 
                     System.exit(0);
                 }
-            } else {
-                // go standard
             }
         }
 
@@ -57,7 +56,8 @@ public class Main {
     }
 
     /**
-     * Stars processing eventout table.
+     * Stars processing eventout table. In daemon mode eventout is polled
+     * until application is stopped, otherwise it is processed once.
      *
      * @throws Exception
      * @throws InterruptedException
@@ -81,51 +81,205 @@ public class Main {
         Database db = new Database(Configuration.db_user, Configuration.db_password, Configuration.db_host, Configuration.db_port, Configuration.db_sid);
         db.connect();
 
-        EventOut eventOut = new EventOut(db);
+        Company company = new Company(db);
+        company.getCompanies();
+
+        DuplicateFilter duplicates = DuplicateFilter.open();
+        RetryScheduler retries = RetryScheduler.open();
+
+        if (Configuration.isDaemon) {
+            logger.info("Process information: daemon mode, eventout is polled every " + Configuration.daemon_poll_interval + " seconds");
+
+            registerShutdownHook(Thread.currentThread());
+
+            long pollInterval = Configuration.daemon_poll_interval * 1000L;
+
+            while (!shutdownRequested) {
+                Configuration.start = Calendar.getInstance().getTime();
+
+                try {
+                    db.reconnect();
+                    company.refreshCompanies();
+
+                    if (processEventOut(db, company) > 0) {
+                        pollInterval = Configuration.daemon_poll_interval * 1000L;
+                    } else {
+                        // back off while eventout stays empty
+                        pollInterval = Math.min(pollInterval * 2, Configuration.daemon_max_poll_interval * 1000L);
+                    }
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Exception e) {
+                    // database may be unavailable for a while, connections are opened again by next poll
+                    logger.error("Eventout poll failed", e);
+
+                    pollInterval = Math.min(pollInterval * 2, Configuration.daemon_max_poll_interval * 1000L);
+                }
+
+                synchronized (pollLock) {
+                    if (!shutdownRequested) {
+                        logger.debug("Next eventout poll in " + pollInterval / 1000 + " seconds");
+                        pollLock.wait(pollInterval);
+                    }
+                }
+            }
+
+            logger.info("Daemon stopped");
+        } else {
+            processEventOut(db, company);
+        }
+
+        if (retries != null) {
+            // daemon being stopped leaves records waiting for retry in eventout
+            retries.close(!Configuration.isDaemon);
+        }
+
+        if (duplicates != null) {
+            duplicates.close();
+        }
+
+        SmtpTransportPool.closeAll();
+        db.disconnect();
+    }
+
+    /**
+     * Processes records currently waiting in eventout table.
+     *
+     * @param db Database object
+     * @param company Company object
+     * @return Number of processed records
+     * @throws Exception
+     */
+    private static int processEventOut(Database db, Company company) throws Exception {
+        EventOut eventOut = new EventOut(db, company);
         eventOut.getEventOut();
 
-        if (eventOut.getRecordsCount() > 0) {
+        EventOutRecord eor = eventOut.getEventOutRecord();
+
+        if (eor != null) {
             logger.info("Starting eventout processing...");
             Date start = Calendar.getInstance().getTime();
+            Configuration.resetNotificationsCount();
 
-            ExecutorService threadExecutor = Executors.newFixedThreadPool(100);
-            ArrayList<EventOutRecord> eventRecords = new ArrayList<EventOutRecord>();
+            Pipeline pipeline = Pipeline.start(eventOut, db);
+            // reordered records wait in eventout queue, not in worker queue
+            WorkerPool workers = pipeline != null ? pipeline.getReadStage()
+                    : new WorkerPool(Configuration.dispatch_mode, Configuration.worker_threads, EventOut.isReordered() ? 1 : Configuration.eventout_prefetch);
+            AffinityDispatcher affinity = AffinityDispatcher.start(workers);
+            Digester digester = Digester.start();
+            Coalescer coalescer = Coalescer.start();
+            CircuitBreaker breaker = CircuitBreaker.smtp();
+            boolean relayDown = false;
+            boolean dispatched = false;
 
-            EventOutRecord eor;
-            for (int index = 0; index < eventOut.getRecordsCount(); index++) {
-                eor = eventOut.getEventOutRecord(index);
-                eventRecords.add(eor);
-            }
+            try {
+                // only execute() can be here!
+                do {
+                    if (!Configuration.isDaemon && breaker.isOpen()) {
+                        // one-shot run does not wait for relay, records stay in eventout for next run
+                        relayDown = true;
+                        eor.release();
+                        break;
+                    }
 
-            // only execute() can be here!
-            for (int index = 0; index < eventRecords.size(); index++) {
-                threadExecutor.execute(eventRecords.get(index));
-            }
+                    // dispatching is paused while SMTP relay is down
+                    while (!shutdownRequested && !breaker.awaitDispatch(1000)) {
+                        logger.trace("Waiting for SMTP relay circuit to close");
+                    }
 
-            threadExecutor.shutdown();
-            while (!threadExecutor.isTerminated()) {
-                threadExecutor.awaitTermination(1, TimeUnit.SECONDS);
-            }
+                    if (affinity != null) {
+                        affinity.dispatch(eor);
+                    } else {
+                        workers.execute(eor);
+                    }
+                } while (!shutdownRequested && (eor = eventOut.getEventOutRecord()) != null);
 
-            db.commit();
+                dispatched = true;
+            } finally {
+                if (shutdownRequested) {
+                    logger.info("Shutdown requested, waiting for records in progress");
+                    eventOut.close();
+                } else if (relayDown) {
+                    logger.warn("SMTP relay circuit is open, remaining records are left in eventout for next run");
+                    eventOut.close();
+                } else if (!dispatched) {
+                    // records already started are finished and committed before error is thrown
+                    logger.error("Eventout processing failed, waiting for records in progress");
+                    eventOut.close();
+                }
+
+                if (affinity != null) {
+                    affinity.shutdown();
+                }
+
+                if (pipeline != null) {
+                    pipeline.shutdown();
+                } else {
+                    workers.shutdown();
+                }
+
+                if (digester != null) {
+                    digester.shutdown();
+                }
+
+                if (coalescer != null) {
+                    coalescer.shutdown();
+                }
+
+                db.commit();
+            }
 
             Date stop = Calendar.getInstance().getTime();
             logger.info("Eventout processing complete in " + (double) (stop.getTime() - start.getTime()) / 1000 + " seconds");
 
             logger.info(Configuration.getNotificationsCount());
-            db.disconnect();
-            Configuration.stop = Calendar.getInstance().getTime();
 
-            logger.info("Execution time: " + (double) (Configuration.stop.getTime() - Configuration.start.getTime()) / 1000 + " seconds");
-            logger.info("SUCCESS. Application ended with success.");
+            if (eventOut.getThrottledCount() > 0) {
+                logger.info("Records left in eventout over company quota: " + eventOut.getThrottledCount());
+            }
+
+            if (ConcurrencyLimit.smtp() instanceof AdaptiveConcurrencyLimit) {
+                logger.info("SMTP concurrency limit: " + ConcurrencyLimit.smtp().getLimit());
+            }
         } else {
             logger.info("No records found");
-            db.disconnect();
-            Configuration.stop = Calendar.getInstance().getTime();
+        }
+
+        Configuration.stop = Calendar.getInstance().getTime();
+
+        logger.info("Execution time: " + (double) (Configuration.stop.getTime() - Configuration.start.getTime()) / 1000 + " seconds");
 
-            logger.info("Execution time: " + (double) (Configuration.stop.getTime() - Configuration.start.getTime()) / 1000 + " seconds");
+        if (!Configuration.isDaemon) {
             logger.info("SUCCESS. Application ended with success.");
         }
+
+        return eventOut.getRecordsCount();
+    }
+
+    /**
+     * Registers hook that stops daemon after records in progress are
+     * finished.
+     *
+     * @param mainThread Thread running daemon loop
+     */
+    private static void registerShutdownHook(final Thread mainThread) {
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                logger.info("Stopping daemon...");
+                shutdownRequested = true;
+
+                synchronized (pollLock) {
+                    pollLock.notifyAll();
+                }
+
+                try {
+                    mainThread.join(Configuration.daemon_shutdown_timeout * 1000L);
+                } catch (InterruptedException e) {
+                    // nothing
+                }
+            }
+        }, "shutdown"));
     }
 
     /**
@@ -134,6 +288,6 @@ public class Main {
     private static void printUsage() {
         System.out.println("\r\nCorrect usage:\tjava -jar NotificationEmail [CONFIG_PATH] <MODE> <ATTACHMENT>");
         System.out.println("where:\r\nCONFIG_PATH is:\r\n\tpath to the configuration file");
-        System.out.println("MODE is:\r\n\t-R\tread only (optional)");
+        System.out.println("MODE is:\r\n\t-R\tread only (optional)\r\n\t-D\tdaemon, polls eventout until stopped (optional)");
     }
 }
@@ -0,0 +1,527 @@
+package com.soprasteria.notificationemail;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.smtp.SMTPSenderFailedException;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import org.apache.log4j.Logger;
+
+/**
+ * Non-blocking SMTP client. Sessions of all relays are driven by few
+ * selector threads (smtp_nio_threads), so many messages can be in flight
+ * without thread blocked for each of them. Result of delivery is reported
+ * with the same exceptions as JavaMail Transport, so Smtp maps it to the same
+ * statuses. Sessions stay open after message and are reused for next
+ * messages (at most smtp_pool_size idle sessions, RSET before every reused
+ * transaction).
+ *
+ * send() still blocks calling thread until server answers, only socket I/O
+ * runs on selector threads. With dispatch_mode = pool every message in flight
+ * still holds one worker thread, so the engine pays off with dispatch_mode =
+ * virtual, where blocked virtual thread releases its carrier.
+ */
+public class NioSmtpClient {
+
+    private static final ConcurrentHashMap<String, NioSmtpClient> clients = new ConcurrentHashMap<String, NioSmtpClient>();
+    private static final String[] IGNORED_HEADERS = {"Bcc", "Content-Length"};
+    private static Worker[] workers;
+    private static final AtomicInteger nextWorker = new AtomicInteger();
+    private static String localHost;
+    final String host;
+    final int port;
+    final String login;
+    final String password;
+    final boolean useSSL;
+    final boolean requiresAuth;
+    private final ConcurrentLinkedDeque<NioSmtpSession> idle = new ConcurrentLinkedDeque<NioSmtpSession>();
+    private final AtomicInteger idleSessions = new AtomicInteger();
+    private static final Logger logger = Logger.getLogger(NioSmtpClient.class);
+
+    /**
+     * NioSmtpClient constructor.
+     *
+     * @param host SMTP host
+     * @param port SMTP port
+     * @param login SMTP login
+     * @param password SMTP password
+     * @param useSSL Connection uses SSL from the start
+     * @param requiresAuth Server requires authentication
+     */
+    NioSmtpClient(String host, int port, String login, String password, boolean useSSL, boolean requiresAuth) {
+        this.host = host;
+        this.port = port;
+        this.login = login;
+        this.password = password;
+        this.useSSL = useSSL;
+        this.requiresAuth = requiresAuth || useSSL;
+    }
+
+    /**
+     * Gets client of SMTP server, creates it on first use.
+     *
+     * @param host SMTP host
+     * @param port SMTP port
+     * @param login SMTP login
+     * @param password SMTP password
+     * @param useSSL Connection uses SSL from the start
+     * @param requiresAuth Server requires authentication
+     * @return SMTP client
+     */
+    public static NioSmtpClient getClient(String host, int port, String login, String password, boolean useSSL, boolean requiresAuth) {
+        String key = host + ":" + port + ":" + login + ":" + (password == null ? 0 : password.hashCode()) + ":" + useSSL + ":" + requiresAuth;
+        NioSmtpClient client = clients.get(key);
+
+        if (client == null) {
+            startWorkers();
+
+            NioSmtpClient created = new NioSmtpClient(host, port, login, password, useSSL, requiresAuth);
+            client = clients.putIfAbsent(key, created);
+
+            if (client == null) {
+                client = created;
+                logger.info("Non-blocking SMTP client created for " + host + ":" + port + " (selector threads: " + workers.length + ")");
+            }
+        }
+
+        return client;
+    }
+
+    /**
+     * Sends message and waits for result, calling thread is blocked until
+     * delivery finishes. Envelope sender is the first From address,
+     * recipients are all To, Cc and Bcc addresses.
+     *
+     * @param message Message
+     * @param data DATA content rendered by render() or null if message was
+     * not rendered yet
+     * @throws MessagingException Same exceptions as JavaMail SMTP transport
+     * @throws InterruptedException
+     */
+    public void send(MimeMessage message, byte[] data) throws MessagingException, InterruptedException {
+        if (data == null) {
+            data = render(message);
+        }
+
+        Address[] from = message.getFrom();
+        Address[] recipients = message.getAllRecipients();
+
+        if (from == null || from.length == 0) {
+            throw new MessagingException("No sender address");
+        }
+
+        if (recipients == null || recipients.length == 0) {
+            throw new SendFailedException("No recipient addresses");
+        }
+
+        String[] rcpt = new String[recipients.length];
+        for (int i = 0; i < recipients.length; i++) {
+            rcpt[i] = ((InternetAddress) recipients[i]).getAddress();
+        }
+
+        Delivery delivery = new Delivery(((InternetAddress) from[0]).getAddress(), rcpt, data);
+
+        try {
+            submit(delivery).get();
+        } catch (ExecutionException e) {
+            throw new MessagingException("Unable to send message", (Exception) e.getCause());
+        }
+
+        checkResult(delivery, (InternetAddress) from[0], recipients);
+    }
+
+    /**
+     * Saves message and renders it to DATA content, so it can be done before
+     * message is sent.
+     *
+     * @param message Message
+     * @return DATA content
+     * @throws MessagingException
+     */
+    public static byte[] render(MimeMessage message) throws MessagingException {
+        message.saveChanges();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        try {
+            message.writeTo(out, IGNORED_HEADERS);
+        } catch (IOException e) {
+            throw new MessagingException("Unable to write message", e);
+        }
+
+        return toData(out.toByteArray());
+    }
+
+    /**
+     * Starts delivery on one of selector threads.
+     *
+     * @param delivery Delivery
+     * @return Future completed when delivery finished, successfully or not
+     * @throws MessagingException When server address cannot be resolved
+     */
+    CompletableFuture<Delivery> submit(final Delivery delivery) throws MessagingException {
+        NioSmtpSession session = takeIdle();
+
+        if (session != null) {
+            session.reuse(delivery);
+
+            return delivery.future;
+        }
+
+        final InetSocketAddress address;
+
+        try {
+            // resolved here, name lookup would block selector thread
+            address = new InetSocketAddress(InetAddress.getByName(host), port);
+        } catch (UnknownHostException e) {
+            throw new MessagingException("Unknown SMTP host: " + host, e);
+        }
+
+        final Worker worker = workers[Math.abs(nextWorker.getAndIncrement() % workers.length)];
+
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                new NioSmtpSession(NioSmtpClient.this, worker, address).start(delivery);
+            }
+        });
+
+        return delivery.future;
+    }
+
+    /**
+     * Takes most recently used idle session.
+     *
+     * @return Idle session or null
+     */
+    private NioSmtpSession takeIdle() {
+        NioSmtpSession session = idle.pollFirst();
+
+        if (session != null) {
+            idleSessions.decrementAndGet();
+        }
+
+        return session;
+    }
+
+    /**
+     * Keeps session for next message if there are less than smtp_pool_size
+     * idle sessions.
+     *
+     * @param session Session after message
+     * @return TRUE if session was kept
+     */
+    boolean addIdle(NioSmtpSession session) {
+        if (idleSessions.incrementAndGet() > Configuration.smtp_pool_size) {
+            idleSessions.decrementAndGet();
+
+            return false;
+        }
+
+        idle.addFirst(session);
+
+        return true;
+    }
+
+    /**
+     * Removes closed or expired session from idle sessions.
+     *
+     * @param session Session
+     * @return FALSE if session was already taken for next message
+     */
+    boolean removeIdle(NioSmtpSession session) {
+        if (idle.remove(session)) {
+            idleSessions.decrementAndGet();
+
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Gets number of idle sessions.
+     *
+     * @return Number of idle sessions
+     */
+    int getIdleSessions() {
+        return idleSessions.get();
+    }
+
+    /**
+     * Converts result of delivery to JavaMail exceptions.
+     *
+     * @param delivery Finished delivery
+     * @param from Sender address
+     * @param recipients Recipient addresses in envelope order
+     * @throws MessagingException When message was not delivered to all
+     * recipients
+     */
+    static void checkResult(Delivery delivery, InternetAddress from, Address[] recipients) throws MessagingException {
+        if (delivery.failure != null) {
+            throw delivery.failure;
+        }
+
+        Reply mail = delivery.mailReply;
+        if (!mail.isPositive()) {
+            throw new SMTPSenderFailedException(from, "MAIL FROM:<" + delivery.from + ">", mail.code, mail.text);
+        }
+
+        ArrayList<Address> valid = new ArrayList<Address>();
+        ArrayList<Address> validUnsent = new ArrayList<Address>();
+        ArrayList<Address> invalid = new ArrayList<Address>();
+        MessagingException chain = null;
+
+        for (int i = 0; i < recipients.length; i++) {
+            Reply rcpt = delivery.rcptReplies[i];
+
+            if (rcpt.isPositive()) {
+                valid.add(recipients[i]);
+            } else {
+                // temporary rejection (4xx, 552) means address is valid but was not sent to, like in JavaMail
+                if ((rcpt.code >= 400 && rcpt.code < 500) || rcpt.code == 552) {
+                    validUnsent.add(recipients[i]);
+                } else {
+                    invalid.add(recipients[i]);
+                }
+
+                SMTPAddressFailedException failed = new SMTPAddressFailedException((InternetAddress) recipients[i], "RCPT TO:<" + delivery.recipients[i] + ">", rcpt.code, rcpt.text);
+                if (chain == null) {
+                    chain = failed;
+                } else {
+                    chain.setNextException(failed);
+                }
+            }
+        }
+
+        if (!invalid.isEmpty() || !validUnsent.isEmpty()) {
+            // like JavaMail without sendpartial, nothing was sent
+            valid.addAll(validUnsent);
+
+            throw new SendFailedException("Invalid Addresses", chain, null, toArray(valid), toArray(invalid));
+        }
+
+        Reply data = delivery.dataReply;
+        if (data != null && data.code != 354) {
+            throw new SMTPSendFailedException("DATA", data.code, data.text, null, null, toArray(valid), null);
+        }
+
+        Reply message = delivery.messageReply;
+        if (message == null || !message.isPositive()) {
+            throw new SMTPSendFailedException(".", message == null ? -1 : message.code, message == null ? "" : message.text, null, null, toArray(valid), null);
+        }
+    }
+
+    /**
+     * Converts message to DATA content: line ends are CRLF, lines starting
+     * with dot get one more dot and content ends with CRLF.CRLF.
+     *
+     * @param message Message written by MimeMessage.writeTo
+     * @return DATA content
+     */
+    static byte[] toData(byte[] message) {
+        ByteArrayOutputStream data = new ByteArrayOutputStream(message.length + message.length / 50 + 5);
+        boolean lineStart = true;
+
+        for (int i = 0; i < message.length; i++) {
+            byte b = message[i];
+
+            if (b == '\r' || b == '\n') {
+                data.write('\r');
+                data.write('\n');
+                lineStart = true;
+
+                if (b == '\r' && i + 1 < message.length && message[i + 1] == '\n') {
+                    i++;
+                }
+
+                continue;
+            }
+
+            if (lineStart && b == '.') {
+                data.write('.');
+            }
+
+            data.write(b);
+            lineStart = false;
+        }
+
+        if (!lineStart) {
+            data.write('\r');
+            data.write('\n');
+        }
+
+        data.write('.');
+        data.write('\r');
+        data.write('\n');
+
+        return data.toByteArray();
+    }
+
+    /**
+     * Gets local host name used in EHLO.
+     *
+     * @return Host name
+     */
+    static synchronized String getLocalHost() {
+        if (localHost == null) {
+            try {
+                localHost = InetAddress.getLocalHost().getCanonicalHostName();
+            } catch (UnknownHostException e) {
+                localHost = "localhost";
+            }
+        }
+
+        return localHost;
+    }
+
+    /**
+     * Starts selector threads.
+     */
+    private static synchronized void startWorkers() {
+        if (workers != null) {
+            return;
+        }
+
+        getLocalHost();
+
+        Worker[] started = new Worker[Math.max(Configuration.smtp_nio_threads, 1)];
+
+        for (int i = 0; i < started.length; i++) {
+            try {
+                started[i] = new Worker(Selector.open());
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to open selector", e);
+            }
+
+            Thread thread = new Thread(started[i], "smtp-nio-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        workers = started;
+    }
+
+    /**
+     * Converts list of addresses to array.
+     *
+     * @param addresses Addresses
+     * @return Array or null if list is empty
+     */
+    private static Address[] toArray(ArrayList<Address> addresses) {
+        return addresses.isEmpty() ? null : addresses.toArray(new Address[addresses.size()]);
+    }
+
+    /**
+     * Selector thread driving SMTP sessions.
+     */
+    static class Worker implements Runnable {
+
+        final Selector selector;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+        private Worker(Selector selector) {
+            this.selector = selector;
+        }
+
+        /**
+         * Runs task on selector thread.
+         *
+         * @param task Task
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select(1000);
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                    while (selected.hasNext()) {
+                        SelectionKey key = selected.next();
+                        selected.remove();
+
+                        ((NioSmtpSession) key.attachment()).handle(key);
+                    }
+
+                    long now = System.currentTimeMillis();
+                    // copy, timeout can close session or open new one
+                    for (SelectionKey key : new ArrayList<SelectionKey>(selector.keys())) {
+                        ((NioSmtpSession) key.attachment()).checkTimeout(now);
+                    }
+                } catch (Throwable e) {
+                    logger.error("SMTP selector thread failed", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Message to deliver and replies of server to its commands.
+     */
+    static class Delivery {
+
+        final String from;
+        final String[] recipients;
+        final byte[] data;
+        final CompletableFuture<Delivery> future = new CompletableFuture<Delivery>();
+        Reply mailReply;
+        final Reply[] rcptReplies;
+        Reply dataReply;
+        Reply messageReply;
+        MessagingException failure;
+
+        Delivery(String from, String[] recipients, byte[] data) {
+            this.from = from;
+            this.recipients = recipients;
+            this.data = data;
+            this.rcptReplies = new Reply[recipients.length];
+        }
+    }
+
+    /**
+     * SMTP server reply. Text contains all reply lines including code, like
+     * JavaMail last server response.
+     */
+    static class Reply {
+
+        final int code;
+        final String text;
+
+        Reply(int code, String text) {
+            this.code = code;
+            this.text = text;
+        }
+
+        boolean isPositive() {
+            return code >= 200 && code < 300;
+        }
+    }
+}
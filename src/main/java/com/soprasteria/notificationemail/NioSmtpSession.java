@@ -0,0 +1,925 @@
+package com.soprasteria.notificationemail;
+
+import com.sun.mail.util.MailConnectException;
+import com.sun.mail.util.SocketConnectException;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.HashMap;
+import javax.mail.AuthenticationFailedException;
+import javax.mail.MessagingException;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import org.apache.log4j.Logger;
+
+/**
+ * One SMTP connection of NioSmtpClient. Session is state machine driven by
+ * selector thread: every reply of server is matched with command that is
+ * waiting for it and decides next command. TLS (SSL from the start or
+ * STARTTLS) is done by SSLEngine between socket and SMTP protocol. After
+ * message session is kept idle, next message starts with RSET.
+ */
+class NioSmtpSession {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private final NioSmtpClient client;
+    private final NioSmtpClient.Worker worker;
+    private final InetSocketAddress address;
+    private SocketChannel channel;
+    private SelectionKey key;
+    private SSLEngine engine;
+    private ByteBuffer netIn;
+    private ByteBuffer netOut;
+    private ByteBuffer appIn = ByteBuffer.allocate(8192);
+    private final ArrayDeque<ByteBuffer> appOut = new ArrayDeque<ByteBuffer>();
+    private final ArrayDeque<Step> expected = new ArrayDeque<Step>();
+    private final StringBuilder replyText = new StringBuilder();
+    private final HashMap<String, String> extensions = new HashMap<String, String>();
+    private NioSmtpClient.Delivery delivery;
+    private boolean connected = false;
+    private boolean closed = false;
+    private boolean pipelining = false;
+    private boolean idle = false;
+    private boolean reused = false;
+    private int rcptSent;
+    private int rcptReceived;
+    private long deadline;
+    private static final Logger logger = Logger.getLogger(NioSmtpSession.class);
+
+    /**
+     * NioSmtpSession constructor.
+     *
+     * @param client Client with server configuration
+     * @param worker Selector thread of this session
+     * @param address Resolved server address
+     */
+    NioSmtpSession(NioSmtpClient client, NioSmtpClient.Worker worker, InetSocketAddress address) {
+        this.client = client;
+        this.worker = worker;
+        this.address = address;
+    }
+
+    /**
+     * Opens connection and starts delivery. Runs on selector thread.
+     *
+     * @param delivery Delivery
+     */
+    void start(NioSmtpClient.Delivery delivery) {
+        this.delivery = delivery;
+
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            key = channel.register(worker.selector, 0, this);
+            touch();
+
+            if (!channel.connect(address)) {
+                key.interestOps(SelectionKey.OP_CONNECT);
+
+                return;
+            }
+
+            onConnected();
+        } catch (IOException e) {
+            fail(connectFailure(e));
+
+            return;
+        }
+
+        drive(false);
+    }
+
+    /**
+     * Sends next message over idle session taken from client.
+     *
+     * @param delivery Delivery
+     */
+    void reuse(final NioSmtpClient.Delivery delivery) {
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                send(delivery);
+            }
+        });
+    }
+
+    /**
+     * Starts next transaction with RSET. With pipelining envelope is sent
+     * together with RSET. Runs on selector thread.
+     *
+     * @param next Delivery
+     */
+    private void send(NioSmtpClient.Delivery next) {
+        if (closed) {
+            // closed by server while it was taken
+            new NioSmtpSession(client, worker, address).start(next);
+
+            return;
+        }
+
+        delivery = next;
+        idle = false;
+        reused = true;
+        rcptSent = 0;
+        rcptReceived = 0;
+        touch();
+
+        command("RSET", Step.RSET);
+
+        if (pipelining) {
+            startDelivery();
+        }
+
+        drive(false);
+    }
+
+    /**
+     * Handles ready operations of socket. Runs on selector thread.
+     *
+     * @param selected Selection key of session
+     */
+    void handle(SelectionKey selected) {
+        if (closed) {
+            return;
+        }
+
+        if (!connected) {
+            try {
+                if (!selected.isConnectable() || !channel.finishConnect()) {
+                    return;
+                }
+
+                onConnected();
+            } catch (IOException e) {
+                fail(connectFailure(e));
+
+                return;
+            }
+        }
+
+        drive(selected.isValid() && selected.isReadable());
+    }
+
+    /**
+     * Reads from socket when it is readable and moves session forward.
+     *
+     * @param readable Socket is readable
+     */
+    private void drive(boolean readable) {
+        try {
+            if (readable) {
+                read();
+            }
+
+            pump();
+        } catch (MessagingException e) {
+            fail(e);
+        } catch (Exception e) {
+            fail(new MessagingException("Connection to SMTP server " + client.host + " lost", e));
+        }
+    }
+
+    /**
+     * Closes session that waits for server longer than smtp_timeout.
+     *
+     * @param now Current time
+     */
+    void checkTimeout(long now) {
+        if (idle && now > deadline) {
+            idle = false;
+            touch();
+
+            // not closed when it was just taken for next message
+            if (client.removeIdle(this)) {
+                logger.debug("Closing idle SMTP connection to " + client.host + ":" + client.port);
+
+                command("QUIT", Step.QUIT);
+                drive(false);
+            }
+        } else if (!closed && now > deadline) {
+            fail(new MessagingException("SMTP server " + client.host + " did not respond in time", new SocketTimeoutException()));
+        }
+    }
+
+    /**
+     * Starts TLS if connection uses SSL and waits for greeting.
+     *
+     * @throws IOException
+     */
+    private void onConnected() throws IOException {
+        connected = true;
+        touch();
+
+        if (client.useSSL) {
+            startTls();
+        }
+
+        expected.add(Step.GREETING);
+    }
+
+    /**
+     * Moves data between socket, TLS and SMTP protocol until nothing more
+     * can be done without waiting for socket.
+     *
+     * @throws Exception
+     */
+    private void pump() throws Exception {
+        while (!closed) {
+            boolean progress = false;
+
+            if (engine != null) {
+                progress |= unwrap();
+            }
+
+            progress |= readReplies();
+
+            if (engine != null && !closed) {
+                progress |= wrap();
+            }
+
+            if (!closed) {
+                progress |= flush();
+            }
+
+            if (!progress) {
+                break;
+            }
+        }
+
+        if (!closed) {
+            boolean pending = engine != null ? netOut.position() > 0 : !appOut.isEmpty();
+            key.interestOps(pending ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Reads available bytes from socket.
+     *
+     * @throws IOException
+     */
+    private void read() throws IOException {
+        ByteBuffer target = engine != null ? netIn : appIn;
+
+        if (!target.hasRemaining()) {
+            target = enlarge(target, target.capacity() * 2);
+
+            if (engine != null) {
+                netIn = target;
+            } else {
+                appIn = target;
+            }
+        }
+
+        int read = channel.read(target);
+
+        if (read < 0) {
+            throw new EOFException("Connection closed by SMTP server");
+        } else if (read > 0) {
+            touch();
+        }
+    }
+
+    /**
+     * Writes pending bytes to socket.
+     *
+     * @return TRUE if something was written
+     * @throws IOException
+     */
+    private boolean flush() throws IOException {
+        boolean written = false;
+
+        if (engine != null) {
+            netOut.flip();
+
+            try {
+                written = channel.write(netOut) > 0;
+            } finally {
+                netOut.compact();
+            }
+        } else {
+            while (!appOut.isEmpty()) {
+                ByteBuffer buffer = appOut.peek();
+                written |= channel.write(buffer) > 0;
+
+                if (buffer.hasRemaining()) {
+                    break;
+                }
+
+                appOut.poll();
+            }
+        }
+
+        return written;
+    }
+
+    /**
+     * Decrypts received TLS records and drives handshake.
+     *
+     * @return TRUE if something was done
+     * @throws IOException
+     */
+    private boolean unwrap() throws IOException {
+        boolean progress = false;
+
+        while (true) {
+            HandshakeStatus status = engine.getHandshakeStatus();
+
+            if (status == HandshakeStatus.NEED_TASK) {
+                runTasks();
+                progress = true;
+
+                continue;
+            } else if (status == HandshakeStatus.NEED_WRAP) {
+                return progress;
+            }
+
+            netIn.flip();
+            SSLEngineResult result;
+
+            try {
+                result = engine.unwrap(netIn, appIn);
+            } finally {
+                netIn.compact();
+            }
+
+            switch (result.getStatus()) {
+                case BUFFER_OVERFLOW:
+                    appIn = enlarge(appIn, appIn.capacity() + engine.getSession().getApplicationBufferSize());
+                    break;
+                case BUFFER_UNDERFLOW:
+                    if (!netIn.hasRemaining()) {
+                        netIn = enlarge(netIn, netIn.capacity() + engine.getSession().getPacketBufferSize());
+                    }
+
+                    return progress;
+                case CLOSED:
+                    throw new EOFException("TLS connection closed by SMTP server");
+                default:
+                    if (result.bytesConsumed() == 0 && result.bytesProduced() == 0
+                            && result.getHandshakeStatus() != HandshakeStatus.NEED_TASK) {
+                        return progress;
+                    }
+
+                    progress = true;
+            }
+        }
+    }
+
+    /**
+     * Encrypts handshake data and commands. Commands wait until handshake is
+     * finished.
+     *
+     * @return TRUE if something was done
+     * @throws IOException
+     */
+    private boolean wrap() throws IOException {
+        boolean progress = false;
+
+        while (true) {
+            HandshakeStatus status = engine.getHandshakeStatus();
+            ByteBuffer source;
+
+            if (status == HandshakeStatus.NEED_TASK) {
+                runTasks();
+                progress = true;
+
+                continue;
+            } else if (status == HandshakeStatus.NEED_WRAP) {
+                source = EMPTY;
+            } else if (status == HandshakeStatus.NOT_HANDSHAKING || status == HandshakeStatus.FINISHED) {
+                source = appOut.peek();
+
+                if (source == null) {
+                    return progress;
+                }
+            } else {
+                return progress;
+            }
+
+            SSLEngineResult result = engine.wrap(source, netOut);
+
+            if (source != EMPTY && !source.hasRemaining()) {
+                appOut.poll();
+            }
+
+            switch (result.getStatus()) {
+                case BUFFER_OVERFLOW:
+                    if (netOut.position() > 0) {
+                        // socket has to take pending records first
+                        return progress;
+                    }
+
+                    netOut = enlarge(netOut, netOut.capacity() + engine.getSession().getPacketBufferSize());
+                    break;
+                case CLOSED:
+                    throw new EOFException("TLS connection closed");
+                default:
+                    if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                        return progress;
+                    }
+
+                    progress = true;
+            }
+        }
+    }
+
+    /**
+     * Runs delegated tasks of TLS handshake.
+     */
+    private void runTasks() {
+        Runnable task;
+
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Creates SSLEngine and starts handshake.
+     *
+     * @throws IOException
+     */
+    private void startTls() throws IOException {
+        try {
+            engine = SSLContext.getDefault().createSSLEngine(client.host, client.port);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("TLS is not available", e);
+        }
+
+        engine.setUseClientMode(true);
+
+        netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+        netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+        if (appIn.capacity() < engine.getSession().getApplicationBufferSize()) {
+            appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize());
+        }
+
+        engine.beginHandshake();
+    }
+
+    /**
+     * Parses complete reply lines received from server.
+     *
+     * @return TRUE if at least one line was parsed
+     * @throws MessagingException
+     * @throws IOException
+     */
+    private boolean readReplies() throws MessagingException, IOException {
+        boolean progress = false;
+        String line;
+
+        while (!closed && (line = nextLine()) != null) {
+            progress = true;
+            onLine(line);
+        }
+
+        return progress;
+    }
+
+    /**
+     * Takes next complete line from received data. Buffer is compacted
+     * before line is handled, handling can replace buffer when TLS starts.
+     *
+     * @return Line without line end or null
+     */
+    private String nextLine() {
+        appIn.flip();
+
+        try {
+            for (int i = appIn.position(); i < appIn.limit(); i++) {
+                if (appIn.get(i) == '\n') {
+                    int length = i - appIn.position();
+                    byte[] line = new byte[length > 0 && appIn.get(i - 1) == '\r' ? length - 1 : length];
+
+                    appIn.get(line);
+                    appIn.position(i + 1);
+
+                    return new String(line, StandardCharsets.ISO_8859_1);
+                }
+            }
+
+            return null;
+        } finally {
+            appIn.compact();
+        }
+    }
+
+    /**
+     * Collects reply line, complete reply is passed to command waiting for
+     * it.
+     *
+     * @param line Reply line
+     * @throws MessagingException
+     * @throws IOException
+     */
+    private void onLine(String line) throws MessagingException, IOException {
+        if (line.length() < 3) {
+            throw new IOException("Invalid SMTP reply: " + line);
+        }
+
+        replyText.append(line).append('\n');
+
+        if (line.length() > 3 && line.charAt(3) == '-') {
+            return;
+        }
+
+        int code;
+
+        try {
+            code = Integer.parseInt(line.substring(0, 3));
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid SMTP reply: " + line);
+        }
+
+        NioSmtpClient.Reply reply = new NioSmtpClient.Reply(code, replyText.toString());
+        replyText.setLength(0);
+
+        Step step = expected.poll();
+
+        if (logger.isTraceEnabled()) {
+            logger.trace("SMTP " + client.host + " " + step + ": " + reply.text.trim());
+        }
+
+        if (step == null) {
+            if (code == 421) {
+                throw new IOException("SMTP server closes connection: " + reply.text.trim());
+            }
+
+            return;
+        }
+
+        onReply(step, reply);
+    }
+
+    /**
+     * Handles reply of server and sends next command.
+     *
+     * @param step Command that was answered
+     * @param reply Reply of server
+     * @throws MessagingException
+     * @throws IOException
+     */
+    private void onReply(Step step, NioSmtpClient.Reply reply) throws MessagingException, IOException {
+        switch (step) {
+            case GREETING:
+                if (reply.code != 220) {
+                    throw new MessagingException("Could not connect to SMTP host: " + client.host + ", port: " + client.port + ", response: " + reply.text.trim());
+                }
+
+                command("EHLO " + NioSmtpClient.getLocalHost(), Step.EHLO);
+                break;
+            case EHLO:
+                if (reply.code == 250) {
+                    parseExtensions(reply.text);
+                    afterHello();
+                } else {
+                    command("HELO " + NioSmtpClient.getLocalHost(), Step.HELO);
+                }
+                break;
+            case HELO:
+                if (reply.code != 250) {
+                    throw new MessagingException(reply.text.trim());
+                }
+
+                extensions.clear();
+                afterHello();
+                break;
+            case STARTTLS:
+                if (reply.code != 220) {
+                    throw new MessagingException("STARTTLS failed: " + reply.text.trim());
+                }
+
+                startTls();
+                command("EHLO " + NioSmtpClient.getLocalHost(), Step.EHLO);
+                break;
+            case AUTH_USER:
+                if (reply.code != 334) {
+                    throw new AuthenticationFailedException(reply.text.trim());
+                }
+
+                command(base64(client.login), Step.AUTH_PASSWORD);
+                break;
+            case AUTH_PASSWORD:
+                if (reply.code != 334) {
+                    throw new AuthenticationFailedException(reply.text.trim());
+                }
+
+                command(base64(client.password), Step.AUTH);
+                break;
+            case AUTH:
+                if (reply.code != 235) {
+                    throw new AuthenticationFailedException(reply.text.trim());
+                }
+
+                startDelivery();
+                break;
+            case MAIL:
+                if (reused && reply.code == 421) {
+                    // reused connection is being closed by server, message is sent over new one
+                    throw new IOException("SMTP server closes connection: " + reply.text.trim());
+                }
+
+                delivery.mailReply = reply;
+
+                if (!pipelining) {
+                    if (reply.isPositive()) {
+                        sendRcpt();
+                    } else {
+                        finishEnvelope();
+                    }
+                }
+                break;
+            case RCPT:
+                delivery.rcptReplies[rcptReceived++] = reply;
+
+                if (rcptSent < delivery.recipients.length) {
+                    sendRcpt();
+                } else if (rcptReceived == rcptSent) {
+                    finishEnvelope();
+                }
+                break;
+            case DATA:
+                delivery.dataReply = reply;
+
+                if (reply.code == 354) {
+                    appOut.add(ByteBuffer.wrap(delivery.data));
+                    expected.add(Step.MESSAGE);
+                } else {
+                    finish();
+                }
+                break;
+            case MESSAGE:
+                delivery.messageReply = reply;
+                finish();
+                break;
+            case RSET:
+                if (!reply.isPositive()) {
+                    throw new IOException("RSET failed: " + reply.text.trim());
+                }
+
+                if (!pipelining) {
+                    startDelivery();
+                }
+                break;
+            case QUIT:
+                close();
+                break;
+        }
+    }
+
+    /**
+     * Starts TLS or authentication when needed, then starts delivery.
+     *
+     * @throws MessagingException
+     */
+    private void afterHello() throws MessagingException {
+        if (engine == null && Configuration.smtp_starttls && extensions.containsKey("STARTTLS")) {
+            command("STARTTLS", Step.STARTTLS);
+
+            return;
+        }
+
+        if (client.requiresAuth && extensions.containsKey("AUTH") && client.login != null && !client.login.isEmpty()) {
+            String mechanisms = " " + extensions.get("AUTH").toUpperCase() + " ";
+
+            if (mechanisms.contains(" PLAIN ")) {
+                command("AUTH PLAIN " + base64("\0" + client.login + "\0" + client.password), Step.AUTH);
+            } else if (mechanisms.contains(" LOGIN ")) {
+                command("AUTH LOGIN", Step.AUTH_USER);
+            } else {
+                throw new AuthenticationFailedException("No authentication mechanism supported by SMTP server:" + mechanisms);
+            }
+
+            return;
+        }
+
+        startDelivery();
+    }
+
+    /**
+     * Sends MAIL FROM. When server supports pipelining, all RCPT TO commands
+     * are sent together with it.
+     */
+    private void startDelivery() {
+        pipelining = extensions.containsKey("PIPELINING");
+
+        if (logger.isTraceEnabled()) {
+            logger.trace("SMTP " + client.host + (reused ? " reused" : " new") + " session, pipelining: " + pipelining);
+        }
+
+        command("MAIL FROM:<" + delivery.from + ">", Step.MAIL);
+
+        if (pipelining) {
+            while (rcptSent < delivery.recipients.length) {
+                sendRcpt();
+            }
+        }
+    }
+
+    /**
+     * Sends RCPT TO of next recipient.
+     */
+    private void sendRcpt() {
+        command("RCPT TO:<" + delivery.recipients[rcptSent++] + ">", Step.RCPT);
+    }
+
+    /**
+     * Sends DATA when sender and all recipients were accepted, otherwise
+     * resets transaction. Nothing is sent when any recipient was rejected,
+     * like in JavaMail without sendpartial.
+     */
+    private void finishEnvelope() {
+        boolean accepted = delivery.mailReply.isPositive();
+
+        for (int i = 0; accepted && i < delivery.rcptReplies.length; i++) {
+            accepted = delivery.rcptReplies[i] != null && delivery.rcptReplies[i].isPositive();
+        }
+
+        if (accepted) {
+            command("DATA", Step.DATA);
+        } else {
+            finish();
+        }
+    }
+
+    /**
+     * Ends transaction. Session is kept for next message before result is
+     * reported, so next message of the same caller can use it. Session is
+     * closed when smtp_pool_size idle sessions are kept already.
+     */
+    private void finish() {
+        NioSmtpClient.Delivery done = delivery;
+        delivery = null;
+
+        if (Configuration.smtp_pool_size > 0 && client.addIdle(this)) {
+            idle = true;
+            deadline = System.currentTimeMillis() + Configuration.smtp_pool_idle_timeout * 1000L;
+        } else {
+            command("QUIT", Step.QUIT);
+        }
+
+        done.future.complete(done);
+    }
+
+    /**
+     * Parses EHLO reply.
+     *
+     * @param text EHLO reply
+     */
+    private void parseExtensions(String text) {
+        extensions.clear();
+
+        String[] lines = text.split("\n");
+
+        for (int i = 1; i < lines.length; i++) {
+            String line = lines[i].length() > 4 ? lines[i].substring(4).trim() : "";
+            int end = 0;
+
+            while (end < line.length() && line.charAt(end) != ' ' && line.charAt(end) != '=') {
+                end++;
+            }
+
+            if (end > 0) {
+                String name = line.substring(0, end).toUpperCase();
+                String parameters = end < line.length() ? line.substring(end + 1).trim() : "";
+
+                extensions.put(name, extensions.containsKey(name) ? extensions.get(name) + " " + parameters : parameters);
+            }
+        }
+    }
+
+    /**
+     * Queues command and remembers that reply to it is expected.
+     *
+     * @param command Command without line end
+     * @param step Kind of command
+     */
+    private void command(String command, Step step) {
+        appOut.add(ByteBuffer.wrap((command + "\r\n").getBytes(StandardCharsets.ISO_8859_1)));
+        expected.add(step);
+    }
+
+    /**
+     * Completes delivery, result is in its replies.
+     */
+    private void complete() {
+        if (delivery != null) {
+            NioSmtpClient.Delivery done = delivery;
+            delivery = null;
+            done.future.complete(done);
+        }
+    }
+
+    /**
+     * Fails delivery in progress and closes connection.
+     *
+     * @param e Cause of failure
+     */
+    private void fail(MessagingException e) {
+        if (delivery != null && reused && delivery.mailReply == null) {
+            // server closed reused connection before this message, send it over new connection
+            logger.warn("SMTP connection to " + client.host + ":" + client.port + " lost (" + e.getMessage() + "), reconnecting");
+
+            NioSmtpClient.Delivery retry = delivery;
+            delivery = null;
+            close();
+
+            new NioSmtpSession(client, worker, address).start(retry);
+
+            return;
+        }
+
+        if (delivery != null) {
+            delivery.failure = e;
+            complete();
+        } else {
+            logger.debug("SMTP connection to " + client.host + " closed: " + e.getMessage());
+        }
+
+        close();
+    }
+
+    /**
+     * Closes connection.
+     */
+    private void close() {
+        closed = true;
+
+        if (idle) {
+            client.removeIdle(this);
+            idle = false;
+        }
+
+        if (key != null) {
+            key.cancel();
+        }
+
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            // nothing
+        }
+    }
+
+    /**
+     * Moves timeout of session.
+     */
+    private void touch() {
+        deadline = System.currentTimeMillis() + Configuration.smtp_timeout * 1000L;
+    }
+
+    /**
+     * Creates exception of failed connection, the same as JavaMail does.
+     *
+     * @param e Cause
+     * @return Connection exception
+     */
+    private MessagingException connectFailure(IOException e) {
+        return new MailConnectException(new SocketConnectException("Could not connect to SMTP host", e, client.host, client.port, Configuration.smtp_timeout * 1000));
+    }
+
+    /**
+     * Encodes value for AUTH command.
+     *
+     * @param value Value
+     * @return Base64 of UTF-8 bytes
+     */
+    private static String base64(String value) {
+        return Base64.getEncoder().encodeToString((value == null ? "" : value).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Creates larger buffer with content of buffer in write mode.
+     *
+     * @param buffer Buffer
+     * @param capacity New capacity
+     * @return New buffer
+     */
+    private static ByteBuffer enlarge(ByteBuffer buffer, int capacity) {
+        ByteBuffer larger = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        larger.put(buffer);
+
+        return larger;
+    }
+
+    /**
+     * Commands that wait for reply.
+     */
+    private enum Step {
+
+        GREETING, EHLO, HELO, STARTTLS, AUTH_USER, AUTH_PASSWORD, AUTH, MAIL, RCPT, DATA, MESSAGE, RSET, QUIT
+    }
+}
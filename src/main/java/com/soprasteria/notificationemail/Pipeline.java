@@ -0,0 +1,145 @@
+package com.soprasteria.notificationemail;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+
+/**
+ * Staged processing of one eventout run: fetch thread fills eventout queue,
+ * read stage reads messages on db_pool_max threads, parse stage parses
+ * records and builds MIME messages on pipeline_parse_threads threads without
+ * waiting for database, send stage talks to SMTP relay on
+ * worker_threads threads and status writer persists results. Every stage has
+ * bounded queue, full queue makes previous stage wait. Queue depths are logged
+ * every pipeline_metrics_interval seconds and at the end of run.
+ */
+public class Pipeline {
+
+    private static volatile Pipeline current;
+    private final EventOut eventOut;
+    private final Database database;
+    private final WorkerPool readStage;
+    private final WorkerPool parseStage;
+    private final WorkerPool sendStage;
+    private final ScheduledExecutorService metrics;
+    private static final Logger logger = Logger.getLogger(Pipeline.class);
+
+    /**
+     * Pipeline constructor.
+     *
+     * @param eventOut Eventout queue
+     * @param database Database object
+     */
+    private Pipeline(EventOut eventOut, Database database) {
+        this.eventOut = eventOut;
+        this.database = database;
+        // reading waits for pooled connections, more threads would only wait for pool
+        this.readStage = new WorkerPool("read", WorkerPool.POOL, Configuration.db_pool_max, EventOut.isReordered() ? 1 : Configuration.eventout_prefetch);
+        this.parseStage = new WorkerPool("parse", WorkerPool.POOL, Configuration.pipeline_parse_threads, Configuration.eventout_prefetch);
+        this.sendStage = new WorkerPool("send", WorkerPool.POOL, Configuration.worker_threads, Configuration.eventout_prefetch);
+
+        if (Configuration.pipeline_metrics_interval > 0) {
+            metrics = WorkerPool.createTimer("pipeline-metrics");
+
+            metrics.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    logMetrics();
+                }
+            }, Configuration.pipeline_metrics_interval, Configuration.pipeline_metrics_interval, TimeUnit.SECONDS);
+        } else {
+            metrics = null;
+        }
+    }
+
+    /**
+     * Starts pipeline for one eventout run.
+     *
+     * @param eventOut Eventout queue
+     * @param database Database object
+     * @return Pipeline or null if dispatch mode is not staged
+     */
+    public static Pipeline start(EventOut eventOut, Database database) {
+        if (!WorkerPool.STAGED.equals(Configuration.dispatch_mode)) {
+            return null;
+        }
+
+        current = new Pipeline(eventOut, database);
+
+        return current;
+    }
+
+    /**
+     * Gets pipeline of current run.
+     *
+     * @return Pipeline or null if dispatch mode is not staged
+     */
+    public static Pipeline getCurrent() {
+        return current;
+    }
+
+    /**
+     * Gets stage reading messages. Eventout records are dispatched to it.
+     *
+     * @return Read stage
+     */
+    public WorkerPool getReadStage() {
+        return readStage;
+    }
+
+    /**
+     * Hands over record with read message to parse stage. Waits when parse
+     * stage queue is full.
+     *
+     * @param parser Parser of record
+     * @throws InterruptedException
+     */
+    public void parse(Runnable parser) throws InterruptedException {
+        parseStage.execute(parser);
+    }
+
+    /**
+     * Hands over prepared message to send stage. Waits when send stage queue
+     * is full.
+     *
+     * @param sender Sender of message
+     * @throws InterruptedException
+     */
+    public void send(Runnable sender) throws InterruptedException {
+        sendStage.execute(sender);
+    }
+
+    /**
+     * Waits until parsed records are sent. Must be called after all records
+     * of run were dispatched.
+     *
+     * @throws InterruptedException
+     */
+    public void shutdown() throws InterruptedException {
+        // every stage is the only producer of next stage
+        readStage.shutdown();
+        parseStage.shutdown();
+        sendStage.shutdown();
+
+        if (metrics != null) {
+            metrics.shutdownNow();
+        }
+
+        if (current == this) {
+            current = null;
+        }
+
+        logMetrics();
+    }
+
+    /**
+     * Logs queue depths of all stages.
+     */
+    private void logMetrics() {
+        logger.info("Pipeline: fetch queued " + eventOut.getQueueDepth()
+                + "; " + readStage.getMetrics()
+                + "; " + parseStage.getMetrics()
+                + "; " + sendStage.getMetrics()
+                + "; persist queued " + database.getStatusQueueDepth());
+    }
+}
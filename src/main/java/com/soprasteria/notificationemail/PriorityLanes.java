@@ -0,0 +1,343 @@
+package com.soprasteria.notificationemail;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+
+/**
+ * Bounded eventout queue with priority lanes. Lane of record is taken from
+ * ticket prefix of its subject (priority_tickets) and its company
+ * (priority_companies), lane 1 is the most urgent. Records are dispatched by
+ * deadline: event time plus priority_max_age seconds for every lane below
+ * lane 1, so record that has waited priority_max_age seconds is promoted by
+ * one lane and backlog of low lanes still drains. Records with the same
+ * deadline keep order in which they were fetched. Subclass can keep records
+ * in its own structure by overriding enqueue(), dequeue() and head().
+ */
+public class PriorityLanes extends AbstractQueue<EventOutRecord> implements BlockingQueue<EventOutRecord> {
+
+    private final PriorityQueue<Entry> entries = new PriorityQueue<Entry>();
+    private final int capacity;
+    private int count = 0;
+    private long sequence = 0;
+    private static final Logger logger = Logger.getLogger(PriorityLanes.class);
+
+    /**
+     * PriorityLanes constructor.
+     *
+     * @param capacity Maximal number of waiting records
+     */
+    public PriorityLanes(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Checks if priority lanes are configured.
+     *
+     * @return TRUE if records are dispatched by priority
+     */
+    public static boolean isEnabled() {
+        return Configuration.priority_tickets != null || Configuration.priority_companies != null;
+    }
+
+    /**
+     * Gets lane of record from beginning of its message.
+     *
+     * @param header Beginning of message or null if it was not fetched
+     * @return Lane, 1 is the most urgent
+     */
+    public static int getLane(String header) {
+        int lane = Integer.MAX_VALUE;
+
+        if (header == null || !isEnabled()) {
+            return Configuration.priority_default;
+        }
+
+        EventOutParser parser;
+        try {
+            parser = new EventOutParser(header, Configuration.separator);
+        } catch (IllegalArgumentException e) {
+            // subject is not in header, record is parsed later anyway
+            return Configuration.priority_default;
+        }
+
+        String tickets = Configuration.priority_tickets != null ? EventOutParser.getTicketNumbers(parser.getSubject()) : null;
+        if (tickets != null) {
+            for (String ticket : tickets.split(",")) {
+                Integer ticketLane = Configuration.priority_tickets.get(ticket.substring(0, 2));
+
+                if (ticketLane != null) {
+                    lane = Math.min(lane, ticketLane);
+                }
+            }
+        }
+
+        if (Configuration.priority_companies != null && EventOutParser.hasFirstLine(header, Configuration.separator)) {
+            Integer companyLane = Configuration.priority_companies.get(parser.getCompany().toUpperCase());
+
+            if (companyLane != null) {
+                lane = Math.min(lane, companyLane);
+            }
+        }
+
+        // the most urgent matching rule wins
+        return lane != Integer.MAX_VALUE ? lane : Configuration.priority_default;
+    }
+
+    /**
+     * Creates queue entry of record. It is called before queue is locked, so
+     * message header is parsed outside of lock.
+     *
+     * @param record Eventout record
+     * @return Entry with deadline of record
+     */
+    protected Entry createEntry(EventOutRecord record) {
+        int lane = getLane(record.getHeader());
+
+        if (logger.isTraceEnabled()) {
+            logger.trace("<" + record.getEvSysSeq() + "> -> Record queued in lane " + lane);
+        }
+
+        return new Entry(record, record.getEvTime() + (lane - 1) * Configuration.priority_max_age * 1000L);
+    }
+
+    /**
+     * Stores entry. Caller holds lock.
+     *
+     * @param entry Entry
+     */
+    protected void enqueue(Entry entry) {
+        entries.add(entry);
+    }
+
+    /**
+     * Removes next entry to dispatch. Caller holds lock.
+     *
+     * @param all TRUE if queue is emptied and entries must not be held back
+     * @return Entry or null if no entry may be dispatched now
+     */
+    protected Entry dequeue(boolean all) {
+        return entries.poll();
+    }
+
+    /**
+     * Gets next entry to dispatch without removing it. Caller holds lock.
+     *
+     * @return Entry or null if queue is empty
+     */
+    protected Entry head() {
+        return entries.peek();
+    }
+
+    /**
+     * Gets time after which entry held back by dequeue() may be dispatched.
+     * Caller holds lock.
+     *
+     * @return Time in milliseconds, 0 if entries are never held back
+     */
+    protected long getDelay() {
+        return 0;
+    }
+
+    /**
+     * Copies all stored records. Caller holds lock.
+     *
+     * @param records Target list
+     */
+    protected void copyTo(ArrayList<EventOutRecord> records) {
+        for (Entry entry : entries) {
+            records.add(entry.record);
+        }
+    }
+
+    @Override
+    public boolean offer(EventOutRecord record) {
+        Entry entry = createEntry(record);
+
+        synchronized (this) {
+            if (count >= capacity) {
+                return false;
+            }
+
+            insert(entry);
+
+            return true;
+        }
+    }
+
+    @Override
+    public boolean offer(EventOutRecord record, long timeout, TimeUnit unit) throws InterruptedException {
+        Entry entry = createEntry(record);
+        long end = System.nanoTime() + unit.toNanos(timeout);
+
+        synchronized (this) {
+            while (count >= capacity) {
+                long left = end - System.nanoTime();
+
+                if (left <= 0) {
+                    return false;
+                }
+
+                TimeUnit.NANOSECONDS.timedWait(this, left);
+            }
+
+            insert(entry);
+
+            return true;
+        }
+    }
+
+    @Override
+    public void put(EventOutRecord record) throws InterruptedException {
+        Entry entry = createEntry(record);
+
+        synchronized (this) {
+            while (count >= capacity) {
+                wait();
+            }
+
+            insert(entry);
+        }
+    }
+
+    /**
+     * Adds entry to queue, caller holds lock and checked capacity.
+     *
+     * @param entry Entry
+     */
+    private void insert(Entry entry) {
+        entry.sequence = sequence++;
+        enqueue(entry);
+        count++;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized EventOutRecord poll() {
+        Entry entry = dequeue(false);
+
+        if (entry == null) {
+            return null;
+        }
+
+        count--;
+        notifyAll();
+
+        return entry.record;
+    }
+
+    @Override
+    public synchronized EventOutRecord poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long end = System.nanoTime() + unit.toNanos(timeout);
+        EventOutRecord record;
+
+        while ((record = poll()) == null) {
+            long left = end - System.nanoTime();
+
+            if (left <= 0) {
+                return null;
+            }
+
+            // entries held back are checked again when they may be dispatched
+            long delay = count > 0 ? TimeUnit.MILLISECONDS.toNanos(getDelay()) : 0;
+            TimeUnit.NANOSECONDS.timedWait(this, delay > 0 ? Math.min(left, delay) : left);
+        }
+
+        return record;
+    }
+
+    @Override
+    public synchronized EventOutRecord take() throws InterruptedException {
+        EventOutRecord record;
+
+        while ((record = poll()) == null) {
+            long delay = count > 0 ? getDelay() : 0;
+
+            if (delay > 0) {
+                wait(delay);
+            } else {
+                wait();
+            }
+        }
+
+        return record;
+    }
+
+    @Override
+    public synchronized EventOutRecord peek() {
+        Entry entry = head();
+
+        return entry == null ? null : entry.record;
+    }
+
+    @Override
+    public synchronized int size() {
+        return count;
+    }
+
+    @Override
+    public synchronized int remainingCapacity() {
+        return capacity - count;
+    }
+
+    @Override
+    public int drainTo(Collection<? super EventOutRecord> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public synchronized int drainTo(Collection<? super EventOutRecord> c, int maxElements) {
+        int drained = 0;
+        Entry entry;
+
+        while (drained < maxElements && (entry = dequeue(true)) != null) {
+            c.add(entry.record);
+            count--;
+            drained++;
+        }
+
+        notifyAll();
+
+        return drained;
+    }
+
+    /**
+     * Gets waiting records in no particular order.
+     *
+     * @return Iterator over copy of queue
+     */
+    @Override
+    public synchronized Iterator<EventOutRecord> iterator() {
+        ArrayList<EventOutRecord> records = new ArrayList<EventOutRecord>(count);
+        copyTo(records);
+
+        return records.iterator();
+    }
+
+    /**
+     * Record waiting for dispatching.
+     */
+    protected static class Entry implements Comparable<Entry> {
+
+        final EventOutRecord record;
+        final long deadline;
+        long sequence;
+
+        Entry(EventOutRecord record, long deadline) {
+            this.record = record;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            int result = Long.compare(deadline, other.deadline);
+
+            return result != 0 ? result : Long.compare(sequence, other.sequence);
+        }
+    }
+}
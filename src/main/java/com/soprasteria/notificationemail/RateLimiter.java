@@ -0,0 +1,135 @@
+package com.soprasteria.notificationemail;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.log4j.Logger;
+
+/**
+ * Token bucket that paces sent messages. Tokens are refilled with configured
+ * rate up to burst size, caller that finds bucket empty waits for its token.
+ */
+public class RateLimiter {
+
+    private static final RateLimiter global = new RateLimiter("global", Configuration.smtp_rate, Configuration.smtp_rate_burst);
+    private static final ConcurrentHashMap<String, RateLimiter> relays = new ConcurrentHashMap<String, RateLimiter>();
+    private static final Random random = new Random();
+    private final String name;
+    private final double rate;
+    private final double burst;
+    private double tokens;
+    private long lastRefill;
+    private static final Logger logger = Logger.getLogger(RateLimiter.class);
+
+    /**
+     * RateLimiter constructor.
+     *
+     * @param name Name used in log
+     * @param rate Tokens per second (0 = unlimited)
+     * @param burst Bucket size
+     */
+    public RateLimiter(String name, double rate, double burst) {
+        this.name = name;
+        this.rate = rate;
+        this.burst = Math.max(1, burst);
+        this.tokens = this.burst;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Waits until message to provided relay may be sent according to global
+     * and per-relay limits, then adds configured jitter.
+     *
+     * @param relay Relay host and port
+     * @throws InterruptedException
+     */
+    public static void acquire(String relay) throws InterruptedException {
+        long wait = Math.max(global.reserve(), forRelay(relay).reserve());
+
+        if (Configuration.smtp_rate_jitter > 0) {
+            synchronized (random) {
+                wait += random.nextInt(Configuration.smtp_rate_jitter + 1);
+            }
+        }
+
+        if (wait > 0) {
+            Thread.sleep(wait);
+        }
+    }
+
+    /**
+     * Gets limiter for provided relay, creating it when needed.
+     *
+     * @param relay Relay host and port
+     * @return Relay limiter
+     */
+    private static RateLimiter forRelay(String relay) {
+        RateLimiter limiter = relays.get(relay);
+
+        if (limiter == null) {
+            RateLimiter created = new RateLimiter(relay, Configuration.smtp_relay_rate, Configuration.smtp_relay_rate_burst);
+            limiter = relays.putIfAbsent(relay, created);
+
+            if (limiter == null) {
+                limiter = created;
+            }
+        }
+
+        return limiter;
+    }
+
+    /**
+     * Takes one token. When bucket is empty token is borrowed from the future
+     * and caller gets time it has to wait for it.
+     *
+     * @return Time to wait in milliseconds
+     */
+    public synchronized long reserve() {
+        if (rate <= 0) {
+            return 0;
+        }
+
+        refill();
+        tokens -= 1;
+
+        if (tokens >= 0) {
+            return 0;
+        }
+
+        long wait = (long) Math.ceil(-tokens / rate * 1000);
+        logger.trace("Rate limit " + name + " reached, waiting " + wait + " ms");
+
+        return wait;
+    }
+
+    /**
+     * Takes one token only if bucket is not empty, so caller can do other work
+     * instead of waiting.
+     *
+     * @return 0 if token was taken, otherwise time in milliseconds until
+     * token is available
+     */
+    public synchronized long tryReserve() {
+        if (rate <= 0) {
+            return 0;
+        }
+
+        refill();
+
+        if (tokens >= 1) {
+            tokens -= 1;
+
+            return 0;
+        }
+
+        return Math.max(1, (long) Math.ceil((1 - tokens) / rate * 1000));
+    }
+
+    /**
+     * Adds tokens for time since last refill.
+     */
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - lastRefill) / 1e9 * rate);
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,257 @@
+package com.soprasteria.notificationemail;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+
+/**
+ * Sends again records whose sending failed for transient reason (relay not
+ * reachable, authentication failure, 4xx reply, open circuit). Records wait in delay queue
+ * with exponential backoff and jitter, record that was not sent within
+ * retry_max_age seconds after its first failure is marked as error. Records
+ * waiting for retry are skipped when eventout is read again.
+ */
+public class RetryScheduler implements Runnable {
+
+    private static volatile RetryScheduler current;
+    private final DelayQueue<Retry> queue = new DelayQueue<Retry>();
+    private final Map<String, Retry> waiting = new ConcurrentHashMap<String, Retry>();
+    private final WorkerPool senders;
+    private final Thread dispatcher;
+    private volatile boolean closed = false;
+    private static final Logger logger = Logger.getLogger(RetryScheduler.class);
+
+    /**
+     * RetryScheduler constructor.
+     */
+    private RetryScheduler() {
+        this.senders = new WorkerPool();
+        this.dispatcher = new Thread(this, "retry-scheduler");
+        this.dispatcher.setDaemon(true);
+    }
+
+    /**
+     * Starts scheduler of retries.
+     *
+     * @return RetryScheduler or null if retries are disabled
+     */
+    public static RetryScheduler open() {
+        if (Configuration.retry_max_age <= 0) {
+            return null;
+        }
+
+        RetryScheduler scheduler = new RetryScheduler();
+        scheduler.dispatcher.start();
+
+        current = scheduler;
+
+        return current;
+    }
+
+    /**
+     * Gets scheduler of current process.
+     *
+     * @return RetryScheduler or null if retries are disabled
+     */
+    public static RetryScheduler getCurrent() {
+        return current;
+    }
+
+    /**
+     * Checks if sending status is transient and record can be sent later.
+     *
+     * @param smtpStatus Sending status
+     * @return TRUE if sending should be retried
+     */
+    public static boolean isTransient(String smtpStatus) {
+        return smtpStatus.equals("CONNECTION_REFUSED") || smtpStatus.equals("UNKNOWN_HOST")
+                || smtpStatus.equals("SMTP_AUTHENTICATION_FAILED") || smtpStatus.equals("TEMPORARY_FAILURE")
+                || smtpStatus.equals("CIRCUIT_OPEN");
+    }
+
+    /**
+     * Checks if record is waiting for retry.
+     *
+     * @param evSysSeq evsysseq key value
+     * @return TRUE if record is processed by scheduler
+     */
+    public static boolean isWaiting(String evSysSeq) {
+        RetryScheduler scheduler = current;
+
+        return scheduler != null && scheduler.waiting.containsKey(evSysSeq);
+    }
+
+    /**
+     * Checks if record failed first time more than retry_max_age seconds ago.
+     *
+     * @param evSysSeq evsysseq key value
+     * @return TRUE if record must not be retried anymore
+     */
+    public boolean isExpired(String evSysSeq) {
+        Retry retry = waiting.get(evSysSeq);
+
+        return retry != null && System.currentTimeMillis() - retry.firstFailure >= Configuration.retry_max_age * 1000L;
+    }
+
+    /**
+     * Schedules next attempt of record.
+     *
+     * @param record Record that was not sent
+     * @param smtpStatus Sending status
+     * @return FALSE if scheduler is closed and record has to be released
+     */
+    public boolean schedule(EventOutRecord record, String smtpStatus) {
+        if (closed) {
+            return false;
+        }
+
+        long now = System.currentTimeMillis();
+        Retry retry = waiting.get(record.getEvSysSeq());
+
+        if (retry == null) {
+            retry = new Retry(record, now);
+            waiting.put(record.getEvSysSeq(), retry);
+        }
+
+        retry.attempts++;
+        retry.scheduled = true;
+
+        // initial delay doubled with every attempt, at least half of it is kept
+        long delay = Math.min(Configuration.retry_max_delay * 1000L, Configuration.retry_initial_delay * 1000L << Math.min(retry.attempts - 1, 20));
+        delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+
+        // last attempt is made at max age
+        retry.due = Math.min(now + delay, retry.firstFailure + Configuration.retry_max_age * 1000L);
+        queue.put(retry);
+
+        logger.warn("<" + record.getEvSysSeq() + "> -> Sending failed with " + smtpStatus + ", attempt " + retry.attempts + " will be retried in " + (retry.due - now + 999) / 1000 + " seconds");
+
+        if (closed && queue.remove(retry)) {
+            // closed meanwhile, record is released by caller
+            waiting.remove(record.getEvSysSeq(), retry);
+
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Dispatcher loop. Hands over due records to sender threads.
+     */
+    @Override
+    public void run() {
+        while (!closed) {
+            Retry retry;
+
+            try {
+                retry = queue.poll(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            if (retry != null) {
+                try {
+                    senders.execute(retry);
+                } catch (InterruptedException e) {
+                    waiting.remove(retry.record.getEvSysSeq(), retry);
+                    retry.record.release();
+
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops scheduler. Records waiting for retry are sent until they
+     * succeed or expire, or are released if scheduler must not wait.
+     *
+     * @param wait TRUE if waiting records are processed before stop
+     * @throws InterruptedException
+     */
+    public void close(boolean wait) throws InterruptedException {
+        if (wait && !waiting.isEmpty()) {
+            logger.info("Waiting for " + waiting.size() + " record(s) scheduled for retry");
+
+            while (!waiting.isEmpty()) {
+                synchronized (waiting) {
+                    waiting.wait(1000);
+                }
+            }
+        }
+
+        closed = true;
+        dispatcher.interrupt();
+        dispatcher.join();
+
+        // drainTo() would take only due records
+        ArrayList<Retry> abandoned = new ArrayList<Retry>(queue);
+        queue.clear();
+
+        for (Retry retry : abandoned) {
+            waiting.remove(retry.record.getEvSysSeq(), retry);
+            retry.record.release();
+        }
+
+        if (!abandoned.isEmpty()) {
+            logger.info("Records scheduled for retry left in eventout: " + abandoned.size());
+        }
+
+        senders.shutdown();
+
+        if (current == this) {
+            current = null;
+        }
+    }
+
+    /**
+     * Record waiting for next attempt.
+     */
+    private class Retry implements Delayed, Runnable {
+
+        private final EventOutRecord record;
+        private final long firstFailure;
+        private int attempts = 0;
+        private volatile long due;
+        private volatile boolean scheduled;
+
+        private Retry(EventOutRecord record, long firstFailure) {
+            this.record = record;
+            this.firstFailure = firstFailure;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(due - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(due, ((Retry) other).due);
+        }
+
+        /**
+         * Sends record again, record is scheduled again when it fails.
+         */
+        @Override
+        public void run() {
+            scheduled = false;
+
+            record.finish(null);
+
+            if (!scheduled) {
+                waiting.remove(record.getEvSysSeq(), this);
+
+                synchronized (waiting) {
+                    waiting.notifyAll();
+                }
+            }
+        }
+    }
+}
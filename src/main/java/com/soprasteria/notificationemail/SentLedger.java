@@ -0,0 +1,293 @@
+package com.soprasteria.notificationemail;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+import org.apache.log4j.Logger;
+
+/**
+ * Local append-only ledger of eventout records that were sent. Entry is
+ * written to memory-mapped file before database change is queued, so after
+ * crash records that were sent but not committed are acknowledged instead of
+ * sent again.
+ *
+ * Ledger is kept in numbered segment files. Compaction writes entries that
+ * are not acknowledged yet to next segment and removes older ones; replay of
+ * entries is idempotent, so segment left behind by crash does no harm.
+ *
+ * Entry layout: length (2 bytes), "evsysseq\nstatus" in UTF-8, CRC32 (4
+ * bytes). Empty status means removal.
+ */
+public class SentLedger {
+
+    private static final int MAGIC = 0x4E45534C;
+    private static final int HEADER = 4;
+    private final File directory;
+    private final String prefix;
+    private final Map<String, String> pending = new ConcurrentHashMap<String, String>();
+    private long segment = 0;
+    private RandomAccessFile raf;
+    private MappedByteBuffer buffer;
+    private static final Logger logger = Logger.getLogger(SentLedger.class);
+
+    /**
+     * SentLedger constructor. Reads entries left by previous run and starts
+     * new segment with them.
+     *
+     * @param path Ledger file path, segments get numeric suffix
+     * @throws IOException
+     */
+    public SentLedger(String path) throws IOException {
+        File base = new File(path).getAbsoluteFile();
+        this.directory = base.getParentFile();
+        this.prefix = base.getName() + ".";
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create ledger directory " + directory);
+        }
+
+        File[] segments = getSegments();
+
+        for (File old : segments) {
+            read(old);
+            segment = Math.max(segment, getSegmentNumber(old));
+        }
+
+        compact(0);
+
+        logger.info("Sent ledger opened: " + base + " (entries not acknowledged: " + pending.size() + ")");
+    }
+
+    /**
+     * Writes entry of sent record.
+     *
+     * @param evSysSeq evsysseq key value
+     * @param status Status to set in eventout or null if record is removed
+     * @throws IOException
+     */
+    public synchronized void append(String evSysSeq, String status) throws IOException {
+        if (status == null) {
+            status = "";
+        }
+
+        byte[] data = (evSysSeq + "\n" + status).getBytes(StandardCharsets.UTF_8);
+
+        if (buffer.remaining() < data.length + 8) {
+            compact(data.length + 8);
+        }
+
+        int start = buffer.position();
+        buffer.position(start + 2);
+        buffer.put(data);
+        buffer.putInt(crc(data));
+        // length is written last, so entry is valid only when complete
+        buffer.putShort(start, (short) data.length);
+
+        if (Configuration.ledger_sync) {
+            buffer.force();
+        }
+
+        pending.put(evSysSeq, status);
+    }
+
+    /**
+     * Checks if record was sent and its database change is not committed yet.
+     *
+     * @param evSysSeq evsysseq key value
+     * @return TRUE if record was sent
+     */
+    public boolean isSent(String evSysSeq) {
+        return pending.containsKey(evSysSeq);
+    }
+
+    /**
+     * Forgets entries whose database changes were committed.
+     *
+     * @param evSysSeqs Committed evsysseq values
+     */
+    public void committed(Collection<String> evSysSeqs) {
+        for (String evSysSeq : evSysSeqs) {
+            pending.remove(evSysSeq);
+        }
+    }
+
+    /**
+     * Queues database changes of records that were sent by previous run but
+     * not committed, and commits them.
+     *
+     * @param db Database object
+     * @throws Exception
+     */
+    public void replay(Database db) throws Exception {
+        HashMap<String, String> entries = new HashMap<String, String>(pending);
+
+        if (entries.isEmpty()) {
+            return;
+        }
+
+        logger.warn("Sent ledger contains " + entries.size() + " record(s) sent by previous run, acknowledging them in eventout");
+
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            if (entry.getValue().isEmpty()) {
+                db.removeRecordFromEventOut(entry.getKey());
+            } else {
+                db.markRecord(entry.getKey(), entry.getValue());
+            }
+        }
+
+        db.commit();
+        compact(0);
+    }
+
+    /**
+     * Closes ledger file.
+     */
+    public synchronized void close() {
+        try {
+            buffer.force();
+            raf.close();
+        } catch (IOException e) {
+            logger.error("Unable to close sent ledger", e);
+        }
+    }
+
+    /**
+     * Writes entries that are not acknowledged yet to new segment, maps it
+     * and removes older segments.
+     *
+     * @param required Free space needed after compaction
+     * @throws IOException
+     */
+    private synchronized void compact(int required) throws IOException {
+        HashMap<String, String> entries = new HashMap<String, String>(pending);
+        int size = HEADER;
+
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            size += (entry.getKey() + "\n" + entry.getValue()).getBytes(StandardCharsets.UTF_8).length + 8;
+        }
+
+        long capacity = Configuration.ledger_size;
+        while (capacity < (size + required) * 2L) {
+            capacity *= 2;
+        }
+
+        segment++;
+        RandomAccessFile next = new RandomAccessFile(new File(directory, prefix + segment), "rw");
+        next.setLength(capacity);
+        MappedByteBuffer nextBuffer = next.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+
+        nextBuffer.putInt(MAGIC);
+
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            byte[] data = (entry.getKey() + "\n" + entry.getValue()).getBytes(StandardCharsets.UTF_8);
+
+            nextBuffer.putShort((short) data.length);
+            nextBuffer.put(data);
+            nextBuffer.putInt(crc(data));
+        }
+
+        nextBuffer.force();
+
+        if (raf != null) {
+            raf.close();
+        }
+
+        raf = next;
+        buffer = nextBuffer;
+
+        for (File old : getSegments()) {
+            if (getSegmentNumber(old) < segment && !old.delete()) {
+                // mapped file cannot be removed on some systems, it is removed by next run
+                logger.debug("Unable to remove old ledger segment " + old);
+            }
+        }
+
+        logger.debug("Sent ledger compacted (entries: " + entries.size() + ", size: " + capacity + " bytes)");
+    }
+
+    /**
+     * Reads entries of ledger segment.
+     *
+     * @param source Segment file
+     * @throws IOException
+     */
+    private void read(File source) throws IOException {
+        byte[] content = Files.readAllBytes(source.toPath());
+        ByteBuffer in = ByteBuffer.wrap(content);
+
+        if (content.length < HEADER || in.getInt() != MAGIC) {
+            logger.warn("Ignoring invalid ledger segment " + source);
+
+            return;
+        }
+
+        while (in.remaining() > 2) {
+            int length = in.getShort() & 0xFFFF;
+
+            if (length == 0 || in.remaining() < length + 4) {
+                break;
+            }
+
+            byte[] data = new byte[length];
+            in.get(data);
+
+            if (in.getInt() != crc(data)) {
+                // torn write of last entry
+                break;
+            }
+
+            String[] entry = new String(data, StandardCharsets.UTF_8).split("\n", 2);
+            pending.put(entry[0], entry.length > 1 ? entry[1] : "");
+        }
+    }
+
+    /**
+     * Gets segment files of this ledger.
+     *
+     * @return Segment files
+     */
+    private File[] getSegments() {
+        File[] segments = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(prefix) && Configuration.getNumber(name.substring(prefix.length())) > 0;
+            }
+        });
+
+        return segments == null ? new File[0] : segments;
+    }
+
+    /**
+     * Gets number of segment file.
+     *
+     * @param segmentFile Segment file
+     * @return Segment number
+     */
+    private long getSegmentNumber(File segmentFile) {
+        return Configuration.getNumber(segmentFile.getName().substring(prefix.length()));
+    }
+
+    /**
+     * Computes checksum of entry data.
+     *
+     * @param data Entry data
+     * @return CRC32 value
+     */
+    private static int crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+
+        return (int) crc.getValue();
+    }
+}
@@ -1,11 +1,15 @@
 package com.soprasteria.notificationemail;
 
 import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
 import com.sun.mail.smtp.SMTPSenderFailedException;
 import com.sun.mail.util.MailConnectException;
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.Properties;
 import javax.mail.Address;
@@ -18,6 +22,7 @@ import javax.mail.PasswordAuthentication;
 import javax.mail.SendFailedException;
 import javax.mail.Session;
 import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
@@ -40,9 +45,15 @@ public class Smtp {
     private final boolean sendHtml;
     private Session session;
     private Message message;
+    // e-mail whose message was built and saved by prepare()
+    private Email prepared;
+    // DATA content rendered by prepare() for nio engine
+    private byte[] data;
+    // records of failed coalesced e-mail are sent and logged separately
+    private boolean resendOnFailure = false;
     private final ByteArrayOutputStream baos = new ByteArrayOutputStream();
     private final PrintStream ps = new PrintStream(baos);
-    private String smtpLog;
+    private final ArrayList<String> smtpLog = new ArrayList<String>();
     private static final Logger logger = Logger.getLogger(Smtp.class);
     private static final Logger smtpLogger = Logger.getLogger("SmtpLog");
 
@@ -107,6 +118,90 @@ public class Smtp {
         }
     }
 
+    /**
+     * Sets if records of coalesced e-mail are sent separately when it fails,
+     * so failed e-mail does not write SMTP log lines of records.
+     *
+     * @param resendOnFailure TRUE if records are sent separately on failure
+     */
+    public void setResendOnFailure(boolean resendOnFailure) {
+        this.resendOnFailure = resendOnFailure;
+    }
+
+    /**
+     * Builds MIME message of e-mail before it is sent, so it can be built by
+     * other thread than SMTP conversation. Headers are saved and for nio
+     * engine message is rendered here, send stage only transmits it.
+     *
+     * @param email Email object
+     */
+    public void prepare(Email email) {
+        try {
+            createMessage(email);
+
+            if (Configuration.smtp_engine.equals("nio")) {
+                data = NioSmtpClient.render((MimeMessage) message);
+            } else {
+                message.saveChanges();
+                data = null;
+            }
+
+            prepared = email;
+        } catch (Exception e) {
+            // message is built again by sendEmail() and error is reported there
+            data = null;
+            prepared = null;
+        }
+    }
+
+    /**
+     * Builds MIME message of e-mail.
+     *
+     * @param email Email object
+     * @throws MessagingException
+     */
+    private void createMessage(Email email) throws MessagingException {
+        message = new MimeMessage(session);
+
+        message.setFrom(email.getSender(Configuration.encoding));
+        message.addRecipients(Message.RecipientType.TO, email.getRecipients(Configuration.encoding));
+        message.addRecipients(Message.RecipientType.CC, email.getCC(Configuration.encoding));
+        message.addRecipients(Message.RecipientType.BCC, email.getBCC(Configuration.encoding));
+        message.setSubject(email.getSubject(Configuration.encoding));
+        message.setSentDate(email.getSentDate().getTime());
+
+        if (sendHtml) {
+            MimeMultipart content = new MimeMultipart("alternative");
+            MimeBodyPart text = new MimeBodyPart();
+            MimeBodyPart html = new MimeBodyPart();
+
+            text.setText(email.getContentText(), Configuration.encoding);
+            html.setContent(email.getContentHtml(), "text/html; charset=" + Configuration.encoding);
+
+            content.addBodyPart(text);
+            content.addBodyPart(html);
+
+            message.setContent(content);
+        } else {
+            message.setContent(email.getContentText(), "text/plain; charset=" + Configuration.encoding);
+        }
+
+        if (logger.isDebugEnabled()) {
+            StringBuilder sb = new StringBuilder();
+            Enumeration headers = message.getAllHeaders();
+
+            while (headers.hasMoreElements()) {
+                Header header = (Header) headers.nextElement();
+                sb.append(header.getName());
+                sb.append(" ");
+                sb.append(header.getValue());
+                sb.append("\r\n");
+            }
+
+            logger.debug(getRecordNumber(email) + "Email headers:\r\n" + sb.toString().trim());
+        }
+    }
+
     /**
      * Sends email to destination addresses.
      *
@@ -114,55 +209,68 @@ public class Smtp {
      * @return Sending status
      */
     public String sendEmail(Email email) {
+        return sendEmail(email, null);
+    }
+
+    /**
+     * Sends email coalesced from e-mails of several eventout records. SMTP
+     * log line is written for each record.
+     *
+     * @param email Email object with recipients of all records
+     * @param records E-mails of records, null if email is not coalesced
+     * @return Sending status
+     */
+    public String sendEmail(Email email, Email[] records) {
         String smtpStatus;
+        CircuitBreaker breaker = CircuitBreaker.smtp();
 
-        message = new MimeMessage(session);
+        if (!breaker.allowRequest()) {
+            // relay is down, message is not even built
+            logger.debug(getRecordNumber(email) + "SMTP relay circuit is open, e-mail was not sent");
 
-        try {
-            message.setFrom(email.getSender(Configuration.encoding));
-            message.addRecipients(Message.RecipientType.TO, email.getRecipients(Configuration.encoding));
-            message.addRecipients(Message.RecipientType.CC, email.getCC(Configuration.encoding));
-            message.addRecipients(Message.RecipientType.BCC, email.getBCC(Configuration.encoding));
-            message.setSubject(email.getSubject(Configuration.encoding));
-            message.setSentDate(email.getSentDate().getTime());
+            return "CIRCUIT_OPEN";
+        }
 
-            if (sendHtml) {
-                MimeMultipart content = new MimeMultipart("alternative");
-                MimeBodyPart text = new MimeBodyPart();
-                MimeBodyPart html = new MimeBodyPart();
+        try {
+            boolean saved = prepared == email;
 
-                text.setText(email.getContentText(), Configuration.encoding);
-                html.setContent(email.getContentHtml(), "text/html; charset=" + Configuration.encoding);
+            if (!saved) {
+                createMessage(email);
+                data = null;
+            }
+            prepared = null;
 
-                content.addBodyPart(text);
-                content.addBodyPart(html);
+            // Wait for rate limit and send the message
+            RateLimiter.acquire(host + ":" + port);
 
-                message.setContent(content);
-            } else {
-                message.setContent(email.getContentText(), "text/plain; charset=" + Configuration.encoding);
-            }
+            ConcurrencyLimit limit = ConcurrencyLimit.smtp();
+            limit.acquire();
 
-            if (logger.isDebugEnabled()) {
-                StringBuilder sb = new StringBuilder();
-                Enumeration headers = message.getAllHeaders();
+            long started = System.nanoTime();
+            boolean overload = false;
 
-                while (headers.hasMoreElements()) {
-                    Header header = (Header) headers.nextElement();
-                    sb.append(header.getName());
-                    sb.append(" ");
-                    sb.append(header.getValue());
-                    sb.append("\r\n");
+            try {
+                if (Configuration.smtp_engine.equals("nio")) {
+                    NioSmtpClient.getClient(host, port, login, password, useSSL, requiresAuth).send((MimeMessage) message, data);
+                } else if (Configuration.smtp_pool_size > 0) {
+                    SmtpTransportPool.getPool(session, host, port, login, password, useSSL).send(message, saved);
+                } else if (saved) {
+                    sendSaved();
+                } else {
+                    Transport.send(message);
                 }
+            } catch (MessagingException e) {
+                overload = isOverload(e);
 
-                logger.debug(getRecordNumber(email) + "Email headers:\r\n" + sb.toString().trim());
+                throw e;
+            } finally {
+                limit.release(System.nanoTime() - started, overload);
             }
 
-            // Send the message
-            Transport.send(message);
-
             smtpStatus = "SUCCESS";
+            breaker.record(smtpStatus);
 
-            createLogMessage(smtpStatus, email, "");
+            createLogMessage(smtpStatus, email, records, "");
         } catch (Throwable e) {
             Exception ex = (Exception) e;
             String exceptionMessage;
@@ -287,34 +395,56 @@ public class Smtp {
                 } while (ex != null);
             }
 
-            createLogMessage(smtpStatus, email, exceptionMessage);
+            if (smtpStatus.equals("FAILURE") && isTemporary(e)) {
+                smtpStatus = "TEMPORARY_FAILURE";
+            }
+
+            breaker.record(smtpStatus);
+
+            if (records != null && resendOnFailure && (smtpStatus.equals("FAILURE") || smtpStatus.equals("PARTIAL_SUCCESS"))) {
+                logger.debug(getRecordNumber(email) + "Records of coalesced e-mail are logged when they are sent separately");
+            } else {
+                createLogMessage(smtpStatus, email, records, exceptionMessage);
+            }
         } finally {
             //addLogEntryToFile();
-            smtpLogger.info(smtpLog);
+            for (int i = 0; i < smtpLog.size(); i++) {
+                smtpLogger.info(smtpLog.get(i));
+            }
 
             if (logger.isTraceEnabled() && baos.size() > 0) {
                 logger.trace(getRecordNumber(email) + "SMTP debug:\r\n" + baos.toString());
             }
-
-            // wait 1s to close files
-            try {
-                Thread.sleep(1000);
-            } catch (Throwable e) {
-                // nothing
-            }
         }
 
         return smtpStatus;
     }
 
     /**
-     * Creates log message with basic email informations.
+     * Sends message saved by prepare() the same way as Transport.send(),
+     * which would save it again.
+     *
+     * @throws MessagingException
+     */
+    private void sendSaved() throws MessagingException {
+        Transport transport = session.getTransport();
+
+        try {
+            transport.connect();
+            transport.sendMessage(message, message.getAllRecipients());
+        } finally {
+            transport.close();
+        }
+    }
+
+    /**
+     * Creates log message with basic email informations. Coalesced email gets
+     * log message for each record with recipients of the record.
      *
      * @throws Exception
      */
-    private void createLogMessage(String success, Email email, String error) {
+    private void createLogMessage(String success, Email email, Email[] records, String error) {
         try {
-            StringBuilder sb = new StringBuilder();
             String sender = "";
             String recipients = "";
             String cc = "";
@@ -338,35 +468,138 @@ public class Smtp {
                 }
             }
 
-            sb.append(email.getEventID());
-            sb.append(";");
-            sb.append(email.getEventOperator());
-            sb.append(";");
-            sb.append(email.getCompany());
-            sb.append(";");
-            sb.append(email.getTicketNumbers());
-            sb.append(";");
-            sb.append(sender);
-            sb.append(";");
-            sb.append(recipients);
-            sb.append(";");
-            sb.append(cc);
-            sb.append(";");
-            sb.append(bcc);
-            sb.append(";");
-            sb.append(subject.replace("\r\n", " "));
-            sb.append(";");
-            sb.append(success);
-            sb.append(";");
-            sb.append(error);
-            // message is empty
-
-            smtpLog = sb.toString();
+            if (records == null) {
+                smtpLog.add(createLogLine(email, sender, recipients, cc, bcc, subject, success, error));
+            } else {
+                // header of coalesced e-mail has recipients of all records in bcc
+                for (int i = 0; i < records.length; i++) {
+                    recipients = decodeAddresses(records[i].getRecipients(Configuration.encoding));
+                    cc = decodeAddresses(records[i].getCC(Configuration.encoding));
+                    bcc = decodeAddresses(records[i].getBCC(Configuration.encoding));
+
+                    smtpLog.add(createLogLine(records[i], sender, recipients, cc, bcc, subject, success, error));
+                }
+            }
         } catch (Throwable e) {
             logger.error(getRecordNumber(email) + "Unable to create SMTP log entry", e);
         }
     }
 
+    /**
+     * Decodes addresses for SMTP log.
+     *
+     * @param addresses Addresses
+     * @return Decoded addresses or empty string
+     * @throws UnsupportedEncodingException
+     */
+    private static String decodeAddresses(Address[] addresses) throws UnsupportedEncodingException {
+        String list = InternetAddress.toString(addresses);
+
+        return list != null ? MimeUtility.decodeText(list) : "";
+    }
+
+    /**
+     * Creates SMTP log line of eventout record.
+     *
+     * @return SMTP log line
+     */
+    private String createLogLine(Email email, String sender, String recipients, String cc, String bcc, String subject, String success, String error) {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append(email.getEventID());
+        sb.append(";");
+        sb.append(email.getEventOperator());
+        sb.append(";");
+        sb.append(email.getCompany());
+        sb.append(";");
+        sb.append(email.getTicketNumbers());
+        sb.append(";");
+        sb.append(sender);
+        sb.append(";");
+        sb.append(recipients);
+        sb.append(";");
+        sb.append(cc);
+        sb.append(";");
+        sb.append(bcc);
+        sb.append(";");
+        sb.append(subject.replace("\r\n", " "));
+        sb.append(";");
+        sb.append(success);
+        sb.append(";");
+        sb.append(error);
+        // message is empty
+
+        return sb.toString();
+    }
+
+    /**
+     * Checks if sending failed only on 4xx replies of SMTP server, so it can
+     * succeed later.
+     *
+     * @param e Sending exception
+     * @return TRUE if all SMTP replies in exception chain are 4xx
+     */
+    private static boolean isTemporary(Throwable e) {
+        boolean temporary = false;
+
+        while (e != null) {
+            int returnCode = 0;
+
+            if (e instanceof SMTPAddressFailedException) {
+                returnCode = ((SMTPAddressFailedException) e).getReturnCode();
+            } else if (e instanceof SMTPSenderFailedException) {
+                returnCode = ((SMTPSenderFailedException) e).getReturnCode();
+            } else if (e instanceof SMTPSendFailedException) {
+                returnCode = ((SMTPSendFailedException) e).getReturnCode();
+            }
+
+            if (returnCode >= 500) {
+                return false;
+            } else if (returnCode >= 400) {
+                temporary = true;
+            }
+
+            e = e instanceof MessagingException ? ((MessagingException) e).getNextException() : null;
+        }
+
+        return temporary;
+    }
+
+    /**
+     * Checks if SMTP server refused message because it is overloaded: 4xx
+     * reply or no reply in time.
+     *
+     * @param e Sending exception
+     * @return TRUE if less messages should be sent at the same time
+     */
+    private static boolean isOverload(Throwable e) {
+        for (int depth = 0; e != null && depth < 10; depth++) {
+            int returnCode = 0;
+
+            if (e instanceof SocketTimeoutException) {
+                return true;
+            } else if (e instanceof SMTPAddressFailedException) {
+                returnCode = ((SMTPAddressFailedException) e).getReturnCode();
+            } else if (e instanceof SMTPSenderFailedException) {
+                returnCode = ((SMTPSenderFailedException) e).getReturnCode();
+            } else if (e instanceof SMTPSendFailedException) {
+                returnCode = ((SMTPSendFailedException) e).getReturnCode();
+            } else if (e.getMessage() != null && e.getMessage().matches("(?s).*response: 4\\d\\d.*")) {
+                // greeting refused, e.g. 421 too many connections
+                return true;
+            }
+
+            if (returnCode >= 400 && returnCode < 500) {
+                return true;
+            }
+
+            Throwable next = e instanceof MessagingException ? ((MessagingException) e).getNextException() : null;
+            e = next != null ? next : e.getCause();
+        }
+
+        return false;
+    }
+
     /**
      * Gets formatted eventout record number for logger.
      *
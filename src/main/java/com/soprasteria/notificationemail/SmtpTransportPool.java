@@ -0,0 +1,436 @@
+package com.soprasteria.notificationemail;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.smtp.SMTPSenderFailedException;
+import com.sun.mail.smtp.SMTPTransport;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import org.apache.log4j.Logger;
+
+/**
+ * Pool of open SMTP transports. One pool exists per relay host, port and
+ * credentials, so connections are reused by all eventout workers.
+ */
+public class SmtpTransportPool {
+
+    private static final ConcurrentHashMap<String, SmtpTransportPool> pools = new ConcurrentHashMap<String, SmtpTransportPool>();
+    private static ScheduledExecutorService evictor;
+    private final Session session;
+    private final String host;
+    private final int port;
+    private final String login;
+    private final String password;
+    private final String protocol;
+    private final Semaphore permits;
+    private final ArrayDeque<PooledTransport> idle = new ArrayDeque<PooledTransport>();
+    private boolean closed = false;
+    private static final Logger logger = Logger.getLogger(SmtpTransportPool.class);
+
+    /**
+     * SmtpTransportPool constructor.
+     *
+     * @param session Mail session used to create transports
+     * @param host Host name/address
+     * @param port Port number
+     * @param login Login used by SMTP server
+     * @param password User password
+     * @param useSSL Information if connection uses SSL
+     */
+    private SmtpTransportPool(Session session, String host, int port, String login, String password, boolean useSSL) {
+        this.session = session;
+        this.host = host;
+        this.port = port;
+        this.login = login;
+        this.password = password;
+        this.protocol = useSSL ? "smtps" : "smtp";
+        this.permits = new Semaphore(Configuration.smtp_pool_size, true);
+    }
+
+    /**
+     * Gets pool for provided relay, creating it when needed.
+     *
+     * @param session Mail session used to create transports
+     * @param host Host name/address
+     * @param port Port number
+     * @param login Login used by SMTP server
+     * @param password User password
+     * @param useSSL Information if connection uses SSL
+     * @return Transport pool
+     */
+    public static SmtpTransportPool getPool(Session session, String host, int port, String login, String password, boolean useSSL) {
+        String key = host + ":" + port + ":" + login + ":" + (password == null ? 0 : password.hashCode()) + ":" + useSSL;
+        SmtpTransportPool pool = pools.get(key);
+
+        if (pool == null) {
+            SmtpTransportPool created = new SmtpTransportPool(session, host, port, login, password, useSSL);
+            pool = pools.putIfAbsent(key, created);
+
+            if (pool == null) {
+                pool = created;
+                startEvictor();
+
+                logger.info("SMTP transport pool created for " + host + ":" + port + " (size: " + Configuration.smtp_pool_size + ")");
+            }
+        }
+
+        return pool;
+    }
+
+    /**
+     * Closes all pooled transports.
+     */
+    public static void closeAll() {
+        Iterator<SmtpTransportPool> it = pools.values().iterator();
+
+        while (it.hasNext()) {
+            it.next().close();
+            it.remove();
+        }
+
+        synchronized (SmtpTransportPool.class) {
+            if (evictor != null) {
+                evictor.shutdownNow();
+                evictor = null;
+            }
+        }
+    }
+
+    /**
+     * Sends message through pooled transport. Reused connection is checked
+     * with RSET first. If relay dropped it or answered MAIL FROM with 421,
+     * idle transports are discarded and message is sent over new connection.
+     * Failure after sender was accepted is not retried here, relay may have
+     * accepted message already.
+     *
+     * @param message Message to send
+     * @param saved TRUE if message was saved already when it was prepared
+     * @throws MessagingException
+     */
+    public void send(Message message, boolean saved) throws MessagingException {
+        if (!saved) {
+            message.saveChanges();
+        }
+
+        PooledTransport pooled = borrow();
+        boolean reused = pooled.sent > 0;
+
+        if (reused && !isUsable(pooled)) {
+            logger.warn("SMTP connection to " + host + ":" + port + " lost, reconnecting");
+            invalidate(pooled);
+            closeIdle();
+
+            pooled = borrow();
+            reused = false;
+        }
+
+        try {
+            deliver(pooled, message);
+        } catch (MessagingException e) {
+            if (reused && isSenderRefused(e)) {
+                logger.warn("SMTP connection to " + host + ":" + port + " closed by relay (" + e.getMessage() + "), reconnecting");
+                closeIdle();
+
+                deliver(borrow(), message);
+            } else {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Checks that reused transport is still connected. Nothing of message is
+     * sent yet, so failed check can be followed by new connection.
+     *
+     * @param pooled Transport
+     * @return TRUE if relay answered RSET
+     */
+    private static boolean isUsable(PooledTransport pooled) {
+        try {
+            if (pooled.transport instanceof SMTPTransport) {
+                return ((SMTPTransport) pooled.transport).simpleCommand("RSET") == 250;
+            }
+
+            return pooled.transport.isConnected();
+        } catch (MessagingException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Sends message through borrowed transport and gives transport back.
+     *
+     * @param pooled Borrowed transport
+     * @param message Message to send
+     * @throws MessagingException
+     */
+    private void deliver(PooledTransport pooled, Message message) throws MessagingException {
+        boolean reusable = false;
+
+        try {
+            pooled.transport.sendMessage(message, message.getAllRecipients());
+            pooled.sent++;
+            reusable = true;
+        } catch (MessagingException e) {
+            // rejected recipients leave session usable
+            reusable = !isConnectionLost(e);
+
+            throw e;
+        } finally {
+            if (reusable) {
+                release(pooled);
+            } else {
+                invalidate(pooled);
+            }
+        }
+    }
+
+    /**
+     * Borrows transport from pool. Waits when all transports are in use.
+     *
+     * @return Connected transport
+     * @throws MessagingException
+     */
+    private PooledTransport borrow() throws MessagingException {
+        permits.acquireUninterruptibly();
+
+        try {
+            long now = System.currentTimeMillis();
+            PooledTransport pooled;
+
+            while ((pooled = pollIdle()) != null) {
+                if (now - pooled.lastUsed > Configuration.smtp_pool_validate_interval * 1000L && !pooled.transport.isConnected()) {
+                    // isConnected() issues NOOP on SMTP transports
+                    logger.debug("Discarding stale SMTP connection to " + host + ":" + port);
+                    closeQuietly(pooled);
+                } else {
+                    return pooled;
+                }
+            }
+
+            Transport transport = session.getTransport(protocol);
+            transport.connect(host, port, login, password);
+
+            return new PooledTransport(transport);
+        } catch (MessagingException e) {
+            permits.release();
+
+            throw e;
+        } catch (RuntimeException e) {
+            permits.release();
+
+            throw e;
+        }
+    }
+
+    /**
+     * Returns transport to pool.
+     *
+     * @param pooled Transport
+     */
+    private void release(PooledTransport pooled) {
+        pooled.lastUsed = System.currentTimeMillis();
+
+        synchronized (idle) {
+            if (closed) {
+                closeQuietly(pooled);
+            } else {
+                idle.push(pooled);
+            }
+        }
+
+        permits.release();
+    }
+
+    /**
+     * Closes transport and frees its place in pool.
+     *
+     * @param pooled Transport
+     */
+    private void invalidate(PooledTransport pooled) {
+        closeQuietly(pooled);
+        permits.release();
+    }
+
+    /**
+     * Gets most recently used idle transport.
+     *
+     * @return Idle transport or null
+     */
+    private PooledTransport pollIdle() {
+        synchronized (idle) {
+            return idle.poll();
+        }
+    }
+
+    /**
+     * Closes transports that have been idle longer than configured timeout.
+     */
+    private void evictIdle() {
+        long limit = System.currentTimeMillis() - Configuration.smtp_pool_idle_timeout * 1000L;
+        ArrayDeque<PooledTransport> expired = new ArrayDeque<PooledTransport>();
+
+        synchronized (idle) {
+            Iterator<PooledTransport> it = idle.iterator();
+
+            while (it.hasNext()) {
+                PooledTransport pooled = it.next();
+
+                if (pooled.lastUsed < limit) {
+                    it.remove();
+                    expired.add(pooled);
+                }
+            }
+        }
+
+        for (PooledTransport pooled : expired) {
+            logger.debug("Closing idle SMTP connection to " + host + ":" + port + " after " + pooled.sent + " message(s)");
+            closeQuietly(pooled);
+        }
+    }
+
+    /**
+     * Closes all idle transports of this pool.
+     */
+    private void closeIdle() {
+        synchronized (idle) {
+            while (!idle.isEmpty()) {
+                closeQuietly(idle.poll());
+            }
+        }
+    }
+
+    /**
+     * Closes pool and all its idle transports.
+     */
+    private void close() {
+        synchronized (idle) {
+            closed = true;
+        }
+
+        closeIdle();
+
+        logger.info("SMTP transport pool closed for " + host + ":" + port);
+    }
+
+    /**
+     * Checks if exception means that SMTP session cannot be used anymore.
+     *
+     * @param e Exception thrown by transport
+     * @return TRUE if connection was dropped or relay answered 421
+     */
+    static boolean isConnectionLost(MessagingException e) {
+        Exception ex = e;
+
+        while (ex != null) {
+            if (ex instanceof SMTPSendFailedException && ((SMTPSendFailedException) ex).getReturnCode() == 421) {
+                return true;
+            } else if (ex instanceof SMTPSenderFailedException && ((SMTPSenderFailedException) ex).getReturnCode() == 421) {
+                return true;
+            } else if (ex instanceof SMTPAddressFailedException && ((SMTPAddressFailedException) ex).getReturnCode() == 421) {
+                return true;
+            } else if (ex instanceof IOException || ex instanceof IllegalStateException) {
+                return true;
+            }
+
+            if (ex instanceof MessagingException) {
+                ex = ((MessagingException) ex).getNextException();
+            } else {
+                ex = null;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Checks if relay closed session when answering MAIL FROM, so message was
+     * not accepted.
+     *
+     * @param e Exception thrown by transport
+     * @return TRUE if sender was refused with 421
+     */
+    static boolean isSenderRefused(MessagingException e) {
+        Exception ex = e;
+
+        while (ex != null) {
+            if (ex instanceof SMTPSenderFailedException && ((SMTPSenderFailedException) ex).getReturnCode() == 421) {
+                return true;
+            }
+
+            if (ex instanceof MessagingException) {
+                ex = ((MessagingException) ex).getNextException();
+            } else {
+                ex = null;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Closes transport and ignores errors.
+     *
+     * @param pooled Transport
+     */
+    private static void closeQuietly(PooledTransport pooled) {
+        try {
+            pooled.transport.close();
+        } catch (Throwable e) {
+            // nothing
+        }
+    }
+
+    /**
+     * Starts background eviction of idle transports.
+     */
+    private static synchronized void startEvictor() {
+        if (evictor == null) {
+            evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "smtp-pool-evictor");
+                    thread.setDaemon(true);
+
+                    return thread;
+                }
+            });
+
+            long period = Math.max(1, Configuration.smtp_pool_idle_timeout / 2);
+            evictor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    for (SmtpTransportPool pool : pools.values()) {
+                        pool.evictIdle();
+                    }
+                }
+            }, period, period, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Transport kept open in pool.
+     */
+    private static class PooledTransport {
+
+        private final Transport transport;
+        private long lastUsed;
+        private int sent = 0;
+
+        private PooledTransport(Transport transport) {
+            this.transport = transport;
+            this.lastUsed = System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,360 @@
+package com.soprasteria.notificationemail;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+
+/**
+ * Write-behind stage for eventout status changes. Workers queue outcomes,
+ * single writer thread executes them as JDBC batches and commits at
+ * checkpoints.
+ */
+public class StatusWriter implements Runnable {
+
+    private final Connection connection;
+    private final ArrayBlockingQueue<StatusUpdate> queue;
+    private final ArrayList<StatusUpdate> removals = new ArrayList<StatusUpdate>();
+    private final ArrayList<StatusUpdate> marks = new ArrayList<StatusUpdate>();
+    private final ArrayList<StatusUpdate> releases = new ArrayList<StatusUpdate>();
+    private PreparedStatement removeStatement;
+    private PreparedStatement markStatement;
+    private PreparedStatement releaseStatement;
+    private final SentLedger ledger;
+    private final ArrayList<String> written = new ArrayList<String>();
+    private Thread thread;
+    private volatile boolean running = false;
+    private int uncommitted = 0;
+    private long lastCommit;
+    private static final Logger logger = Logger.getLogger(StatusWriter.class);
+
+    /**
+     * StatusWriter constructor.
+     *
+     * @param connection Connection used for status changes
+     * @param ledger Sent ledger informed about committed changes or null
+     */
+    public StatusWriter(Connection connection, SentLedger ledger) {
+        this.connection = connection;
+        this.ledger = ledger;
+        this.queue = new ArrayBlockingQueue<StatusUpdate>(Math.max(Configuration.db_batch_size * 10, 1000));
+    }
+
+    /**
+     * Prepares statements and starts writer thread.
+     *
+     * @throws SQLException
+     */
+    public void start() throws SQLException {
+        connection.setAutoCommit(false);
+        removeStatement = connection.prepareStatement("DELETE FROM eventoutm1 WHERE evsysseq = ? AND evtype = 'email'");
+        markStatement = connection.prepareStatement("UPDATE eventoutm1 SET evstatus = ? WHERE evsysseq = ? AND evtype = 'email'");
+
+        if (Configuration.claim_enabled) {
+            releaseStatement = connection.prepareStatement("DELETE FROM eventoutm1_claim WHERE evsysseq = ?");
+        }
+
+        lastCommit = System.currentTimeMillis();
+        running = true;
+
+        thread = new Thread(this, "eventout-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues removal of eventout record.
+     *
+     * @param evSysSeq evsysseq key value
+     * @throws InterruptedException
+     */
+    public void remove(String evSysSeq) throws InterruptedException {
+        queue.put(new StatusUpdate(Kind.REMOVE, evSysSeq, null, null));
+    }
+
+    /**
+     * Queues status update of eventout record.
+     *
+     * @param evSysSeq evsysseq key value
+     * @param status status of processing
+     * @throws InterruptedException
+     */
+    public void mark(String evSysSeq, String status) throws InterruptedException {
+        queue.put(new StatusUpdate(Kind.MARK, evSysSeq, status, null));
+    }
+
+    /**
+     * Queues removal of claim of eventout record.
+     *
+     * @param evSysSeq evsysseq key value
+     * @throws InterruptedException
+     */
+    public void release(String evSysSeq) throws InterruptedException {
+        if (releaseStatement != null) {
+            queue.put(new StatusUpdate(Kind.RELEASE, evSysSeq, null, null));
+        }
+    }
+
+    /**
+     * Waits until all queued changes are written and committed.
+     *
+     * @throws InterruptedException
+     */
+    public void checkpoint() throws InterruptedException {
+        if (running) {
+            CountDownLatch done = new CountDownLatch(1);
+            queue.put(new StatusUpdate(Kind.CHECKPOINT, null, null, done));
+            done.await();
+        }
+    }
+
+    /**
+     * Gets number of changes waiting for writer thread.
+     *
+     * @return Queue depth
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Writes and commits queued changes and stops writer thread.
+     *
+     * @throws InterruptedException
+     */
+    public void stop() throws InterruptedException {
+        if (running) {
+            checkpoint();
+            running = false;
+            thread.join();
+
+            closeQuietly(removeStatement);
+            closeQuietly(markStatement);
+            closeQuietly(releaseStatement);
+        }
+    }
+
+    /**
+     * Writer loop. Flushes batch when it is full or flush interval passed.
+     */
+    @Override
+    public void run() {
+        long firstQueued = 0;
+
+        while (running || !queue.isEmpty()) {
+            try {
+                StatusUpdate update = queue.poll(Configuration.db_batch_flush_interval, TimeUnit.MILLISECONDS);
+                long now = System.currentTimeMillis();
+
+                if (update != null) {
+                    if (update.kind == Kind.CHECKPOINT) {
+                        flush();
+                        commit();
+                        update.done.countDown();
+
+                        continue;
+                    }
+
+                    if (pending() == 0) {
+                        firstQueued = now;
+                    }
+
+                    if (update.kind == Kind.REMOVE) {
+                        removals.add(update);
+                    } else if (update.kind == Kind.MARK) {
+                        marks.add(update);
+                    } else {
+                        releases.add(update);
+                    }
+                }
+
+                if (pending() >= Configuration.db_batch_size
+                        || pending() > 0 && now - firstQueued >= Configuration.db_batch_flush_interval) {
+                    flush();
+                }
+
+                if (uncommitted > 0 && (uncommitted >= Configuration.db_commit_size || now - lastCommit >= Configuration.db_commit_interval * 1000L)) {
+                    commit();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                running = false;
+            } catch (Throwable e) {
+                logger.error("Unable to write eventout status changes", e);
+            }
+        }
+    }
+
+    /**
+     * Gets number of collected changes.
+     *
+     * @return Number of changes waiting for batch
+     */
+    private int pending() {
+        return removals.size() + marks.size() + releases.size();
+    }
+
+    /**
+     * Executes collected changes as batches. Claims of removed and marked
+     * records are dropped in the same transaction. Record that could not be
+     * removed nor marked keeps its claim until lease expires, so other
+     * instance does not send it again meanwhile.
+     */
+    private void flush() {
+        if (!removals.isEmpty()) {
+            for (StatusUpdate update : executeBatch(removeStatement, removals)) {
+                logger.info("Record removed: evsysseq = " + update.evSysSeq);
+                written.add(update.evSysSeq);
+
+                if (releaseStatement != null) {
+                    releases.add(update);
+                }
+            }
+
+            removals.clear();
+        }
+
+        if (!marks.isEmpty()) {
+            for (StatusUpdate update : executeBatch(markStatement, marks)) {
+                logger.info("Record marked as " + update.status + ": evsysseq = " + update.evSysSeq);
+                written.add(update.evSysSeq);
+
+                if (releaseStatement != null) {
+                    releases.add(update);
+                }
+            }
+
+            marks.clear();
+        }
+
+        if (!releases.isEmpty()) {
+            executeBatch(releaseStatement, releases);
+            releases.clear();
+        }
+    }
+
+    /**
+     * Executes one batch. If batch fails, changes are executed one by one so
+     * only failing records are lost.
+     *
+     * @param statement Prepared statement
+     * @param updates Changes
+     * @return Changes that were executed
+     */
+    private ArrayList<StatusUpdate> executeBatch(PreparedStatement statement, ArrayList<StatusUpdate> updates) {
+        ArrayList<StatusUpdate> executed = new ArrayList<StatusUpdate>(updates);
+
+        try {
+            for (StatusUpdate update : updates) {
+                bind(statement, update);
+                statement.addBatch();
+            }
+
+            statement.executeBatch();
+        } catch (SQLException e) {
+            logger.warn("Batch of " + updates.size() + " eventout changes failed, executing one by one", e);
+
+            for (StatusUpdate update : updates) {
+                try {
+                    statement.clearBatch();
+                    bind(statement, update);
+                    statement.executeUpdate();
+                } catch (SQLException ex) {
+                    // record stays in eventout, it is not logged nor written to ledger
+                    executed.remove(update);
+                    logger.error("Unable to change eventout record: evsysseq = " + update.evSysSeq, ex);
+                }
+            }
+        }
+
+        uncommitted += executed.size();
+
+        return executed;
+    }
+
+    /**
+     * Binds change values to statement parameters.
+     *
+     * @param statement Prepared statement
+     * @param update Change
+     * @throws SQLException
+     */
+    private void bind(PreparedStatement statement, StatusUpdate update) throws SQLException {
+        if (statement != markStatement) {
+            statement.setString(1, update.evSysSeq);
+        } else {
+            statement.setString(1, update.status);
+            statement.setString(2, update.evSysSeq);
+        }
+    }
+
+    /**
+     * Commits written changes.
+     */
+    private void commit() {
+        try {
+            connection.commit();
+
+            if (uncommitted > 0) {
+                logger.debug("Eventout changes committed: " + uncommitted);
+            }
+
+            if (ledger != null) {
+                ledger.committed(written);
+            }
+        } catch (SQLException e) {
+            logger.error("Unable to commit changes to database", e);
+        }
+
+        written.clear();
+
+        uncommitted = 0;
+        lastCommit = System.currentTimeMillis();
+    }
+
+    /**
+     * Closes statement and ignores errors.
+     *
+     * @param statement Prepared statement
+     */
+    private static void closeQuietly(PreparedStatement statement) {
+        try {
+            if (statement != null) {
+                statement.close();
+            }
+        } catch (Throwable e) {
+            // nothing
+        }
+    }
+
+    /**
+     * Kind of queued change.
+     */
+    private enum Kind {
+
+        REMOVE, MARK, RELEASE, CHECKPOINT
+    }
+
+    /**
+     * Queued status change. Checkpoint request carries latch released after
+     * commit.
+     */
+    private static class StatusUpdate {
+
+        private final Kind kind;
+        private final String evSysSeq;
+        private final String status;
+        private final CountDownLatch done;
+
+        private StatusUpdate(Kind kind, String evSysSeq, String status, CountDownLatch done) {
+            this.kind = kind;
+            this.evSysSeq = evSysSeq;
+            this.status = status;
+            this.done = done;
+        }
+    }
+}
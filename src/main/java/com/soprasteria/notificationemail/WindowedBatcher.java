@@ -0,0 +1,209 @@
+package com.soprasteria.notificationemail;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects eventout records into batches by key for one eventout run. Batch
+ * is sent window seconds after its first record, earlier when it is full and
+ * at the end of run. Full batch is sent by thread that added last record,
+ * expired batches are sent by sender workers.
+ *
+ * @param <B> Type of batch
+ */
+public abstract class WindowedBatcher<B extends WindowedBatcher.Batch> {
+
+    private final HashMap<String, B> batches = new HashMap<String, B>();
+    private final int window;
+    private final ScheduledThreadPoolExecutor timer;
+    private final WorkerPool senders;
+    private boolean closed = false;
+
+    /**
+     * WindowedBatcher constructor.
+     *
+     * @param name Name of batcher, prefix of thread names
+     * @param window Seconds batch waits for other records
+     */
+    protected WindowedBatcher(String name, int window) {
+        this.window = window;
+        this.timer = WorkerPool.createTimer(name + "-timer");
+        // batches waiting at shutdown are sent by shutdown()
+        this.timer.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.senders = new WorkerPool(name, Configuration.dispatch_mode, Configuration.worker_threads, Configuration.eventout_prefetch);
+    }
+
+    /**
+     * Adds record to batches with keys of candidates. Candidate is used when
+     * there is no waiting batch with its key. Full batches are sent by
+     * calling thread.
+     *
+     * @param record Eventout record
+     * @param candidates New batches of record
+     * @return FALSE if batcher is closed and record has to be sent alone
+     */
+    protected boolean add(EventOutRecord record, List<B> candidates) {
+        ArrayList<B> full = new ArrayList<B>();
+
+        synchronized (batches) {
+            if (closed) {
+                return false;
+            }
+
+            for (int i = 0; i < candidates.size(); i++) {
+                B batch = batches.get(candidates.get(i).key);
+
+                if (batch == null) {
+                    batch = candidates.get(i);
+                    batches.put(batch.key, batch);
+
+                    timer.schedule(new Window(batch), window, TimeUnit.SECONDS);
+                }
+
+                batch.add(record);
+
+                if (batch.isFull()) {
+                    batches.remove(batch.key);
+                    full.add(batch);
+                }
+            }
+        }
+
+        for (int i = 0; i < full.size(); i++) {
+            send(full.get(i));
+        }
+
+        return true;
+    }
+
+    /**
+     * Sends batch and finishes its records.
+     *
+     * @param batch Batch
+     */
+    protected abstract void send(B batch);
+
+    /**
+     * Hands all waiting batches over to senders without waiting for their
+     * windows.
+     *
+     * @throws InterruptedException
+     */
+    public void flush() throws InterruptedException {
+        ArrayList<B> waiting;
+
+        synchronized (batches) {
+            waiting = new ArrayList<B>(batches.values());
+            batches.clear();
+        }
+
+        for (int i = 0; i < waiting.size(); i++) {
+            senders.execute(new Sender(waiting.get(i)));
+        }
+    }
+
+    /**
+     * Sends all waiting batches and waits until they are sent. Must be called
+     * after all records of run were parsed.
+     *
+     * @throws InterruptedException
+     */
+    public void shutdown() throws InterruptedException {
+        synchronized (batches) {
+            closed = true;
+        }
+
+        // batch of running timer task is handed over to senders before timer terminates
+        timer.shutdown();
+        timer.awaitTermination(1, TimeUnit.MINUTES);
+
+        flush();
+        senders.shutdown();
+    }
+
+    /**
+     * Records collected under one key.
+     */
+    public abstract static class Batch {
+
+        final String key;
+        final ArrayList<EventOutRecord> records = new ArrayList<EventOutRecord>();
+
+        /**
+         * Batch constructor.
+         *
+         * @param key Key of batch
+         */
+        protected Batch(String key) {
+            this.key = key;
+        }
+
+        /**
+         * Adds record to batch.
+         *
+         * @param record Eventout record
+         */
+        void add(EventOutRecord record) {
+            records.add(record);
+        }
+
+        /**
+         * Checks if batch has to be sent without waiting for its window.
+         *
+         * @return TRUE if batch is full
+         */
+        abstract boolean isFull();
+    }
+
+    /**
+     * Window of batch expired.
+     */
+    private class Window implements Runnable {
+
+        private final B batch;
+
+        private Window(B batch) {
+            this.batch = batch;
+        }
+
+        @Override
+        public void run() {
+            synchronized (batches) {
+                if (batches.get(batch.key) != batch) {
+                    // batch was full and sent already
+                    return;
+                }
+
+                batches.remove(batch.key);
+            }
+
+            try {
+                senders.execute(new Sender(batch));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+
+                send(batch);
+            }
+        }
+    }
+
+    /**
+     * Sends batch on sender thread.
+     */
+    private class Sender implements Runnable {
+
+        private final B batch;
+
+        private Sender(B batch) {
+            this.batch = batch;
+        }
+
+        @Override
+        public void run() {
+            send(batch);
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package com.soprasteria.notificationemail;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+
+/**
+ * Executes eventout record workers. In "pool" mode workers run on fixed pool
+ * of platform threads, in "virtual" mode every record gets its own virtual
+ * thread. Both modes accept at most worker_threads records at once and make
+ * dispatching wait when all are busy. Pools report queue depth and finished
+ * workers for pipeline metrics.
+ *
+ * On Java 21 virtual thread blocked inside synchronized method pins its
+ * carrier thread. JavaMail sends and Oracle driver calls are synchronized, so
+ * in "virtual" mode SMTP (JavaMail engine) and database sections are limited
+ * to number of carrier threads unless smtp_concurrency and db_pool_max are
+ * configured.
+ */
+public class WorkerPool {
+
+    public static final String POOL = "pool";
+    public static final String VIRTUAL = "virtual";
+    public static final String STAGED = "staged";
+    private final String name;
+    private final int threads;
+    private final ExecutorService executor;
+    private final Semaphore inFlight;
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private static final Logger logger = Logger.getLogger(WorkerPool.class);
+
+    /**
+     * WorkerPool constructor with configured mode and size.
+     */
+    public WorkerPool() {
+        this(Configuration.dispatch_mode, Configuration.worker_threads, Configuration.eventout_prefetch);
+    }
+
+    /**
+     * WorkerPool constructor.
+     *
+     * @param mode Dispatch mode, "pool" or "virtual"
+     * @param threads Pool size or maximal number of virtual threads
+     * @param queueSize Records waiting for free pool thread
+     */
+    public WorkerPool(String mode, int threads, int queueSize) {
+        this("eventout", mode, threads, queueSize);
+    }
+
+    /**
+     * WorkerPool constructor of named pool.
+     *
+     * @param name Name of pool, prefix of thread names
+     * @param mode Dispatch mode, "virtual" or other mode for pool
+     * @param threads Pool size or maximal number of virtual threads
+     * @param queueSize Records waiting for free pool thread
+     */
+    public WorkerPool(String name, String mode, int threads, int queueSize) {
+        this.name = name;
+        this.threads = threads;
+
+        if (VIRTUAL.equals(mode)) {
+            executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 0).factory());
+            inFlight = new Semaphore(threads);
+        } else {
+            executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(queueSize), new NamedThreadFactory(name), new BlockingSubmitPolicy());
+            inFlight = null;
+        }
+
+        logger.debug("Worker pool " + name + " created (mode: " + mode + ", threads: " + threads + ")");
+    }
+
+    /**
+     * Starts worker. Waits when all workers are busy.
+     *
+     * @param worker Worker
+     * @throws InterruptedException
+     */
+    public void execute(final Runnable worker) throws InterruptedException {
+        if (inFlight == null) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        worker.run();
+                    } finally {
+                        completed.incrementAndGet();
+                    }
+                }
+            });
+
+            // sampled after submit, queue is deepest when dispatching waits
+            maxQueueDepth.accumulateAndGet(getQueueDepth(), Math::max);
+
+            return;
+        }
+
+        inFlight.acquire();
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        worker.run();
+                    } finally {
+                        completed.incrementAndGet();
+                        inFlight.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.release();
+
+            throw e;
+        }
+    }
+
+    /**
+     * Stops accepting workers and waits until all started workers finish.
+     *
+     * @throws InterruptedException
+     */
+    public void shutdown() throws InterruptedException {
+        executor.shutdown();
+
+        while (!executor.isTerminated()) {
+            executor.awaitTermination(1, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Gets name of pool.
+     *
+     * @return Name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets number of workers waiting for free pool thread.
+     *
+     * @return Queue depth, 0 in virtual mode
+     */
+    public int getQueueDepth() {
+        return inFlight == null ? ((ThreadPoolExecutor) executor).getQueue().size() : 0;
+    }
+
+    /**
+     * Gets maximal observed number of workers waiting for free pool thread.
+     *
+     * @return Maximal queue depth
+     */
+    public int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    /**
+     * Gets number of running workers.
+     *
+     * @return Running workers
+     */
+    public int getActive() {
+        return inFlight == null ? ((ThreadPoolExecutor) executor).getActiveCount() : threads - inFlight.availablePermits();
+    }
+
+    /**
+     * Gets number of finished workers.
+     *
+     * @return Finished workers
+     */
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    /**
+     * Gets metrics of pool for log.
+     *
+     * @return Active workers, queue depth, maximal queue depth and finished workers
+     */
+    public String getMetrics() {
+        return name + " active " + getActive() + "/" + threads + ", queued " + getQueueDepth() + " (max " + getMaxQueueDepth() + "), done " + getCompleted();
+    }
+
+    /**
+     * Gets number of carrier threads that run virtual threads.
+     *
+     * @return Parallelism of virtual thread scheduler
+     */
+    public static int getCarrierThreads() {
+        return Integer.getInteger("jdk.virtualThreadScheduler.parallelism", Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates timer with one daemon thread for delayed tasks of component,
+     * timer does not keep process running.
+     *
+     * @param name Thread name
+     * @return Timer
+     */
+    public static ScheduledThreadPoolExecutor createTimer(final String name) {
+        return new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Names pool threads after pool.
+     */
+    private static class NamedThreadFactory implements ThreadFactory {
+
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        private NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, prefix + "-" + count.getAndIncrement());
+        }
+    }
+
+    /**
+     * Makes dispatching wait until worker queue has free place instead of
+     * rejecting records.
+     */
+    private static class BlockingSubmitPolicy implements RejectedExecutionHandler {
+
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            try {
+                executor.getQueue().put(r);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+
+                throw new RejectedExecutionException(e);
+            }
+        }
+    }
+}
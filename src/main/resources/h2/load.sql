@@ -0,0 +1,14 @@
+-- Generates eventout backlog for local load tests (run after schema.sql):
+-- RUNSCRIPT FROM 'classpath:h2/load.sql'
+
+MERGE INTO companym1 KEY (company) VALUES ('ACME', 'ACME Service Desk', 'servicedesk@acme.example');
+MERGE INTO companym1 KEY (company) VALUES ('GLOBEX', 'Globex Service Desk', 'servicedesk@globex.example');
+
+INSERT INTO eventoutm1 (evsysseq, evtype, evstatus, evtime, evfields)
+SELECT 'LT' || LPAD(X, 10, '0'), 'email', NULL, CURRENT_TIMESTAMP,
+       'user' || MOD(X, 50) || '@acme.example;user' || MOD(X, 70) || '@globex.example^operator' || MOD(X, 5) || '^email^'
+       || 'Incident IM' || LPAD(X, 9, '0') || ' has been updated^'
+       || CASEWHEN(MOD(X, 2) = 0, 'ACME', 'GLOBEX') || '|lead@acme.example|' || CHAR(10)
+       || '<html><body><p>Incident IM' || LPAD(X, 9, '0') || ' has been assigned to your group.</p>'
+       || REPEAT('<p>Lorem ipsum dolor sit amet, consectetur adipiscing elit.</p>', MOD(X, 20) + 1) || '</body></html>'
+FROM SYSTEM_RANGE(1, 10000);
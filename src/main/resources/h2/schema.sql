@@ -0,0 +1,23 @@
+-- Stand-in HPSM tables for local load tests with H2 in Oracle mode (maven profile "h2").
+-- Used from configuration file:
+-- db_url = jdbc:h2:./notificationemail;MODE=Oracle;INIT=RUNSCRIPT FROM 'classpath:h2/schema.sql'
+
+CREATE TABLE IF NOT EXISTS companym1 (
+    company VARCHAR(100) PRIMARY KEY,
+    gsc_sender_name VARCHAR(100),
+    gsc_sender_mail VARCHAR(100)
+);
+
+CREATE TABLE IF NOT EXISTS eventoutm1 (
+    evsysseq VARCHAR(30) PRIMARY KEY,
+    evtype VARCHAR(30),
+    evstatus VARCHAR(30),
+    evtime TIMESTAMP,
+    evfields CLOB
+);
+
+CREATE TABLE IF NOT EXISTS eventoutm1_claim (
+    evsysseq VARCHAR(30) PRIMARY KEY,
+    owner VARCHAR(100) NOT NULL,
+    lease_until TIMESTAMP NOT NULL
+);
@@ -0,0 +1,9 @@
+-- Lease table used when claim_enabled = true. Each row tells which instance
+-- processes eventout record and until when; expired leases are claimed again.
+
+CREATE TABLE eventoutm1_claim (
+    evsysseq VARCHAR2(30) NOT NULL,
+    owner VARCHAR2(100) NOT NULL,
+    lease_until DATE NOT NULL,
+    CONSTRAINT eventoutm1_claim_pk PRIMARY KEY (evsysseq)
+);
@@ -0,0 +1,283 @@
+package com.soprasteria.notificationemail;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Stand-in SMTP server for tests. Every connection is served by its own
+ * thread with blocking socket. Extensions, replies and TLS are set before
+ * start(), received commands and messages are recorded.
+ */
+public class FakeSmtpServer implements Runnable {
+
+    private final SSLContext ssl;
+    private ServerSocket server;
+    // server behaviour
+    boolean implicitTls = false;
+    boolean startTls = false;
+    boolean pipelining = false;
+    boolean silent = false;
+    boolean closeAfterMessage = false;
+    String auth = null;
+    String login = "user";
+    String password = "secret";
+    String mailReply = "250 OK";
+    final Map<String, String> rcptReplies = new HashMap<String, String>();
+    // recorded by server
+    final List<String> commands = Collections.synchronizedList(new ArrayList<String>());
+    final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+    final AtomicInteger connections = new AtomicInteger();
+    volatile boolean tls = false;
+    volatile boolean pipelined = false;
+    volatile String authLogin;
+    volatile String authPassword;
+
+    /**
+     * FakeSmtpServer constructor.
+     *
+     * @param ssl TLS context with server certificate
+     */
+    public FakeSmtpServer(SSLContext ssl) {
+        this.ssl = ssl;
+    }
+
+    /**
+     * Starts listening on free port of loopback address.
+     *
+     * @return Port
+     * @throws IOException
+     */
+    public int start() throws IOException {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+
+        server = implicitTls ? ssl.getServerSocketFactory().createServerSocket(0, 50, loopback) : new ServerSocket(0, 50, loopback);
+
+        Thread thread = new Thread(this, "fake-smtp-" + server.getLocalPort());
+        thread.setDaemon(true);
+        thread.start();
+
+        return server.getLocalPort();
+    }
+
+    /**
+     * Stops listening.
+     */
+    public void close() {
+        if (server == null) {
+            return;
+        }
+
+        try {
+            server.close();
+        } catch (IOException e) {
+            // nothing
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!server.isClosed()) {
+            final Socket socket;
+
+            try {
+                socket = server.accept();
+            } catch (IOException e) {
+                return;
+            }
+
+            connections.incrementAndGet();
+
+            Thread connection = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        serve(socket);
+                    } catch (IOException e) {
+                        // client closed connection
+                    } finally {
+                        try {
+                            socket.close();
+                        } catch (IOException e) {
+                            // nothing
+                        }
+                    }
+                }
+            }, "fake-smtp-connection");
+            connection.setDaemon(true);
+            connection.start();
+        }
+    }
+
+    /**
+     * Talks SMTP with one client.
+     *
+     * @param socket Accepted connection
+     * @throws IOException
+     */
+    private void serve(Socket socket) throws IOException {
+        if (silent) {
+            // never greets, client has to time out
+            while (socket.getInputStream().read() >= 0) {
+                // nothing
+            }
+
+            return;
+        }
+
+        tls = implicitTls;
+
+        BufferedReader in = reader(socket);
+        OutputStream out = socket.getOutputStream();
+        String line;
+
+        reply(out, "220 fake ESMTP");
+
+        while ((line = in.readLine()) != null) {
+            String command = line.toUpperCase();
+
+            commands.add(line);
+
+            if (command.startsWith("EHLO")) {
+                ArrayList<String> lines = new ArrayList<String>();
+
+                lines.add("fake");
+                if (pipelining) {
+                    lines.add("PIPELINING");
+                }
+                if (startTls && !tls) {
+                    lines.add("STARTTLS");
+                }
+                if (auth != null) {
+                    lines.add("AUTH " + auth);
+                }
+                lines.add("8BITMIME");
+
+                for (int i = 0; i < lines.size(); i++) {
+                    reply(out, "250" + (i < lines.size() - 1 ? "-" : " ") + lines.get(i));
+                }
+            } else if (command.startsWith("HELO")) {
+                reply(out, "250 fake");
+            } else if (command.equals("STARTTLS")) {
+                reply(out, "220 Ready to start TLS");
+
+                SSLSocket secure = (SSLSocket) ssl.getSocketFactory().createSocket(socket, socket.getInetAddress().getHostAddress(), socket.getPort(), true);
+                secure.setUseClientMode(false);
+                secure.startHandshake();
+
+                socket = secure;
+                in = reader(socket);
+                out = socket.getOutputStream();
+                tls = true;
+            } else if (command.startsWith("AUTH PLAIN ")) {
+                String[] credentials = decode(line.substring(11)).split("\0", -1);
+
+                authenticate(out, credentials.length == 3 ? credentials[1] : null, credentials.length == 3 ? credentials[2] : null);
+            } else if (command.equals("AUTH LOGIN")) {
+                reply(out, "334 VXNlcm5hbWU6");
+                String user = decode(in.readLine());
+                reply(out, "334 UGFzc3dvcmQ6");
+
+                authenticate(out, user, decode(in.readLine()));
+            } else if (command.startsWith("MAIL FROM:")) {
+                // with pipelining recipients arrive without waiting for reply to sender
+                pipelined = isPending(in);
+
+                reply(out, mailReply);
+            } else if (command.startsWith("RCPT TO:")) {
+                String address = line.substring(line.indexOf('<') + 1, line.lastIndexOf('>'));
+                String rcpt = rcptReplies.get(address);
+
+                reply(out, rcpt != null ? rcpt : "250 OK");
+            } else if (command.equals("DATA")) {
+                reply(out, "354 End data with <CR><LF>.<CR><LF>");
+
+                StringBuilder message = new StringBuilder();
+
+                while ((line = in.readLine()) != null && !line.equals(".")) {
+                    message.append(line.startsWith(".") ? line.substring(1) : line).append("\r\n");
+                }
+
+                messages.add(message.toString());
+                reply(out, "250 Queued");
+
+                if (closeAfterMessage) {
+                    // drops connection without QUIT, like server closing idle session
+                    return;
+                }
+            } else if (command.equals("RSET") || command.equals("NOOP")) {
+                reply(out, "250 OK");
+            } else if (command.equals("QUIT")) {
+                reply(out, "221 Bye");
+
+                return;
+            } else {
+                reply(out, "500 Unknown command");
+            }
+        }
+    }
+
+    /**
+     * Checks credentials and replies.
+     */
+    private void authenticate(OutputStream out, String user, String secret) throws IOException {
+        authLogin = user;
+        authPassword = secret;
+
+        if (login.equals(user) && password.equals(secret)) {
+            reply(out, "235 Authentication successful");
+        } else {
+            reply(out, "535 Authentication failed");
+        }
+    }
+
+    /**
+     * Waits shortly for next command sent before reply.
+     */
+    private static boolean isPending(BufferedReader in) throws IOException {
+        long end = System.currentTimeMillis() + 500;
+
+        while (!in.ready()) {
+            if (System.currentTimeMillis() > end) {
+                return false;
+            }
+
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static BufferedReader reader(Socket socket) throws IOException {
+        return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+    }
+
+    private static void reply(OutputStream out, String reply) throws IOException {
+        out.write((reply + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+    }
+
+    private static String decode(String value) {
+        return value == null ? null : new String(Base64.getDecoder().decode(value.trim()), StandardCharsets.UTF_8);
+    }
+}
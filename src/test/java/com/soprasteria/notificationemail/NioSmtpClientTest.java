@@ -0,0 +1,424 @@
+package com.soprasteria.notificationemail;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.sun.mail.util.MailConnectException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.util.Calendar;
+import java.util.concurrent.TimeUnit;
+import javax.mail.Address;
+import javax.mail.AuthenticationFailedException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.InternetAddress;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests of non-blocking SMTP client against stand-in SMTP server.
+ */
+public class NioSmtpClientTest {
+
+    private static final String MESSAGE = "Subject: test\r\n\r\nbody\r\n.line starting with dot\r\n";
+    private static SSLContext serverSsl;
+    private static SSLContext defaultSsl;
+    private FakeSmtpServer server;
+
+    @BeforeClass
+    public static void setUpTls() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        InputStream in = NioSmtpClientTest.class.getResourceAsStream("/smtp-test.p12");
+
+        try {
+            keyStore.load(in, "changeit".toCharArray());
+        } finally {
+            in.close();
+        }
+
+        KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keys.init(keyStore, "changeit".toCharArray());
+        serverSsl = SSLContext.getInstance("TLS");
+        serverSsl.init(keys.getKeyManagers(), null, null);
+
+        // client uses default context, it trusts test certificate only
+        TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trust.init(keyStore);
+        SSLContext clientSsl = SSLContext.getInstance("TLS");
+        clientSsl.init(null, trust.getTrustManagers(), null);
+        defaultSsl = SSLContext.getDefault();
+        SSLContext.setDefault(clientSsl);
+
+        Configuration.smtp_nio_threads = 1;
+    }
+
+    @AfterClass
+    public static void tearDownTls() {
+        SSLContext.setDefault(defaultSsl);
+    }
+
+    @Before
+    public void setUp() {
+        Configuration.smtp_timeout = 5;
+        Configuration.smtp_pool_size = 0;
+        Configuration.smtp_starttls = false;
+        Configuration.encoding = "utf-8";
+
+        server = new FakeSmtpServer(serverSsl);
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+        Configuration.smtp_engine = "javamail";
+    }
+
+    @Test
+    public void sendsPlainMessage() throws Exception {
+        NioSmtpClient.Delivery delivery = deliver(client(server.start(), false, false), "to@example.com");
+
+        assertDelivered(delivery);
+        assertTrue(server.commands.contains("MAIL FROM:<from@example.com>"));
+        assertTrue(server.commands.contains("RCPT TO:<to@example.com>"));
+        assertEquals(1, server.messages.size());
+        // dot stuffing is removed by server
+        assertTrue(server.messages.get(0).contains("\r\n.line starting with dot\r\n"));
+        assertFalse(server.tls);
+    }
+
+    @Test
+    public void sendsOverImplicitTls() throws Exception {
+        server.implicitTls = true;
+
+        NioSmtpClient.Delivery delivery = deliver(client(server.start(), true, false), "to@example.com");
+
+        assertDelivered(delivery);
+        assertTrue(server.tls);
+        assertEquals(1, server.messages.size());
+    }
+
+    @Test
+    public void upgradesConnectionWithStartTls() throws Exception {
+        Configuration.smtp_starttls = true;
+        server.startTls = true;
+
+        NioSmtpClient.Delivery delivery = deliver(client(server.start(), false, false), "to@example.com");
+
+        assertDelivered(delivery);
+        assertTrue(server.tls);
+        assertTrue(server.commands.contains("STARTTLS"));
+        // EHLO is sent again over TLS
+        assertTrue(server.commands.indexOf("STARTTLS") < server.commands.size() - 1);
+        assertTrue(server.commands.get(server.commands.indexOf("STARTTLS") + 1).startsWith("EHLO "));
+    }
+
+    @Test
+    public void ignoresStartTlsWhenNotConfigured() throws Exception {
+        server.startTls = true;
+
+        NioSmtpClient.Delivery delivery = deliver(client(server.start(), false, false), "to@example.com");
+
+        assertDelivered(delivery);
+        assertFalse(server.tls);
+        assertFalse(server.commands.contains("STARTTLS"));
+    }
+
+    @Test
+    public void pipelinesEnvelope() throws Exception {
+        server.pipelining = true;
+
+        NioSmtpClient.Delivery delivery = deliver(client(server.start(), false, false), "a@example.com", "b@example.com", "c@example.com");
+
+        assertDelivered(delivery);
+        assertTrue("recipients were sent together with sender", server.pipelined);
+        assertEquals(3, delivery.rcptReplies.length);
+    }
+
+    @Test
+    public void waitsForEveryReplyWithoutPipelining() throws Exception {
+        NioSmtpClient.Delivery delivery = deliver(client(server.start(), false, false), "a@example.com", "b@example.com");
+
+        assertDelivered(delivery);
+        assertFalse(server.pipelined);
+    }
+
+    @Test
+    public void authenticatesWithPlain() throws Exception {
+        server.auth = "PLAIN LOGIN";
+
+        NioSmtpClient.Delivery delivery = deliver(client(server.start(), false, true), "to@example.com");
+
+        assertDelivered(delivery);
+        assertTrue(server.commands.get(1).startsWith("AUTH PLAIN "));
+        assertEquals("user", server.authLogin);
+        assertEquals("secret", server.authPassword);
+    }
+
+    @Test
+    public void authenticatesWithLogin() throws Exception {
+        server.auth = "LOGIN";
+
+        NioSmtpClient.Delivery delivery = deliver(client(server.start(), false, true), "to@example.com");
+
+        assertDelivered(delivery);
+        assertTrue(server.commands.contains("AUTH LOGIN"));
+        assertEquals("user", server.authLogin);
+        assertEquals("secret", server.authPassword);
+    }
+
+    @Test
+    public void reportsRejectedCredentials() throws Exception {
+        server.auth = "PLAIN";
+        server.password = "other";
+
+        NioSmtpClient.Delivery delivery = deliver(client(server.start(), false, true), "to@example.com");
+
+        assertTrue(delivery.failure instanceof AuthenticationFailedException);
+        assertTrue(server.messages.isEmpty());
+    }
+
+    @Test
+    public void doesNotSendDataWhenSenderIsRejected() throws Exception {
+        server.mailReply = "550 Sender rejected";
+
+        NioSmtpClient.Delivery delivery = deliver(client(server.start(), false, false), "to@example.com");
+
+        assertNull(delivery.failure);
+        assertEquals(550, delivery.mailReply.code);
+        assertNull(delivery.dataReply);
+        assertFalse(server.commands.contains("DATA"));
+        assertTrue(server.messages.isEmpty());
+    }
+
+    @Test
+    public void doesNotSendDataWhenRecipientIsRejected() throws Exception {
+        server.rcptReplies.put("bad@example.com", "550 Unknown user");
+
+        NioSmtpClient.Delivery delivery = deliver(client(server.start(), false, false), "to@example.com", "bad@example.com");
+
+        assertNull(delivery.failure);
+        assertEquals(250, delivery.rcptReplies[0].code);
+        assertEquals(550, delivery.rcptReplies[1].code);
+        assertNull(delivery.dataReply);
+        assertTrue(server.messages.isEmpty());
+    }
+
+    @Test
+    public void reportsRefusedConnection() throws Exception {
+        ServerSocket free = new ServerSocket(0);
+        int port = free.getLocalPort();
+        free.close();
+
+        NioSmtpClient.Delivery delivery = deliver(client(port, false, false), "to@example.com");
+
+        assertTrue(delivery.failure instanceof MailConnectException);
+    }
+
+    @Test
+    public void timesOutSilentServer() throws Exception {
+        Configuration.smtp_timeout = 1;
+        server.silent = true;
+
+        long started = System.nanoTime();
+        NioSmtpClient.Delivery delivery = deliver(client(server.start(), false, false), "to@example.com");
+
+        assertNotNull(delivery.failure);
+        assertNull(delivery.mailReply);
+        assertTrue(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - started) < 5);
+    }
+
+    @Test
+    public void reusesConnectionWithRset() throws Exception {
+        Configuration.smtp_pool_size = 1;
+        NioSmtpClient client = client(server.start(), false, false);
+
+        assertDelivered(deliver(client, "a@example.com"));
+        assertDelivered(deliver(client, "b@example.com"));
+
+        assertEquals(1, server.connections.get());
+        assertTrue(server.commands.contains("RSET"));
+        assertEquals(2, server.messages.size());
+    }
+
+    @Test
+    public void resendsOverNewConnectionWhenIdleConnectionWasClosed() throws Exception {
+        Configuration.smtp_pool_size = 1;
+        server.closeAfterMessage = true;
+        NioSmtpClient client = client(server.start(), false, false);
+
+        assertDelivered(deliver(client, "a@example.com"));
+        assertDelivered(deliver(client, "b@example.com"));
+
+        assertEquals(2, server.connections.get());
+        // second message was not sent twice
+        assertEquals(2, server.messages.size());
+        assertEquals(1, count("RCPT TO:<b@example.com>"));
+    }
+
+    @Test
+    public void mapsRecipientRepliesToAddressLists() throws Exception {
+        server.rcptReplies.put("busy@example.com", "450 Mailbox busy");
+        server.rcptReplies.put("full@example.com", "552 Mailbox full");
+        server.rcptReplies.put("bad@example.com", "550 Unknown user");
+
+        Address[] recipients = {
+            new InternetAddress("ok@example.com"),
+            new InternetAddress("busy@example.com"),
+            new InternetAddress("full@example.com"),
+            new InternetAddress("bad@example.com")
+        };
+        NioSmtpClient.Delivery delivery = deliver(client(server.start(), false, false), "ok@example.com", "busy@example.com", "full@example.com", "bad@example.com");
+
+        try {
+            NioSmtpClient.checkResult(delivery, new InternetAddress("from@example.com"), recipients);
+            fail("SendFailedException expected");
+        } catch (SendFailedException e) {
+            // like JavaMail without sendpartial, accepted and temporarily rejected recipients were not sent to
+            assertAddresses(e.getValidUnsentAddresses(), "ok@example.com", "busy@example.com", "full@example.com");
+            assertAddresses(e.getInvalidAddresses(), "bad@example.com");
+            assertNull(e.getValidSentAddresses());
+        }
+
+        assertTrue(server.messages.isEmpty());
+    }
+
+    @Test
+    public void reportsSuccessThroughSmtp() throws Exception {
+        Configuration.smtp_engine = "nio";
+
+        assertEquals("SUCCESS", smtp(server.start(), false).sendEmail(email("to@example.com")));
+        assertEquals(1, server.messages.size());
+    }
+
+    @Test
+    public void reportsRejectedRecipientThroughSmtp() throws Exception {
+        Configuration.smtp_engine = "nio";
+        server.rcptReplies.put("bad@example.com", "550 Unknown user");
+
+        assertEquals("FAILURE", smtp(server.start(), false).sendEmail(email("to@example.com", "bad@example.com")));
+        assertTrue(server.messages.isEmpty());
+    }
+
+    @Test
+    public void reportsTemporaryRejectionThroughSmtp() throws Exception {
+        Configuration.smtp_engine = "nio";
+        server.rcptReplies.put("to@example.com", "450 Mailbox busy");
+
+        assertEquals("TEMPORARY_FAILURE", smtp(server.start(), false).sendEmail(email("to@example.com")));
+        assertTrue(server.messages.isEmpty());
+    }
+
+    @Test
+    public void reportsRefusedConnectionThroughSmtp() throws Exception {
+        Configuration.smtp_engine = "nio";
+        ServerSocket free = new ServerSocket(0);
+        int port = free.getLocalPort();
+        free.close();
+
+        assertEquals("CONNECTION_REFUSED", smtp(port, false).sendEmail(email("to@example.com")));
+    }
+
+    @Test
+    public void reportsRejectedCredentialsThroughSmtp() throws Exception {
+        Configuration.smtp_engine = "nio";
+        server.auth = "PLAIN";
+        server.password = "other";
+
+        assertEquals("SMTP_AUTHENTICATION_FAILED", smtp(server.start(), true).sendEmail(email("to@example.com")));
+        assertTrue(server.messages.isEmpty());
+    }
+
+    /**
+     * Gets client of stand-in server. Every test server has its own port, so
+     * clients are not shared between tests.
+     */
+    private static NioSmtpClient client(int port, boolean useSSL, boolean requiresAuth) {
+        return NioSmtpClient.getClient("127.0.0.1", port, "user", "secret", useSSL, requiresAuth);
+    }
+
+    /**
+     * Gets Smtp sender of stand-in server.
+     */
+    private static Smtp smtp(int port, boolean requiresAuth) {
+        return new Smtp("user", "secret", "127.0.0.1", port, requiresAuth, false, false);
+    }
+
+    /**
+     * Creates plain text e-mail from test sender.
+     */
+    private static Email email(String... recipients) throws Exception {
+        Email email = new Email();
+        Address[] to = new Address[recipients.length];
+
+        for (int i = 0; i < recipients.length; i++) {
+            to[i] = new InternetAddress(recipients[i]);
+        }
+
+        email.setSender(new InternetAddress("from@example.com"));
+        email.setRecipients(to);
+        email.setSubject("test");
+        email.setContentText("body");
+        email.setSentDate(Calendar.getInstance());
+
+        return email;
+    }
+
+    /**
+     * Delivers test message and waits for result.
+     */
+    private static NioSmtpClient.Delivery deliver(NioSmtpClient client, String... recipients) throws Exception {
+        NioSmtpClient.Delivery delivery = new NioSmtpClient.Delivery("from@example.com", recipients, NioSmtpClient.toData(MESSAGE.getBytes(StandardCharsets.ISO_8859_1)));
+
+        return client.submit(delivery).get(10, TimeUnit.SECONDS);
+    }
+
+    private static void assertDelivered(NioSmtpClient.Delivery delivery) {
+        assertNull("failure", delivery.failure);
+        assertEquals(250, delivery.mailReply.code);
+
+        for (int i = 0; i < delivery.rcptReplies.length; i++) {
+            assertEquals(250, delivery.rcptReplies[i].code);
+        }
+
+        assertEquals(354, delivery.dataReply.code);
+        assertEquals(250, delivery.messageReply.code);
+    }
+
+    private static void assertAddresses(Address[] addresses, String... expected) {
+        assertNotNull(addresses);
+        assertEquals(expected.length, addresses.length);
+
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], ((InternetAddress) addresses[i]).getAddress());
+        }
+    }
+
+    /**
+     * Counts commands received by server.
+     */
+    private int count(String command) {
+        int count = 0;
+
+        synchronized (server.commands) {
+            for (String received : server.commands) {
+                if (received.equals(command)) {
+                    count++;
+                }
+            }
+        }
+
+        return count;
+    }
+}